@@ -0,0 +1,34 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** ABSORBING STOP CONDITION
+ * Infection and vaccine are never undone, so the outcomes cannot change any more once:
+ * 1. Every agent is infected
+ * 2. No agent that is not vaccinated can still be: its own probability of vaccine, which depends on its sex, is 0
+ */
+
+public class AbsorbingStopCondition implements StopCondition {
+
+    public String check(City city){
+        PopulationStore store = city.population;
+        if (store.countInfected() != store.size) return null;
+        for (int i = store.vaccine.nextClearBit(0); i < store.size; i = store.vaccine.nextClearBit(i + 1)){
+            if (city.patients[i].vaccineProbability(city) > 0) return null;
+        }
+        return "absorbing";
+    }
+}
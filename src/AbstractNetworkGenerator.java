@@ -0,0 +1,209 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/** ABSTRACT NETWORK GENERATOR
+ * Every change of the network goes through connect() and disconnect(), so that the degree column of the
+ * population store is always the degree of the agent in the network
+ * The weight of each edge, its peership, is drawn uniformly in [0, 1)
+ */
+
+public abstract class AbstractNetworkGenerator implements NetworkGenerator, Cloneable {
+    private static final int MAX_ATTEMPTS = 100;
+    private int[] removed = new int[16];
+
+    // Upper bound of the degrees, and sum of the degrees of all the agents
+    protected int maxDegree;
+    protected long totalDegree;
+
+    /** CLEAR
+     * Removes every edge of the network and sets all degrees to 0
+     * Generators that index the agents by degree must build their index again afterwards
+     * @param city to get the network and the population store
+     */
+    protected void clear(City city){
+        city.peers.clear();
+        PopulationStore store = city.population;
+        Arrays.fill(store.degree, 0);
+        maxDegree = 0;
+        totalDegree = 0;
+    }
+
+    /** CONNECT
+     * @param city to get the network and the pseudo-random number generator
+     * @param one id of an agent
+     * @param other id of another agent
+     */
+    protected void connect(City city, int one, int other){
+        city.peers.addEdge(one, other, city.random.nextDouble());
+        int[] degree = city.population.degree;
+        degree[one]++;
+        degree[other]++;
+        maxDegree = Math.max(maxDegree, Math.max(degree[one], degree[other]));
+        totalDegree += 2;
+        degreeChanged(one, degree[one] - 1, degree[one]);
+        degreeChanged(other, degree[other] - 1, degree[other]);
+    }
+
+    /** DISCONNECT
+     * Removes all the edges of an agent
+     * @param city to get the network
+     * @param id of the agent
+     * @return the number of edges removed
+     */
+    protected int disconnect(City city, int id){
+        PeerNetwork peers = city.peers;
+        int[] degree = city.population.degree;
+
+        // The row shrinks while the edges are removed, so it is copied first
+        int count = peers.degree(id);
+        if (removed.length < count) removed = new int[Math.max(count, removed.length * 2)];
+        System.arraycopy(peers.neighbour, peers.rowStart[id], removed, 0, count);
+
+        for (int i = 0; i < count; i++){
+            int alter = removed[i];
+            peers.removeEdge(id, alter);
+            degree[alter]--;
+            degree[id]--;
+            totalDegree -= 2;
+            degreeChanged(alter, degree[alter] + 1, degree[alter]);
+            degreeChanged(id, degree[id] + 1, degree[id]);
+        }
+        return count;
+    }
+
+    /** DISCONNECT ONE EDGE
+     * @param city to get the network
+     * @param one id of an agent
+     * @param other id of another agent
+     * @return whether there was an edge between both agents
+     */
+    protected boolean disconnect(City city, int one, int other){
+        if (!city.peers.removeEdge(one, other)) return false;
+        int[] degree = city.population.degree;
+        degree[one]--;
+        degree[other]--;
+        totalDegree -= 2;
+        degreeChanged(one, degree[one] + 1, degree[one]);
+        degreeChanged(other, degree[other] + 1, degree[other]);
+        return true;
+    }
+
+    /** NEIGHBOURS
+     * @param city to get the network
+     * @param id of the agent
+     * @return the ids of the agents connected to it
+     */
+    protected int[] neighbours(City city, int id){
+        PeerNetwork peers = city.peers;
+        return Arrays.copyOfRange(peers.neighbour, peers.rowStart[id], peers.rowStart[id] + peers.degree(id));
+    }
+
+    /** CONNECTED
+     * @return whether there is an edge between both agents
+     */
+    protected boolean connected(City city, int one, int other){
+        return city.peers.contains(one, other);
+    }
+
+    /** DEGREE-PROPORTIONAL AGENT
+     * Rejection sampling: a uniform agent is accepted with probability degree / maxDegree
+     * @param city to get the degrees and the pseudo-random number generator
+     * @return the id of an agent drawn with probability proportional to its degree, uniform if there are no edges
+     */
+    protected int degreeProportional(City city){
+        int[] degree = city.population.degree;
+        if (totalDegree == 0) return city.random.nextInt(degree.length);
+        while (true){
+            int candidate = city.random.nextInt(degree.length);
+            if (city.random.nextInt(maxDegree) < degree[candidate]) return candidate;
+        }
+    }
+
+    /** CONNECT TO DEGREE-PROPORTIONAL AGENTS
+     * Self-loops and repeated edges are drawn again, up to a fixed number of attempts per edge
+     * @param city to get the network and the pseudo-random number generator
+     * @param ego id of the agent
+     * @param count number of edges to add
+     */
+    protected void connectDegreeProportional(City city, int ego, int count){
+        for (int i = 0; i < count; i++){
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++){
+                int alter = degreeProportional(city);
+                if (alter != ego && !connected(city, ego, alter)){
+                    connect(city, ego, alter);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** CONNECT TO A UNIFORM AGENT
+     * @param city to get the network and the pseudo-random number generator
+     * @param ego id of the agent
+     * @return whether an agent that was not a peer of the ego was found within the attempts
+     */
+    protected boolean connectUniform(City city, int ego){
+        int size = city.population.size;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++){
+            int alter = city.random.nextInt(size);
+            if (alter != ego && !connected(city, ego, alter)){
+                connect(city, ego, alter);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** SHUFFLED IDS
+     * @param city to get the pseudo-random number generator
+     * @return the ids of all the agents in random order
+     */
+    protected int[] shuffledIds(City city){
+        int[] ids = new int[city.population.size];
+        for (int i = 0; i < ids.length; i++) ids[i] = i;
+        for (int i = ids.length - 1; i > 0; i--){
+            int j = city.random.nextInt(i + 1);
+            int swap = ids[i];
+            ids[i] = ids[j];
+            ids[j] = swap;
+        }
+        return ids;
+    }
+
+    /** DEGREE CHANGED
+     * Called after the degree of an agent changes by one, for generators that index the agents by degree
+     * @param id of the agent
+     * @param previous degree of the agent
+     * @param current degree of the agent
+     */
+    protected void degreeChanged(int id, int previous, int current){}
+
+    /** COPY
+     * A shallow copy with a scratch array of its own: generators with arrays of state copy them as well
+     * @return an independent generator with the same state
+     */
+    public NetworkGenerator copy(){
+        try {
+            AbstractNetworkGenerator copy = (AbstractNetworkGenerator) clone();
+            copy.removed = new int[removed.length];
+            return copy;
+        } catch (CloneNotSupportedException e){
+            throw new AssertionError(e);
+        }
+    }
+}
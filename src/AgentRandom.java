@@ -0,0 +1,65 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/** AGENT RANDOM
+ * Counter-based random substreams: each draw is a hash of (seed, agent, step, stream)
+ * Draws do not depend on the order in which agents are stepped, nor on the thread that steps them,
+ * and no generator state needs to be stored per agent
+ * The hash is the SplitMix64 finaliser applied to the combined key
+ */
+
+public final class AgentRandom {
+
+    // Streams: one per kind of draw of an agent in a step
+    public static final int MOVE_X = 0;
+    public static final int MOVE_Y = 1;
+    public static final int VACCINE = 2;
+    public static final int INFECTION = 3;
+
+    // Stream of the draws that do not belong to a step, such as the subsample of the output
+    public static final int SAMPLE = 4;
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private AgentRandom(){}
+
+    /** UNIFORM DRAW
+     * @return a double in [0, 1) determined by the arguments
+     */
+    public static double nextDouble(long seed, int agent, long step, int stream){
+        long key = mix(seed * GOLDEN_GAMMA + agent);
+        key = mix(key + step * GOLDEN_GAMMA);
+        key = mix(key + stream * GOLDEN_GAMMA + GOLDEN_GAMMA);
+        return (key >>> 11) * 0x1.0p-53;
+    }
+
+    /** DERIVED SEED
+     * @param seed master seed
+     * @param first index, such as the line of a sweep
+     * @param second index, such as the replicate of a line
+     * @return a seed determined by the arguments, for an independent simulation
+     */
+    public static long seed(long seed, int first, int second){
+        long key = mix(seed * GOLDEN_GAMMA + first);
+        return mix(key + second * GOLDEN_GAMMA);
+    }
+
+    private static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,75 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/** ALLOCATION CHECK
+ * Measures the bytes allocated by the simulation thread at each step, once the simulation is warm:
+ * 1. A City is started and stepped for a number of warm-up steps
+ * 2. The allocated bytes of the thread are read with ThreadMXBean.getThreadAllocatedBytes before and after the
+ *    measured steps
+ * 3. The check fails, with exit status 1, when the mean bytes per agent and step are above the budget, so that an
+ *    allocation made for each agent is found at any size of the population
+ * Usage: java AllocationCheck [-agents n] [-warmup n] [-steps n] [-budget bytes per agent] [-stepMode n] [-outputMode n]
+ * The check is meant to be run with 10000 agents or more, with each output mode
+ */
+
+public class AllocationCheck {
+
+    public static void main(String[] args){
+        int agents = Integer.parseInt(Arguments.value(args, "-agents", "1000"));
+        int warmup = Integer.parseInt(Arguments.value(args, "-warmup", "200"));
+        int steps = Integer.parseInt(Arguments.value(args, "-steps", "100"));
+        double budget = Double.parseDouble(Arguments.value(args, "-budget", "0.1"));
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()){
+            System.out.println("ALLOCATION CHECK: thread allocated memory is not supported by this JVM");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        City city = new City(Long.parseLong(Arguments.value(args, "-seed", "1")));
+        city.setNumPatients(agents);
+        city.setStepMode(Integer.parseInt(Arguments.value(args, "-stepMode", String.valueOf(City.STEP_ASYNCHRONOUS))));
+        city.setOutputMode(Integer.parseInt(
+                Arguments.value(args, "-outputMode", String.valueOf(City.OUTPUT_ASYNCHRONOUS))));
+        city.earlyGUIStop = warmup + steps + 1;
+        city.start();
+
+        for (int i = 0; i < warmup; i++){
+            city.schedule.step(city);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < steps; i++){
+            city.schedule.step(city);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        city.finish();
+
+        double perStep = (double) allocated / steps;
+        double perAgent = perStep / agents;
+        System.out.println(String.format(Locale.ROOT,
+                "ALLOCATION CHECK: %d agents, %.1f bytes per step, %.4f bytes per agent, budget %.4f",
+                agents, perStep, perAgent, budget));
+        System.exit(perAgent > budget ? 1 : 0);
+    }
+}
@@ -0,0 +1,38 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/** ARGUMENTS
+ * Options of the command-line tools, given as pairs of a key and its value: -agents 1000 -steps 100
+ * Every main of the tools reads its options through value(), with the default value of each option
+ */
+
+final class Arguments {
+
+    private Arguments(){}
+
+    /** VALUE
+     * @param args arguments of the main
+     * @param key of the option, such as -steps
+     * @param value default value, when the key is not among the arguments
+     * @return the value after the key in the arguments, or the default value
+     */
+    static String value(String[] args, String key, String value){
+        for (int i = 0; i < args.length - 1; i++){
+            if (args[i].equals(key)) return args[i + 1];
+        }
+        return value;
+    }
+}
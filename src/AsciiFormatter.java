@@ -0,0 +1,527 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.math.BigInteger;
+
+/** ASCII FORMATTER
+ * Writes numbers as ASCII bytes into a byte array, without creating Strings:
+ * 1. Integers digit by digit
+ * 2. Doubles with the shortest digits that read back to the same double, laid out as Double.toString does:
+ *    plain between 1e-3 and 1e7, d.dddEn otherwise
+ * The digits of doubles come from Grisu3 (Loitsch, "Printing floating-point numbers quickly and accurately
+ * with integers", PLDI 2010), which proves its result shortest or gives up: for the ~0.5% of doubles where it
+ * gives up, the digits are generated exactly with big integers (Burger and Dybvig, "Printing floating-point
+ * numbers quickly and accurately", PLDI 1996), kept by the instance so that nothing is allocated
+ * An instance keeps its own scratch buffers, so it must not be shared between threads
+ */
+
+public final class AsciiFormatter {
+
+    // Longest outputs: "-9223372036854775808" and "-2.2250738585072014E-308"
+    public static final int MAX_LONG_LENGTH = 20;
+    public static final int MAX_DOUBLE_LENGTH = 25;
+
+    private static final long HIDDEN_BIT = 1L << 52;
+    private static final long SIGNIFICAND_MASK = HIDDEN_BIT - 1;
+    private static final int EXPONENT_BIAS = 1075;
+
+    // Binary exponent range of the scaled value in the digit generation
+    private static final int ALPHA = -60;
+    private static final int GAMMA = -32;
+
+    // Cached powers 10^k, for k = MIN_POWER, MIN_POWER + POWER_STEP, ..., as 64-bit significand and binary exponent
+    private static final int MIN_POWER = -348;
+    private static final int POWER_STEP = 8;
+    private static final int POWERS = 87;
+    private static final long[] POWER_SIGNIFICAND = new long[POWERS];
+    private static final int[] POWER_EXPONENT = new int[POWERS];
+
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+    static {
+        for (int i = 0; i < POWERS; i++){
+            int k = MIN_POWER + i * POWER_STEP;
+            BigInteger ten = BigInteger.TEN.pow(Math.abs(k));
+            BigInteger significand;
+            int exponent;
+            if (k >= 0){
+                // round(10^k / 2^shift), with 64 bits
+                int shift = ten.bitLength() - 64;
+                if (shift > 0){
+                    significand = ten.shiftRight(shift - 1).add(BigInteger.ONE).shiftRight(1);
+                } else {
+                    significand = ten.shiftLeft(-shift);
+                }
+                exponent = shift;
+            } else {
+                // round(2^shift / 10^-k), with 64 bits
+                int shift = 63 + ten.bitLength();
+                BigInteger[] division = BigInteger.ONE.shiftLeft(shift).divideAndRemainder(ten);
+                significand = division[0];
+                if (division[1].shiftLeft(1).compareTo(ten) >= 0) significand = significand.add(BigInteger.ONE);
+                exponent = -shift;
+            }
+            if (significand.bitLength() > 64){
+                significand = significand.shiftRight(1);
+                exponent++;
+            }
+            POWER_SIGNIFICAND[i] = significand.longValue();
+            POWER_EXPONENT[i] = exponent;
+        }
+    }
+
+    // Digits of the last double and their decimal exponent: value = digits * 10^(kappa - power)
+    private final byte[] digits = new byte[32];
+    private int length;
+    private int kappa;
+
+    // Big integers of the exact digit generation
+    private final BigNumber r = new BigNumber();
+    private final BigNumber s = new BigNumber();
+    private final BigNumber mPlus = new BigNumber();
+    private final BigNumber mMinus = new BigNumber();
+    private final BigNumber sum = new BigNumber();
+    private boolean even;
+
+    /** FORMAT LONG
+     * @param value to write
+     * @param out array where the bytes are written
+     * @param offset position of the first byte
+     * @return the position after the last byte
+     */
+    public int format(long value, byte[] out, int offset){
+        if (value == Long.MIN_VALUE){
+            byte[] text = {'-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6', '8', '5', '4', '7', '7', '5', '8', '0', '8'};
+            System.arraycopy(text, 0, out, offset, text.length);
+            return offset + text.length;
+        }
+        if (value < 0){
+            out[offset++] = '-';
+            value = -value;
+        }
+
+        // Count the digits, then write them from the last one
+        int count = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) count++;
+        int position = offset + count;
+        do {
+            out[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return offset + count;
+    }
+
+    /** FORMAT BOOLEAN
+     * @return the position after the last byte of "true" or "false"
+     */
+    public int format(boolean value, byte[] out, int offset){
+        byte[] text = value ? TRUE : FALSE;
+        System.arraycopy(text, 0, out, offset, text.length);
+        return offset + text.length;
+    }
+
+    /** FORMAT DOUBLE
+     * @param value to write
+     * @param out array where the bytes are written
+     * @param offset position of the first byte
+     * @return the position after the last byte
+     */
+    public int format(double value, byte[] out, int offset){
+        if (value != value){
+            System.arraycopy(NAN, 0, out, offset, NAN.length);
+            return offset + NAN.length;
+        }
+        if (value < 0 || (value == 0 && 1 / value < 0)){
+            out[offset++] = '-';
+            value = -value;
+        }
+        if (value == Double.POSITIVE_INFINITY){
+            System.arraycopy(INFINITY, 0, out, offset, INFINITY.length);
+            return offset + INFINITY.length;
+        }
+        if (value == 0){
+            out[offset++] = '0';
+            out[offset++] = '.';
+            out[offset++] = '0';
+            return offset;
+        }
+
+        int power = shortest(value);
+        if (power == Integer.MIN_VALUE){
+            // Grisu3 gave up
+            return layout(exact(value), out, offset);
+        }
+        return layout(kappa - power + length, out, offset);
+    }
+
+    /** LAYOUT
+     * @param point position of the decimal point relative to the first digit
+     */
+    private int layout(int point, byte[] out, int offset){
+        if (point >= -2 && point <= 7){
+            if (point <= 0){
+                // 0.00ddd
+                out[offset++] = '0';
+                out[offset++] = '.';
+                for (int i = point; i < 0; i++) out[offset++] = '0';
+                System.arraycopy(digits, 0, out, offset, length);
+                return offset + length;
+            }
+            if (point < length){
+                // dd.ddd
+                System.arraycopy(digits, 0, out, offset, point);
+                offset += point;
+                out[offset++] = '.';
+                System.arraycopy(digits, point, out, offset, length - point);
+                return offset + length - point;
+            }
+            // ddd00.0
+            System.arraycopy(digits, 0, out, offset, length);
+            offset += length;
+            for (int i = length; i < point; i++) out[offset++] = '0';
+            out[offset++] = '.';
+            out[offset++] = '0';
+            return offset;
+        }
+
+        // d.dddEn
+        out[offset++] = digits[0];
+        out[offset++] = '.';
+        if (length == 1){
+            out[offset++] = '0';
+        } else {
+            System.arraycopy(digits, 1, out, offset, length - 1);
+            offset += length - 1;
+        }
+        out[offset++] = 'E';
+        return format((long) (point - 1), out, offset);
+    }
+
+    /** SHORTEST DIGITS
+     * Fills the digits of a positive finite double
+     * @return the decimal exponent of the cached power used, or Integer.MIN_VALUE if Grisu3 gave up
+     */
+    private int shortest(double value){
+        long bits = Double.doubleToRawLongBits(value);
+        int biased = (int) (bits >>> 52) & 0x7FF;
+        long significand = biased == 0 ? bits & SIGNIFICAND_MASK : (bits & SIGNIFICAND_MASK) | HIDDEN_BIT;
+        int exponent = biased == 0 ? 1 - EXPONENT_BIAS : biased - EXPONENT_BIAS;
+
+        // BOUNDARIES: halfway to the neighbouring doubles, normalised to the exponent of the upper one
+        long plus = (significand << 1) + 1;
+        int plusExponent = exponent - 1;
+        int shift = Long.numberOfLeadingZeros(plus);
+        plus <<= shift;
+        plusExponent -= shift;
+        long minus;
+        int minusExponent;
+        if ((bits & SIGNIFICAND_MASK) == 0 && biased > 1){
+            minus = (significand << 2) - 1;
+            minusExponent = exponent - 2;
+        } else {
+            minus = (significand << 1) - 1;
+            minusExponent = exponent - 1;
+        }
+        minus <<= minusExponent - plusExponent;
+
+        shift = Long.numberOfLeadingZeros(significand);
+        long w = significand << shift;
+        int wExponent = exponent - shift;
+
+        // CACHED POWER: brings the exponent of the product into [ALPHA, GAMMA]
+        int minExponent = ALPHA - (wExponent + 64);
+        int maxExponent = GAMMA - (wExponent + 64);
+        int k = (int) Math.ceil((minExponent + 63) * 0.30102999566398114);
+        int index = Math.max(0, Math.min(POWERS - 1, (k - MIN_POWER + POWER_STEP - 1) / POWER_STEP));
+        while (index > 0 && POWER_EXPONENT[index] > maxExponent) index--;
+        while (index < POWERS - 1 && POWER_EXPONENT[index] < minExponent) index++;
+        if (POWER_EXPONENT[index] < minExponent || POWER_EXPONENT[index] > maxExponent) return Integer.MIN_VALUE;
+        long power = POWER_SIGNIFICAND[index];
+        int scaledExponent = wExponent + POWER_EXPONENT[index] + 64;
+
+        if (!digitGeneration(multiply(minus, power), multiply(w, power), multiply(plus, power), scaledExponent)){
+            return Integer.MIN_VALUE;
+        }
+        return MIN_POWER + index * POWER_STEP;
+    }
+
+    /** DIGIT GENERATION
+     * Generates the digits of the upper boundary until they identify the double, all in the scaled exponent
+     * @return whether the digits are proven shortest and closest
+     */
+    private boolean digitGeneration(long low, long w, long high, int exponent){
+        long unit = 1;
+        long tooLow = low - unit;
+        long tooHigh = high + unit;
+        long unsafeInterval = tooHigh - tooLow;
+        int shift = -exponent;
+        long one = 1L << shift;
+        long integrals = tooHigh >>> shift;
+        long fractionals = tooHigh & (one - 1);
+
+        long divisor = 0;
+        int kappa = 0;
+        for (long p = 1; p <= integrals; p *= 10){
+            divisor = p;
+            kappa++;
+        }
+
+        length = 0;
+        while (kappa > 0){
+            digits[length++] = (byte) ('0' + integrals / divisor);
+            integrals %= divisor;
+            kappa--;
+            long rest = (integrals << shift) + fractionals;
+            if (Long.compareUnsigned(rest, unsafeInterval) < 0){
+                this.kappa = kappa;
+                return roundWeed(tooHigh - w, unsafeInterval, rest, divisor << shift, unit);
+            }
+            divisor /= 10;
+        }
+        while (length < digits.length){
+            fractionals *= 10;
+            unit *= 10;
+            unsafeInterval *= 10;
+            digits[length++] = (byte) ('0' + (fractionals >>> shift));
+            fractionals &= one - 1;
+            kappa--;
+            if (Long.compareUnsigned(fractionals, unsafeInterval) < 0){
+                this.kappa = kappa;
+                return roundWeed((tooHigh - w) * unit, unsafeInterval, fractionals, one, unit);
+            }
+        }
+        return false;
+    }
+
+    /** ROUND WEED
+     * Moves the last digit towards the double while the result stays within the boundaries
+     * @return whether the digits are proven closest
+     */
+    private boolean roundWeed(long distanceTooHighW, long unsafeInterval, long rest, long tenKappa, long unit){
+        long smallDistance = distanceTooHighW - unit;
+        long bigDistance = distanceTooHighW + unit;
+        while (less(rest, smallDistance) && !less(unsafeInterval - rest, tenKappa) &&
+                (less(rest + tenKappa, smallDistance) ||
+                        !less(smallDistance - rest, rest + tenKappa - smallDistance))){
+            digits[length - 1]--;
+            rest += tenKappa;
+        }
+        if (less(rest, bigDistance) && !less(unsafeInterval - rest, tenKappa) &&
+                (less(rest + tenKappa, bigDistance) || less(rest + tenKappa - bigDistance, bigDistance - rest))){
+            return false;
+        }
+        return !less(rest, 2 * unit) && !less(unsafeInterval - 4 * unit, rest);
+    }
+
+    private static boolean less(long one, long other){
+        return Long.compareUnsigned(one, other) < 0;
+    }
+
+    /** EXACT DIGITS
+     * Fills the shortest digits of a positive finite double that read back to it, the closest ones on a tie,
+     * with value = r / s * 10^point, and the boundaries halfway to the neighbouring doubles at (r +- m) / s
+     * @return the position of the decimal point relative to the first digit
+     */
+    private int exact(double value){
+        long bits = Double.doubleToRawLongBits(value);
+        int biased = (int) (bits >>> 52) & 0x7FF;
+        long significand = biased == 0 ? bits & SIGNIFICAND_MASK : (bits & SIGNIFICAND_MASK) | HIDDEN_BIT;
+        int exponent = biased == 0 ? 1 - EXPONENT_BIAS : biased - EXPONENT_BIAS;
+
+        // The boundaries belong to the double when its significand is even, since they read back to it
+        even = (significand & 1) == 0;
+
+        // Below a power of two, the lower neighbour is twice as close
+        boolean unequal = (bits & SIGNIFICAND_MASK) == 0 && biased > 1;
+        r.set(significand);
+        if (exponent >= 0){
+            r.shiftLeft(exponent + (unequal ? 2 : 1));
+            s.set(unequal ? 4 : 2);
+            mPlus.set(1);
+            mPlus.shiftLeft(exponent + (unequal ? 1 : 0));
+            mMinus.set(1);
+            mMinus.shiftLeft(exponent);
+        } else {
+            r.shiftLeft(unequal ? 2 : 1);
+            s.set(1);
+            s.shiftLeft(-exponent + (unequal ? 2 : 1));
+            mPlus.set(unequal ? 2 : 1);
+            mMinus.set(1);
+        }
+
+        // Estimate of the decimal exponent, corrected until the upper boundary is in [0.1, 1)
+        int point = (int) Math.ceil(Math.log10(value) - 1e-10);
+        if (point >= 0){
+            s.multiplyPower10(point);
+        } else {
+            r.multiplyPower10(-point);
+            mPlus.multiplyPower10(-point);
+            mMinus.multiplyPower10(-point);
+        }
+        while (high()){
+            s.multiplyPower10(1);
+            point++;
+        }
+        while (true){
+            sum.add(r, mPlus);
+            sum.multiplyPower10(1);
+            if (even ? sum.compareTo(s) >= 0 : sum.compareTo(s) > 0) break;
+            r.multiplyPower10(1);
+            mPlus.multiplyPower10(1);
+            mMinus.multiplyPower10(1);
+            point--;
+        }
+
+        length = 0;
+        while (true){
+            r.multiplyPower10(1);
+            mPlus.multiplyPower10(1);
+            mMinus.multiplyPower10(1);
+            int digit = 0;
+            while (r.compareTo(s) >= 0){
+                r.subtract(s);
+                digit++;
+            }
+            boolean low = even ? r.compareTo(mMinus) <= 0 : r.compareTo(mMinus) < 0;
+            boolean high = high();
+            if (!low && !high){
+                digits[length++] = (byte) ('0' + digit);
+                continue;
+            }
+            if (low && high){
+                sum.add(r, r);
+                if (sum.compareTo(s) >= 0) digit++;
+            } else if (high){
+                digit++;
+            }
+            digits[length++] = (byte) ('0' + digit);
+            return point;
+        }
+    }
+
+    // Whether the upper boundary (r + m+) / s reaches 1, which it may only touch when it reads back to the double
+    private boolean high(){
+        sum.add(r, mPlus);
+        return even ? sum.compareTo(s) >= 0 : sum.compareTo(s) > 0;
+    }
+
+    /** MULTIPLY
+     * @return the upper 64 bits of the unsigned 128-bit product, rounded
+     */
+    private static long multiply(long one, long other){
+        long a = one >>> 32;
+        long b = one & 0xFFFFFFFFL;
+        long c = other >>> 32;
+        long d = other & 0xFFFFFFFFL;
+        long ac = a * c;
+        long bc = b * c;
+        long ad = a * d;
+        long bd = b * d;
+        long middle = (bd >>> 32) + (ad & 0xFFFFFFFFL) + (bc & 0xFFFFFFFFL) + (1L << 31);
+        return ac + (ad >>> 32) + (bc >>> 32) + (middle >>> 32);
+    }
+
+    /** BIG NUMBER
+     * Unsigned integer of up to 64 words of 32 bits, least significant first, large enough for any double
+     * scaled by a power of ten
+     */
+    private static final class BigNumber {
+        private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
+        private final int[] words = new int[64];
+        private int size;
+
+        void set(long value){
+            words[0] = (int) value;
+            words[1] = (int) (value >>> 32);
+            size = words[1] != 0 ? 2 : (words[0] != 0 ? 1 : 0);
+        }
+
+        void shiftLeft(int bits){
+            if (size == 0) return;
+            int wordShift = bits >>> 5;
+            int bitShift = bits & 31;
+            if (bitShift == 0){
+                System.arraycopy(words, 0, words, wordShift, size);
+            } else {
+                words[size + wordShift] = words[size - 1] >>> (32 - bitShift);
+                for (int i = size - 1; i > 0; i--){
+                    words[i + wordShift] = (words[i] << bitShift) | (words[i - 1] >>> (32 - bitShift));
+                }
+                words[wordShift] = words[0] << bitShift;
+                size++;
+            }
+            for (int i = 0; i < wordShift; i++) words[i] = 0;
+            size += wordShift;
+            if (words[size - 1] == 0) size--;
+        }
+
+        void multiplyPower10(int power){
+            while (power > 0){
+                int step = Math.min(power, 9);
+                multiply(POWERS_OF_TEN[step]);
+                power -= step;
+            }
+        }
+
+        private void multiply(int factor){
+            long carry = 0;
+            for (int i = 0; i < size; i++){
+                long product = (words[i] & 0xFFFFFFFFL) * factor + carry;
+                words[i] = (int) product;
+                carry = product >>> 32;
+            }
+            if (carry != 0) words[size++] = (int) carry;
+        }
+
+        // this = one + other
+        void add(BigNumber one, BigNumber other){
+            int length = Math.max(one.size, other.size);
+            long carry = 0;
+            for (int i = 0; i < length; i++){
+                long a = i < one.size ? one.words[i] & 0xFFFFFFFFL : 0;
+                long b = i < other.size ? other.words[i] & 0xFFFFFFFFL : 0;
+                long total = a + b + carry;
+                words[i] = (int) total;
+                carry = total >>> 32;
+            }
+            size = length;
+            if (carry != 0) words[size++] = (int) carry;
+        }
+
+        // this = this - other, with this >= other
+        void subtract(BigNumber other){
+            long borrow = 0;
+            for (int i = 0; i < size; i++){
+                long b = i < other.size ? other.words[i] & 0xFFFFFFFFL : 0;
+                long difference = (words[i] & 0xFFFFFFFFL) - b - borrow;
+                words[i] = (int) difference;
+                borrow = difference < 0 ? 1 : 0;
+            }
+            while (size > 0 && words[size - 1] == 0) size--;
+        }
+
+        int compareTo(BigNumber other){
+            if (size != other.size) return size < other.size ? -1 : 1;
+            for (int i = size - 1; i >= 0; i--){
+                if (words[i] != other.words[i]) return Integer.compareUnsigned(words[i], other.words[i]);
+            }
+            return 0;
+        }
+    }
+}
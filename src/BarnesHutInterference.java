@@ -0,0 +1,326 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+/** BARNES-HUT INTERFERENCE
+ * Approximates the interference with a quadtree built once per step over the infected and vaccinated indexes:
+ * 1. Agents that are neither infected nor vaccinated have no mass and are left out of the tree
+ * 2. A cell of side s whose closest point is at distance d from the ego is taken as a whole when s < openingAngle * d,
+ *    placing its infected, vaccinated and infected^vaccinated mass at their centres of mass
+ * 3. Any other cell is opened, and the leaves are summed exactly
+ * Every alter of an accepted cell is at a distance between dmin and dmax of the ego, so the error of the cell is at most
+ * mass * (1/(1 + dmin) - 1/(1 + dmax)). The sum of these terms is the reported error bound, relative to the
+ * locations of the agents at the start of the step
+ */
+
+public class BarnesHutInterference implements InterferenceEngine {
+    private static final int LEAF_SIZE = 8;
+    private static final int MAX_DEPTH = 32;
+
+    private double openingAngle;
+    private final DoubleAccumulator errorBound = new DoubleAccumulator(Math::max, 0.0);
+
+    // Points of the tree: infected or vaccinated agents at the start of the step
+    private int numPoints;
+    private double[] pointX = new double[0];
+    private double[] pointY = new double[0];
+    private boolean[] pointInfected = new boolean[0];
+    private boolean[] pointVaccine = new boolean[0];
+    private int[] pointOwner = new int[0];
+    private int[] order = new int[0];
+    private int[] pointOf = new int[0];
+
+    // Cells of the tree: children are stored in four consecutive cells
+    private int numCells;
+    private double[] cellX = new double[0];
+    private double[] cellY = new double[0];
+    private double[] cellSize = new double[0];
+    private int[] cellStart = new int[0];
+    private int[] cellEnd = new int[0];
+    private int[] cellChild = new int[0];
+    private double[] massInfected = new double[0];
+    private double[] massVaccine = new double[0];
+    private double[] massBoth = new double[0];
+    private double[] infectedX = new double[0];
+    private double[] infectedY = new double[0];
+    private double[] vaccineX = new double[0];
+    private double[] vaccineY = new double[0];
+    private double[] bothX = new double[0];
+    private double[] bothY = new double[0];
+
+    // Traversal stack of each thread: the agents may be stepped in parallel
+    private final ThreadLocal<int[]> stacks = ThreadLocal.withInitial(() -> new int[4 * MAX_DEPTH + 4]);
+
+    public BarnesHutInterference(double openingAngle){
+        this.openingAngle = openingAngle;
+    }
+
+    public double getErrorBound(){return errorBound.get();}
+
+    /** BUILD THE QUADTREE
+     * @param city to get the location and state of the agents at the start of the step
+     */
+    public void prepare(City city){
+        PopulationStore store = city.population;
+        BitSet infectedIndex = store.infected;
+        BitSet vaccinatedIndex = store.vaccine;
+        errorBound.reset();
+        numPoints = 0;
+        numCells = 0;
+
+        ensurePoints(store.size);
+        Arrays.fill(pointOf, -1);
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+        // Visit the union of the infected and vaccinated indexes
+        int nextInfected = infectedIndex.nextSetBit(0);
+        int nextVaccinated = vaccinatedIndex.nextSetBit(0);
+        while (nextInfected >= 0 || nextVaccinated >= 0){
+            int i;
+            if (nextVaccinated < 0 || (nextInfected >= 0 && nextInfected < nextVaccinated)){
+                i = nextInfected;
+            } else {
+                i = nextVaccinated;
+            }
+            if (nextInfected == i) nextInfected = infectedIndex.nextSetBit(i + 1);
+            if (nextVaccinated == i) nextVaccinated = vaccinatedIndex.nextSetBit(i + 1);
+
+            pointX[numPoints] = store.x[i];
+            pointY[numPoints] = store.y[i];
+            pointInfected[numPoints] = infectedIndex.get(i);
+            pointVaccine[numPoints] = vaccinatedIndex.get(i);
+            pointOwner[numPoints] = i;
+            order[numPoints] = numPoints;
+            pointOf[i] = numPoints;
+            numPoints++;
+
+            minX = Math.min(minX, store.x[i]);
+            minY = Math.min(minY, store.y[i]);
+            maxX = Math.max(maxX, store.x[i]);
+            maxY = Math.max(maxY, store.y[i]);
+        }
+
+        if (numPoints == 0) return;
+
+        // Square root cell, slightly enlarged so that no point lies on the upper boundary
+        double size = Math.max(maxX - minX, maxY - minY) * (1 + 1e-9) + 1e-9;
+        int root = newCell(minX, minY, size, 0, numPoints);
+        build(root, 0);
+    }
+
+    /** INTERFERENCE OF ONE AGENT
+     * Traverses the quadtree from the root, opening the cells that are too close to the ego
+     */
+    public void interference(City city, int ego, double[] out){
+        double contagion = city.getContagion();
+        double infectiousness = city.getInfectiousness();
+        double egoX = city.population.x[ego];
+        double egoY = city.population.y[ego];
+
+        // The ego must never be approximated as part of a cell: cells holding its own point are always opened
+        int egoPoint = pointOf[ego];
+        double ownX = egoPoint < 0 ? Double.NaN : pointX[egoPoint];
+        double ownY = egoPoint < 0 ? Double.NaN : pointY[egoPoint];
+
+        double contagionDistance = 0.0;
+        double infectiousnessDistance = 0.0;
+        double indirectInterference = 0.0;
+        double bound = 0.0;
+
+        int[] stack = stacks.get();
+        int top = 0;
+        if (numPoints > 0) stack[top++] = 0;
+
+        while (top > 0){
+            int cell = stack[--top];
+            double x0 = cellX[cell], y0 = cellY[cell], size = cellSize[cell];
+
+            double dx = Math.max(Math.max(x0 - egoX, egoX - x0 - size), 0.0);
+            double dy = Math.max(Math.max(y0 - egoY, egoY - y0 - size), 0.0);
+            double minDistance = Math.sqrt(dx * dx + dy * dy);
+
+            if (cellChild[cell] < 0){
+                for (int k = cellStart[cell]; k < cellEnd[cell]; k++){
+                    int p = order[k];
+                    if (pointOwner[p] == ego) continue;
+                    double denominator = 1 + distance(egoX, egoY, pointX[p], pointY[p]);
+                    int infected = pointInfected[p] ? 1:0;
+                    int vaccine = pointVaccine[p] ? 1:0;
+                    contagionDistance += infected / denominator;
+                    infectiousnessDistance += vaccine / denominator;
+                    if (infected == 1){
+                        indirectInterference += (contagion - vaccine * infectiousness) / denominator;
+                    }
+                }
+            } else if (minDistance > 0 && size < openingAngle * minDistance && !contains(cell, ownX, ownY)){
+                double infectedDenominator = 1 + distance(egoX, egoY, infectedX[cell], infectedY[cell]);
+                double vaccineDenominator = 1 + distance(egoX, egoY, vaccineX[cell], vaccineY[cell]);
+                double bothDenominator = 1 + distance(egoX, egoY, bothX[cell], bothY[cell]);
+
+                contagionDistance += massInfected[cell] / infectedDenominator;
+                infectiousnessDistance += massVaccine[cell] / vaccineDenominator;
+                indirectInterference += contagion * massInfected[cell] / infectedDenominator -
+                        infectiousness * massBoth[cell] / bothDenominator;
+
+                // Farthest corner of the cell
+                double fx = Math.max(Math.abs(egoX - x0), Math.abs(egoX - x0 - size));
+                double fy = Math.max(Math.abs(egoY - y0), Math.abs(egoY - y0 - size));
+                double spread = 1 / (1 + minDistance) - 1 / (1 + Math.sqrt(fx * fx + fy * fy));
+                bound += (Math.abs(contagion) * massInfected[cell] + Math.abs(infectiousness) * massBoth[cell]) * spread;
+            } else {
+                for (int c = cellChild[cell]; c < cellChild[cell] + 4; c++){
+                    if (cellEnd[c] > cellStart[c]) stack[top++] = c;
+                }
+            }
+        }
+
+        errorBound.accumulate(bound);
+
+        out[CONTAGION] = contagionDistance;
+        out[INFECTIOUSNESS] = infectiousnessDistance;
+        out[INDIRECT] = indirectInterference;
+    }
+
+    /** BUILD CELL
+     * Splits the points of the cell in four quadrants, accumulating the mass and centres of mass bottom-up
+     */
+    private void build(int cell, int depth){
+        int start = cellStart[cell], end = cellEnd[cell];
+
+        if (end - start <= LEAF_SIZE || depth >= MAX_DEPTH){
+            double mi = 0, mv = 0, mb = 0, ix = 0, iy = 0, vx = 0, vy = 0, bx = 0, by = 0;
+            for (int k = start; k < end; k++){
+                int p = order[k];
+                if (pointInfected[p]){mi++; ix += pointX[p]; iy += pointY[p];}
+                if (pointVaccine[p]){mv++; vx += pointX[p]; vy += pointY[p];}
+                if (pointInfected[p] && pointVaccine[p]){mb++; bx += pointX[p]; by += pointY[p];}
+            }
+            setMass(cell, mi, ix, iy, mv, vx, vy, mb, bx, by);
+            return;
+        }
+
+        double half = cellSize[cell] * 0.5;
+        double midX = cellX[cell] + half;
+        double midY = cellY[cell] + half;
+
+        // Partition by x, then each half by y: quadrants SW, NW, SE, NE
+        int splitX = partition(start, end, true, midX);
+        int splitLow = partition(start, splitX, false, midY);
+        int splitHigh = partition(splitX, end, false, midY);
+
+        int first = newCell(cellX[cell], cellY[cell], half, start, splitLow);
+        newCell(cellX[cell], midY, half, splitLow, splitX);
+        newCell(midX, cellY[cell], half, splitX, splitHigh);
+        newCell(midX, midY, half, splitHigh, end);
+        cellChild[cell] = first;
+
+        double mi = 0, mv = 0, mb = 0, ix = 0, iy = 0, vx = 0, vy = 0, bx = 0, by = 0;
+        for (int c = first; c < first + 4; c++){
+            if (cellEnd[c] > cellStart[c]) build(c, depth + 1);
+            mi += massInfected[c]; ix += massInfected[c] * infectedX[c]; iy += massInfected[c] * infectedY[c];
+            mv += massVaccine[c]; vx += massVaccine[c] * vaccineX[c]; vy += massVaccine[c] * vaccineY[c];
+            mb += massBoth[c]; bx += massBoth[c] * bothX[c]; by += massBoth[c] * bothY[c];
+        }
+        setMass(cell, mi, ix, iy, mv, vx, vy, mb, bx, by);
+    }
+
+    private void setMass(int cell, double mi, double ix, double iy, double mv, double vx, double vy,
+                         double mb, double bx, double by){
+        massInfected[cell] = mi;
+        massVaccine[cell] = mv;
+        massBoth[cell] = mb;
+        infectedX[cell] = mi > 0 ? ix / mi : 0;
+        infectedY[cell] = mi > 0 ? iy / mi : 0;
+        vaccineX[cell] = mv > 0 ? vx / mv : 0;
+        vaccineY[cell] = mv > 0 ? vy / mv : 0;
+        bothX[cell] = mb > 0 ? bx / mb : 0;
+        bothY[cell] = mb > 0 ? by / mb : 0;
+    }
+
+    // Moves the points below the split to the front of the range and returns the first point above it
+    private int partition(int start, int end, boolean byX, double split){
+        int i = start, j = end - 1;
+        while (i <= j){
+            double value = byX ? pointX[order[i]] : pointY[order[i]];
+            if (value < split){
+                i++;
+            } else {
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+                j--;
+            }
+        }
+        return i;
+    }
+
+    private boolean contains(int cell, double x, double y){
+        return x >= cellX[cell] && x <= cellX[cell] + cellSize[cell] &&
+                y >= cellY[cell] && y <= cellY[cell] + cellSize[cell];
+    }
+
+    private int newCell(double x, double y, double size, int start, int end){
+        if (numCells == cellX.length){
+            int capacity = Math.max(16, numCells * 2);
+            cellX = Arrays.copyOf(cellX, capacity);
+            cellY = Arrays.copyOf(cellY, capacity);
+            cellSize = Arrays.copyOf(cellSize, capacity);
+            cellStart = Arrays.copyOf(cellStart, capacity);
+            cellEnd = Arrays.copyOf(cellEnd, capacity);
+            cellChild = Arrays.copyOf(cellChild, capacity);
+            massInfected = Arrays.copyOf(massInfected, capacity);
+            massVaccine = Arrays.copyOf(massVaccine, capacity);
+            massBoth = Arrays.copyOf(massBoth, capacity);
+            infectedX = Arrays.copyOf(infectedX, capacity);
+            infectedY = Arrays.copyOf(infectedY, capacity);
+            vaccineX = Arrays.copyOf(vaccineX, capacity);
+            vaccineY = Arrays.copyOf(vaccineY, capacity);
+            bothX = Arrays.copyOf(bothX, capacity);
+            bothY = Arrays.copyOf(bothY, capacity);
+        }
+        cellX[numCells] = x;
+        cellY[numCells] = y;
+        cellSize[numCells] = size;
+        cellStart[numCells] = start;
+        cellEnd[numCells] = end;
+        cellChild[numCells] = -1;
+        massInfected[numCells] = 0;
+        massVaccine[numCells] = 0;
+        massBoth[numCells] = 0;
+        return numCells++;
+    }
+
+    private void ensurePoints(int capacity){
+        if (pointX.length >= capacity) return;
+        pointX = new double[capacity];
+        pointY = new double[capacity];
+        pointInfected = new boolean[capacity];
+        pointVaccine = new boolean[capacity];
+        pointOwner = new int[capacity];
+        order = new int[capacity];
+        pointOf = new int[capacity];
+    }
+
+    private static double distance(double x0, double y0, double x1, double y1){
+        double x = x1 - x0;
+        double y = y1 - y0;
+        return Math.sqrt(x*x + y*y);
+    }
+}
@@ -0,0 +1,298 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** BENCHMARKS
+ * Measures the hot paths of the model over a grid of population sizes, infection prevalences and interference
+ * engines, and writes the results as JSON, in the format of JMH, to track regressions:
+ * 1. interference: Patient.addIndirectInterference of one agent
+ * 2. defineNetwork: Patient.defineNetwork of one agent
+ * 3. actualiseLocation: Patient.actualiseLocation of one agent
+ * 4. step: a full Schedule.step of the City
+ * 5. writeStep: Utils.writeStep of the whole population, with synchronous output to a file of its own, created
+ *    again before each iteration, while the City itself has no output
+ * 6. start: City.start, from the parameters to the first step
+ * Each benchmark is warmed up and then measured over several iterations, each one repeating the operation for at
+ * least the iteration time; the score is the mean time per operation, with the half-width of its 99.9%
+ * confidence interval as the error
+ * Usage: java Benchmarks [-agents 200,1000,10000,100000] [-prevalence 0.01,0.1,0.5] [-interference 0]
+ *        [-benchmarks interference,step] [-warmup 3] [-iterations 5] [-time ms] [-output file]
+ */
+
+public class Benchmarks {
+    private static final String DIRECTORY = "output";
+    private static final String WRITE_STEP_FILE = "benchmark-writeStep.csv";
+    private static final String[] BENCHMARKS = {"interference", "defineNetwork", "actualiseLocation", "step", "writeStep", "start"};
+
+    // Two-sided 99.9% quantiles of the Student t distribution, by degrees of freedom
+    private static final double[] T_999 = {Double.NaN, 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041,
+            4.781, 4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850};
+
+    private final int warmup;
+    private final int iterations;
+    private final long iterationNanos;
+
+    /** BENCHMARKS CONSTRUCTOR
+     * @param warmup number of iterations before the measurement
+     * @param iterations number of measured iterations
+     * @param iterationMillis minimum time of each iteration
+     */
+    public Benchmarks(int warmup, int iterations, long iterationMillis){
+        this.warmup = warmup;
+        this.iterations = Math.max(1, iterations);
+        this.iterationNanos = iterationMillis * 1000000L;
+    }
+
+    /** OPERATION
+     * One call of the measured code
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    /** RESULT
+     * The measurement of one benchmark at one point of the grid
+     */
+    private static class Result {
+        String benchmark;
+        int agents;
+        double prevalence;
+        int interference;
+        double[] nanosPerOperation;
+        double score;
+        double error;
+    }
+
+    /** CITY OF A BENCHMARK
+     * Started, with a share of prevalence of the agents infected
+     */
+    private static City city(int agents, double prevalence, int interference, int outputMode){
+        City city = new City(1);
+        city.setNumPatients(agents);
+        city.setInterferenceMode(interference);
+        city.setOutputMode(outputMode);
+        city.setFileName("benchmark.csv");
+        city.earlyGUIStop = Integer.MAX_VALUE;
+        city.start();
+        infect(city, prevalence);
+        city.getInterferenceEngine().prepare(city);
+        return city;
+    }
+
+    private static void infect(City city, double prevalence){
+        for (int i = 0; i < city.population.size; i++){
+            city.population.setInfected(i, city.random.nextDouble() < prevalence);
+        }
+    }
+
+    /** RUN ONE BENCHMARK
+     * @return the measurement of the benchmark at the given point of the grid
+     */
+    private Result run(String benchmark, int agents, double prevalence, int interference) throws Exception {
+        City city = city(agents, prevalence, interference,
+                benchmark.equals("writeStep") ? City.OUTPUT_NONE : City.OUTPUT_ASYNCHRONOUS);
+        int[] next = new int[1];
+        Utils[] output = new Utils[1];
+        Operation operation;
+        Operation setup = null;
+
+        switch (benchmark){
+            case "interference":
+                operation = () -> city.patients[next[0]++ % agents].addIndirectInterference(city);
+                break;
+            case "defineNetwork":
+                operation = () -> city.patients[next[0]++ % agents].defineNetwork(city);
+                break;
+            case "actualiseLocation":
+                operation = () -> city.patients[next[0]++ % agents].actualiseLocation(city);
+                break;
+            case "step":
+                operation = () -> city.schedule.step(city);
+                break;
+            case "writeStep":
+                setup = () -> {
+                    if (output[0] != null) output[0].close();
+                    output[0] = output(city);
+                };
+                operation = () -> output[0].writeStep(city);
+                break;
+            case "start":
+                operation = () -> {
+                    city.finish();
+                    city.start();
+                    infect(city, prevalence);
+                };
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown benchmark " + benchmark);
+        }
+
+        try {
+            for (int i = 0; i < warmup; i++){
+                iteration(setup, operation);
+            }
+            Result result = new Result();
+            result.benchmark = benchmark;
+            result.agents = agents;
+            result.prevalence = prevalence;
+            result.interference = interference;
+            result.nanosPerOperation = new double[iterations];
+            for (int i = 0; i < iterations; i++){
+                result.nanosPerOperation[i] = iteration(setup, operation);
+            }
+            summarise(result);
+            return result;
+        } finally {
+            if (output[0] != null) output[0].close();
+            city.finish();
+        }
+    }
+
+    /** MEASURED OUTPUT
+     * Synchronous output of the City to a file of its own, which is truncated when it is created
+     * The City keeps its output mode none, so that its own steps write nothing
+     */
+    private static Utils output(City city) throws Exception {
+        String fileName = city.getFileNameHash();
+        city.setOutputMode(City.OUTPUT_SYNCHRONOUS);
+        city.setFileName(WRITE_STEP_FILE);
+        try {
+            return new Utils(city);
+        } finally {
+            city.setOutputMode(City.OUTPUT_NONE);
+            city.setFileName(fileName);
+        }
+    }
+
+    /** ITERATION
+     * Repeats the operation until the iteration time has passed, at least once
+     * @param setup run before the iteration and not measured, or null
+     * @return the mean nanoseconds per operation
+     */
+    private double iteration(Operation setup, Operation operation) throws Exception {
+        if (setup != null) setup.run();
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            operation.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return (double) elapsed / operations;
+    }
+
+    private static void summarise(Result result){
+        double[] values = result.nanosPerOperation;
+        double sum = 0;
+        for (double value : values) sum += value;
+        result.score = sum / values.length;
+
+        if (values.length < 2){
+            result.error = Double.NaN;
+            return;
+        }
+        double squares = 0;
+        for (double value : values) squares += (value - result.score) * (value - result.score);
+        double deviation = Math.sqrt(squares / (values.length - 1));
+        int freedom = values.length - 1;
+        double t = freedom < T_999.length ? T_999[freedom] : 3.291;
+        result.error = t * deviation / Math.sqrt(values.length);
+    }
+
+    /** JSON
+     * Writes the results in the format of JMH, with the score in nanoseconds per operation
+     */
+    private void write(List<Result> results, File file) throws IOException {
+        try (Writer json = new FileWriter(file)){
+            json.write("[\n");
+            for (int r = 0; r < results.size(); r++){
+                Result result = results.get(r);
+                json.write("    {\n");
+                json.write("        \"benchmark\" : \"Benchmarks." + result.benchmark + "\",\n");
+                json.write("        \"mode\" : \"avgt\",\n");
+                json.write("        \"threads\" : 1,\n");
+                json.write("        \"forks\" : 0,\n");
+                json.write("        \"warmupIterations\" : " + warmup + ",\n");
+                json.write("        \"measurementIterations\" : " + iterations + ",\n");
+                json.write("        \"measurementTime\" : \"" + iterationNanos / 1000000L + " ms\",\n");
+                json.write("        \"params\" : {\n");
+                json.write("            \"agents\" : \"" + result.agents + "\",\n");
+                json.write("            \"prevalence\" : \"" + result.prevalence + "\",\n");
+                json.write("            \"interferenceMode\" : \"" + result.interference + "\"\n");
+                json.write("        },\n");
+                json.write("        \"primaryMetric\" : {\n");
+                json.write("            \"score\" : " + number(result.score) + ",\n");
+                json.write("            \"scoreError\" : " + number(result.error) + ",\n");
+                json.write("            \"scoreUnit\" : \"ns/op\",\n");
+                json.write("            \"rawData\" : [\n                [\n");
+                for (int i = 0; i < result.nanosPerOperation.length; i++){
+                    json.write("                    " + number(result.nanosPerOperation[i]) +
+                            (i < result.nanosPerOperation.length - 1 ? ",\n" : "\n"));
+                }
+                json.write("                ]\n            ]\n        }\n");
+                json.write(r < results.size() - 1 ? "    },\n" : "    }\n");
+            }
+            json.write("]\n");
+        }
+    }
+
+    // JSON has no NaN
+    private static String number(double value){
+        return Double.isNaN(value) || Double.isInfinite(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] agents = Arguments.value(args, "-agents", "200,1000,10000,100000").split(",");
+        String[] prevalences = Arguments.value(args, "-prevalence", "0.01,0.1,0.5").split(",");
+        String[] interferences =
+                Arguments.value(args, "-interference", String.valueOf(City.INTERFERENCE_EXACT)).split(",");
+        String[] benchmarks = Arguments.value(args, "-benchmarks", String.join(",", BENCHMARKS)).split(",");
+        Benchmarks harness = new Benchmarks(Integer.parseInt(Arguments.value(args, "-warmup", "3")),
+                Integer.parseInt(Arguments.value(args, "-iterations", "5")),
+                Long.parseLong(Arguments.value(args, "-time", "1000")));
+        new File(DIRECTORY).mkdirs();
+        File file = new File(Arguments.value(args, "-output", DIRECTORY + File.separator + "benchmarks.json"));
+
+        List<Result> results = new ArrayList<>();
+        System.out.println(String.format(Locale.ROOT, "%-18s %8s %10s %6s %16s %14s",
+                "benchmark", "agents", "prevalence", "mode", "score ns/op", "error"));
+        for (String benchmark : benchmarks){
+            for (String n : agents){
+                for (String prevalence : prevalences){
+                    for (String interference : interferences){
+                        Result result = harness.run(benchmark, Integer.parseInt(n), Double.parseDouble(prevalence),
+                                Integer.parseInt(interference));
+                        results.add(result);
+                        System.out.println(String.format(Locale.ROOT, "%-18s %8d %10s %6d %16.1f %14.1f",
+                                benchmark, result.agents, prevalence, result.interference, result.score, result.error));
+                        harness.write(results, file);
+                    }
+                }
+            }
+        }
+        System.out.println("Results written to " + file);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,162 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/** BINARY PANEL CONVERTER
+ * Converts the file of a run between the csv format and the binary format:
+ * 1. CSV TO BINARY: the rows of each step must be together, and the csv file has no seed, so it is taken from the
+ *    -seed argument
+ * 2. BINARY TO CSV: every step, or only the one of the -step argument, with the same header lines as the file of
+ *    the run; the steps and agents without records are left out
+ * Usage: java BinaryPanelConverter output/<file>.csv [-seed n] [-to path]
+ *        java BinaryPanelConverter output/<file>.bin [-step n] [-to path]
+ * By default the binary file is written to output/<file>.bin, and the csv file to output/<file>_panel.csv
+ */
+
+public class BinaryPanelConverter {
+    private static final String AGENT_PREFIX = "Patient_";
+    private static final String STOP_REASON = ",stopReason=";
+    private static final String STOP_STEP = ",stopStep=";
+
+    private BinaryPanelConverter(){}
+
+    /** CSV TO BINARY
+     * @param csv path of the file of a run
+     * @param binary path of the binary file
+     * @param seed of the run
+     * @return the number of steps written
+     */
+    public static long toBinary(Path csv, Path binary, long seed) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.US_ASCII)){
+            String header = reader.readLine();
+            reader.readLine();
+            if (header == null) throw new IOException("No header in " + csv);
+
+            // The stop fields of the header go to the fixed part of the binary header
+            String parameters = header;
+            String reason = "";
+            long stopStep = -1;
+            int reasonAt = header.indexOf(STOP_REASON);
+            int stepAt = header.indexOf(STOP_STEP);
+            if (reasonAt >= 0 && stepAt > reasonAt){
+                parameters = header.substring(0, reasonAt);
+                reason = header.substring(reasonAt + STOP_REASON.length(), stepAt).trim();
+                String step = header.substring(stepAt + STOP_STEP.length()).trim();
+                if (!step.isEmpty()) stopStep = Long.parseLong(step);
+            }
+
+            // The number of agents is the first field of the header: numPatients=<n>
+            int size = Integer.parseInt(parameters.substring(parameters.indexOf('=') + 1, parameters.indexOf(',')));
+            BinaryPanelWriter writer = new BinaryPanelWriter(binary, parameters, seed, size);
+            PopulationStore store = new PopulationStore(size);
+            StepSnapshot snapshot = new StepSnapshot();
+            int[] agents = new int[size];
+            int count = 0;
+            long steps = 0;
+            try {
+                long current = Long.MIN_VALUE;
+                String line;
+                while ((line = reader.readLine()) != null){
+                    if (line.isEmpty()) continue;
+                    String[] row = line.split(",");
+                    long step = Long.parseLong(row[0]);
+                    if (step != current){
+                        if (current != Long.MIN_VALUE){
+                            snapshot.capture(current, store, Arrays.copyOf(agents, count));
+                            writer.write(snapshot);
+                            steps++;
+                        }
+                        current = step;
+                        count = 0;
+                    }
+                    int i = Integer.parseInt(row[1].substring(AGENT_PREFIX.length()));
+                    agents[count++] = i;
+                    store.sex.set(i, Boolean.parseBoolean(row[2]));
+                    store.setVaccine(i, Boolean.parseBoolean(row[3]));
+                    store.setInfected(i, Boolean.parseBoolean(row[4]));
+                    store.degree[i] = Integer.parseInt(row[5]);
+                    store.contagionDistance[i] = Double.parseDouble(row[6]);
+                    store.infectiousnessDistance[i] = Double.parseDouble(row[7]);
+                    store.indirectInterference[i] = Double.parseDouble(row[8]);
+                }
+                if (current != Long.MIN_VALUE){
+                    snapshot.capture(current, store, Arrays.copyOf(agents, count));
+                    writer.write(snapshot);
+                    steps++;
+                }
+                if (stopStep >= 0 || !reason.isEmpty()) writer.writeStop(reason, stopStep);
+            } finally {
+                writer.close();
+            }
+            return steps;
+        }
+    }
+
+    /** BINARY TO CSV
+     * @param binary path of the binary file
+     * @param csv path of the csv file
+     * @param step the only step written, or a negative value for every step of the file
+     * @return the number of steps written
+     */
+    public static long toCsv(Path binary, Path csv, long step) throws IOException {
+        BinaryPanelReader reader = new BinaryPanelReader(binary);
+        StepWriter writer = new StepWriter(csv, false);
+        StepSnapshot snapshot = new StepSnapshot();
+        long first = step >= 0 ? step : reader.getFirstStep();
+        long last = step >= 0 ? step : reader.getLastStep();
+        try {
+            long stopStep = reader.getStopStep();
+            writer.line(Utils.headerLine(reader.getParameters(), reader.getStopReason(),
+                    stopStep < 0 ? "" : String.valueOf(stopStep)));
+            writer.line(Utils.COLUMNS);
+            long steps = 0;
+            for (long s = first; s <= last; s++){
+                int[] agents = reader.writtenAgents(s);
+                if (agents.length == 0) continue;
+                snapshot.capture(s, reader.readStep(s), agents.length == reader.getAgents() ? null : agents);
+                snapshot.write(writer);
+                steps++;
+            }
+            return steps;
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path input = Paths.get(args[0]);
+        String name = input.getFileName().toString();
+
+        if (name.endsWith(BinaryPanelWriter.SUFFIX)){
+            name = name.substring(0, name.length() - BinaryPanelWriter.SUFFIX.length());
+            Path output = Paths.get(Arguments.value(args, "-to", input.resolveSibling(name + "_panel.csv").toString()));
+            long steps = toCsv(input, output, Long.parseLong(Arguments.value(args, "-step", "-1")));
+            System.out.println(steps + " steps written to " + output);
+        } else {
+            Path output = Paths.get(Arguments.value(args, "-to", BinaryPanelWriter.binaryPath(input).toString()));
+            long steps = toBinary(input, output, Long.parseLong(Arguments.value(args, "-seed", "0")));
+            System.out.println(steps + " steps written to " + output);
+        }
+    }
+}
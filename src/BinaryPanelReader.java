@@ -0,0 +1,192 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/** BINARY PANEL READER
+ * Maps a file written by a BinaryPanelWriter into memory, read-only:
+ * 1. The records are mapped in chunks of whole steps, each of them smaller than 2 GB
+ * 2. The record of any (step, agent) is found by its offset, without reading the steps before it
+ * 3. A step slice is copied into a PopulationStore, without the locations of the agents
+ * Records left out by the output plan of the run are not written: hasRecord() tells them apart
+ * The file can be closed as soon as the reader is created: the mappings stay valid
+ */
+
+public class BinaryPanelReader {
+    private final int agents;
+    private final long seed;
+    private final long firstStep;
+    private final long steps;
+    private final long stopStep;
+    private final String stopReason;
+    private final String parameters;
+    private final String schema;
+
+    private final MappedByteBuffer[] chunks;
+    private final int stepsPerChunk;
+    private final int stepBytes;
+
+    /** BINARY PANEL READER CONSTRUCTOR
+     * @param path of the binary file
+     */
+    public BinaryPanelReader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            if (channel.size() < BinaryPanelWriter.TEXT_OFFSET) throw new IOException("No header in " + path);
+            MappedByteBuffer fixed = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryPanelWriter.TEXT_OFFSET);
+            fixed.order(BinaryPanelWriter.ORDER);
+
+            byte[] magic = new byte[BinaryPanelWriter.MAGIC.length];
+            fixed.get(magic);
+            if (!Arrays.equals(magic, BinaryPanelWriter.MAGIC)) throw new IOException("Not a binary panel: " + path);
+            int version = fixed.getInt(BinaryPanelWriter.VERSION_OFFSET);
+            if (version != BinaryPanelWriter.VERSION) throw new IOException("Unknown version " + version + " of " + path);
+            int recordBytes = fixed.getInt(BinaryPanelWriter.RECORD_BYTES_OFFSET);
+            if (recordBytes != BinaryPanelWriter.RECORD_BYTES) throw new IOException("Unknown record size " + recordBytes);
+
+            int headerBytes = fixed.getInt(BinaryPanelWriter.HEADER_BYTES_OFFSET);
+            agents = fixed.getInt(BinaryPanelWriter.AGENTS_OFFSET);
+            seed = fixed.getLong(BinaryPanelWriter.SEED_OFFSET);
+            firstStep = fixed.getLong(BinaryPanelWriter.FIRST_STEP_OFFSET);
+            steps = fixed.getLong(BinaryPanelWriter.STEPS_OFFSET);
+            stopStep = fixed.getLong(BinaryPanelWriter.STOP_STEP_OFFSET);
+            byte[] reason = new byte[BinaryPanelWriter.STOP_REASON_WIDTH];
+            fixed.position(BinaryPanelWriter.STOP_REASON_OFFSET);
+            fixed.get(reason);
+            stopReason = new String(reason, StandardCharsets.US_ASCII).trim();
+
+            // Text part: one key=value per line
+            byte[] text = new byte[fixed.getInt(BinaryPanelWriter.TEXT_LENGTH_OFFSET)];
+            MappedByteBuffer textBuffer = channel.map(FileChannel.MapMode.READ_ONLY, BinaryPanelWriter.TEXT_OFFSET, text.length);
+            textBuffer.get(text);
+            String[] lines = new String(text, StandardCharsets.UTF_8).split("\n");
+            parameters = value(lines, "parameters");
+            schema = value(lines, "schema");
+
+            long size = (long) agents * recordBytes;
+            if (size > Integer.MAX_VALUE) throw new IOException("Steps of " + agents + " agents are too large to map");
+            stepBytes = (int) size;
+            if (channel.size() < headerBytes + steps * stepBytes) throw new IOException("Truncated file " + path);
+
+            // Chunks of whole steps, so that a step slice is never split between two mappings
+            stepsPerChunk = stepBytes == 0 ? 1 : Math.max(1, Integer.MAX_VALUE / stepBytes);
+            chunks = new MappedByteBuffer[(int) ((steps + stepsPerChunk - 1) / stepsPerChunk)];
+            for (int c = 0; c < chunks.length; c++){
+                long stepsOfChunk = Math.min(stepsPerChunk, steps - (long) c * stepsPerChunk);
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        headerBytes + (long) c * stepsPerChunk * stepBytes, stepsOfChunk * stepBytes);
+                chunks[c].order(BinaryPanelWriter.ORDER);
+            }
+        }
+    }
+
+    private static String value(String[] lines, String key){
+        for (String line : lines){
+            if (line.startsWith(key + "=")) return line.substring(key.length() + 1);
+        }
+        return "";
+    }
+
+    public int getAgents(){return agents;}
+    public long getSeed(){return seed;}
+    public long getFirstStep(){return firstStep;}
+    public long getLastStep(){return firstStep + steps - 1;}
+    public long getSteps(){return steps;}
+    public long getStopStep(){return stopStep;}
+    public String getStopReason(){return stopReason;}
+    public String getParameters(){return parameters;}
+    public String getSchema(){return schema;}
+
+    /** CELLS
+     * The value of one agent at one step, read from its record
+     */
+    public boolean hasRecord(long step, int agent){return (flags(step, agent) & BinaryPanelWriter.WRITTEN_FLAG) != 0;}
+    public boolean getSex(long step, int agent){return (flags(step, agent) & BinaryPanelWriter.SEX_FLAG) != 0;}
+    public boolean getVaccine(long step, int agent){return (flags(step, agent) & BinaryPanelWriter.VACCINE_FLAG) != 0;}
+    public boolean getInfected(long step, int agent){return (flags(step, agent) & BinaryPanelWriter.INFECTION_FLAG) != 0;}
+    public int getDegree(long step, int agent){
+        return chunk(step).getInt(record(step, agent) + BinaryPanelWriter.DEGREE);
+    }
+    public double getContagionDistance(long step, int agent){
+        return chunk(step).getDouble(record(step, agent) + BinaryPanelWriter.CONTAGION);
+    }
+    public double getInfectiousnessDistance(long step, int agent){
+        return chunk(step).getDouble(record(step, agent) + BinaryPanelWriter.INFECTIOUSNESS);
+    }
+    public double getIndirectInterference(long step, int agent){
+        return chunk(step).getDouble(record(step, agent) + BinaryPanelWriter.INDIRECT);
+    }
+
+    /** STEP SLICE
+     * @param step between the first and the last step of the file
+     * @return a store with the state of the agents at the step, without their locations
+     */
+    public PopulationStore readStep(long step){
+        PopulationStore store = new PopulationStore(agents);
+        ByteBuffer chunk = chunk(step);
+        int record = record(step, 0);
+        for (int i = 0; i < agents; i++, record += BinaryPanelWriter.RECORD_BYTES){
+            int flags = chunk.get(record + BinaryPanelWriter.FLAGS);
+            store.sex.set(i, (flags & BinaryPanelWriter.SEX_FLAG) != 0);
+            store.setVaccine(i, (flags & BinaryPanelWriter.VACCINE_FLAG) != 0);
+            store.setInfected(i, (flags & BinaryPanelWriter.INFECTION_FLAG) != 0);
+            store.degree[i] = chunk.getInt(record + BinaryPanelWriter.DEGREE);
+            store.contagionDistance[i] = chunk.getDouble(record + BinaryPanelWriter.CONTAGION);
+            store.infectiousnessDistance[i] = chunk.getDouble(record + BinaryPanelWriter.INFECTIOUSNESS);
+            store.indirectInterference[i] = chunk.getDouble(record + BinaryPanelWriter.INDIRECT);
+        }
+        return store;
+    }
+
+    /** WRITTEN AGENTS
+     * @param step between the first and the last step of the file
+     * @return the ids of the agents with a record at the step, in increasing order
+     */
+    public int[] writtenAgents(long step){
+        ByteBuffer chunk = chunk(step);
+        int record = record(step, 0);
+        int[] written = new int[agents];
+        int count = 0;
+        for (int i = 0; i < agents; i++, record += BinaryPanelWriter.RECORD_BYTES){
+            if ((chunk.get(record + BinaryPanelWriter.FLAGS) & BinaryPanelWriter.WRITTEN_FLAG) != 0) written[count++] = i;
+        }
+        return Arrays.copyOf(written, count);
+    }
+
+    private int flags(long step, int agent){
+        return chunk(step).get(record(step, agent) + BinaryPanelWriter.FLAGS);
+    }
+
+    private ByteBuffer chunk(long step){
+        if (step < firstStep || step > getLastStep()){
+            throw new IllegalArgumentException("Step " + step + " is not in the file");
+        }
+        return chunks[(int) ((step - firstStep) / stepsPerChunk)];
+    }
+
+    // Offset of the record in the chunk of its step
+    private int record(long step, int agent){
+        if (agent < 0 || agent >= agents) throw new IllegalArgumentException("Agent " + agent + " is not in the file");
+        return (int) ((step - firstStep) % stepsPerChunk) * stepBytes + agent * BinaryPanelWriter.RECORD_BYTES;
+    }
+}
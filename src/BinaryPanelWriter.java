@@ -0,0 +1,209 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** BINARY PANEL WRITER
+ * Writes the state of every agent at each step to a binary file of fixed-size records, mapped into memory:
+ * 1. HEADER: a fixed part with the magic, version, size of the header, number of agents, size of a record, seed,
+ *    first step, number of steps, and the step and reason of the stop, followed by a text part with the
+ *    parameters of the run and the schema of a record
+ * 2. RECORDS: one per agent and step, step-major, so that the record of (step, agent) is at
+ *    headerBytes + ((step - firstStep) * agents + agent) * RECORD_BYTES
+ * Each step is put together in a direct buffer kept by the writer and written at its place, so that no buffer is
+ * allocated at each step, and the number of steps of the header is updated after it
+ * Steps or agents left out by the output plan keep records of zeros, without the written flag
+ * All the values are little-endian; the file is read by a BinaryPanelReader
+ */
+
+public class BinaryPanelWriter {
+    public static final String SUFFIX = ".bin";
+    public static final int VERSION = 1;
+    public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    static final byte[] MAGIC = "CITYPANL".getBytes(StandardCharsets.US_ASCII);
+
+    // Fixed part of the header
+    static final int VERSION_OFFSET = 8;
+    static final int HEADER_BYTES_OFFSET = 12;
+    static final int AGENTS_OFFSET = 16;
+    static final int RECORD_BYTES_OFFSET = 20;
+    static final int SEED_OFFSET = 24;
+    static final int FIRST_STEP_OFFSET = 32;
+    static final int STEPS_OFFSET = 40;
+    static final int STOP_STEP_OFFSET = 48;
+    static final int STOP_REASON_OFFSET = 56;
+    static final int STOP_REASON_WIDTH = 16;
+    static final int TEXT_LENGTH_OFFSET = 72;
+    static final int TEXT_OFFSET = 76;
+
+    // Records: the header is padded to a multiple of the record, so that the doubles are aligned
+    public static final int RECORD_BYTES = 32;
+    static final int FLAGS = 0;
+    static final int DEGREE = 4;
+    static final int CONTAGION = 8;
+    static final int INFECTIOUSNESS = 16;
+    static final int INDIRECT = 24;
+    static final int SEX_FLAG = 1;
+    static final int VACCINE_FLAG = 2;
+    static final int INFECTION_FLAG = 4;
+    static final int WRITTEN_FLAG = 8;
+    public static final String SCHEMA = "flags:uint8@0(sex=1,vaccine=2,infection=4,written=8);degree:int32@4;" +
+            "contagionDist:float64@8;infectiousnessDist:float64@16;indInterference:float64@24";
+
+    private final Path path;
+    private final int agents;
+    private final int headerBytes;
+    private final MappedByteBuffer header;
+    private final ByteBuffer records;
+    private FileChannel channel;
+
+    private long firstStep = -1;
+    private long steps;
+    private long rows;
+
+    /** BINARY PANEL WRITER CONSTRUCTOR
+     * Creates the file and writes its header, without any step
+     * @param path of the file
+     * @param parameters of the run, as in the first header line of the csv file
+     * @param seed of the run
+     * @param agents number of agents of each step
+     */
+    public BinaryPanelWriter(Path path, String parameters, long seed, int agents) throws IOException {
+        this.path = path;
+        this.agents = agents;
+        byte[] text = ("parameters=" + parameters + "\nschema=" + SCHEMA + "\n").getBytes(StandardCharsets.UTF_8);
+        headerBytes = (TEXT_OFFSET + text.length + RECORD_BYTES - 1) / RECORD_BYTES * RECORD_BYTES;
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes);
+        header.order(ORDER);
+        header.put(MAGIC);
+        header.putInt(VERSION_OFFSET, VERSION);
+        header.putInt(HEADER_BYTES_OFFSET, headerBytes);
+        header.putInt(AGENTS_OFFSET, agents);
+        header.putInt(RECORD_BYTES_OFFSET, RECORD_BYTES);
+        header.putLong(SEED_OFFSET, seed);
+        header.putLong(FIRST_STEP_OFFSET, firstStep);
+        header.putLong(STEPS_OFFSET, steps);
+        header.putLong(STOP_STEP_OFFSET, -1);
+        putReason("");
+        header.putInt(TEXT_LENGTH_OFFSET, text.length);
+        header.position(TEXT_OFFSET);
+        header.put(text);
+        records = ByteBuffer.allocateDirect(agents * RECORD_BYTES).order(ORDER);
+    }
+
+    /** BINARY PATH
+     * @param panel path of the csv file of a run
+     * @return the path of its binary file: the same name with the .bin extension
+     */
+    public static Path binaryPath(Path panel){
+        String name = panel.getFileName().toString();
+        if (name.endsWith(".csv")) name = name.substring(0, name.length() - 4);
+        return panel.resolveSibling(name + SUFFIX);
+    }
+
+    public long getRows(){return rows;}
+    public long getBytes(){return headerBytes + steps * agents * RECORD_BYTES;}
+
+    /** FIRST STEP
+     * Sets the first step of the file, when it is not the first step written
+     * @param step of the simulation, before any step is written
+     */
+    public void setFirstStep(long step){
+        if (firstStep >= 0) return;
+        firstStep = step;
+        header.putLong(FIRST_STEP_OFFSET, firstStep);
+    }
+
+    /** WRITE A STEP
+     * The first step written is the first step of the file, unless it was set before; a step written again
+     * replaces the records of its agents
+     * @param snapshot of the step, with every agent or a sample of them
+     */
+    public void write(StepSnapshot snapshot) throws IOException {
+        long step = snapshot.getStep();
+        setFirstStep(step);
+        if (step < firstStep) throw new IOException("Step " + step + " is before the first step " + firstStep);
+
+        // After close() the step is written with a channel of its own
+        boolean reopened = channel == null;
+        if (reopened) channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long offset = headerBytes + (step - firstStep) * records.capacity();
+            records.clear();
+            if (step - firstStep < steps){
+                // A step written again keeps the records of the agents that are not in the snapshot
+                while (records.hasRemaining() && channel.read(records, offset + records.position()) >= 0);
+            } else if (snapshot.getSize() < agents){
+                while (records.remaining() >= Long.BYTES) records.putLong(0L);
+            }
+            for (int k = 0; k < snapshot.getSize(); k++){
+                int record = snapshot.getAgent(k) * RECORD_BYTES;
+                int flags = WRITTEN_FLAG | (snapshot.getSex(k) ? SEX_FLAG : 0) |
+                        (snapshot.getVaccine(k) ? VACCINE_FLAG : 0) | (snapshot.getInfected(k) ? INFECTION_FLAG : 0);
+                records.put(record + FLAGS, (byte) flags);
+                records.putInt(record + DEGREE, snapshot.getDegree(k));
+                records.putDouble(record + CONTAGION, snapshot.getContagionDistance(k));
+                records.putDouble(record + INFECTIOUSNESS, snapshot.getInfectiousnessDistance(k));
+                records.putDouble(record + INDIRECT, snapshot.getIndirectInterference(k));
+            }
+            records.clear();
+            while (records.hasRemaining()) channel.write(records, offset + records.position());
+        } finally {
+            if (reopened) close();
+        }
+        rows += snapshot.getSize();
+        steps = Math.max(steps, step - firstStep + 1);
+        header.putLong(STEPS_OFFSET, steps);
+    }
+
+    /** CLOSE
+     * Writes the header to the file and closes it
+     */
+    public void close() throws IOException {
+        if (channel == null) return;
+        header.force();
+        channel.close();
+        channel = null;
+    }
+
+    /** WRITE STOP
+     * @param reason why the run stopped, cut to 16 characters
+     * @param step last step of the run
+     */
+    public void writeStop(String reason, long step){
+        header.putLong(STOP_STEP_OFFSET, step);
+        putReason(reason);
+        header.force();
+    }
+
+    // Left-aligned in a field of spaces, cut to its width
+    private void putReason(String reason){
+        for (int i = 0; i < STOP_REASON_WIDTH; i++){
+            header.put(STOP_REASON_OFFSET + i, (byte) (i < reason.length() ? reason.charAt(i) : ' '));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import sim.engine.SimState;
+import sim.engine.Steppable;
+import sim.util.Bag;
+import sim.util.Heap;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** BULK STEPPER
+ * Steps the whole population under a single entry of the schedule, instead of one repeating entry per agent:
+ * 1. The interference engine is prepared
+ * 2. Every agent is stepped, one by one, in the order given by bulkOrder
+ * 3. The state is saved every outputInterval steps
+ * Orders:
+ * 1. SCHEDULE-COMPATIBLE: replays the heap and the shuffles of the asynchronous schedule, so the random number
+ *    generator is consumed in the same order and the results are the same as in the asynchronous mode
+ * 2. SHUFFLED: a permutation of the agents reused between steps and shuffled once per step
+ * 3. FIXED: the agents in id order, with no draws at all
+ */
+
+public class BulkStepper implements Steppable {
+    public static final int ORDER_COMPATIBLE = 0;
+    public static final int ORDER_SHUFFLED = 1;
+    public static final int ORDER_FIXED = 2;
+
+    private final Steppable[] agents;
+    private final Steppable prepare;
+    private final Steppable output;
+    private final int outputInterval;
+    private final int order;
+
+    // SHUFFLED and FIXED: reusable permutation of the agents
+    private final int[] permutation;
+    private long step;
+
+    // SCHEDULE-COMPATIBLE: a copy of the heap of the schedule, with one reusable key per entry
+    private Heap queue = new Heap();
+    private final List<Entry> entries = new ArrayList<>();
+    private final Bag substeps = new Bag();
+    private final Bag currentSteps = new Bag();
+
+    /** BULK STEPPER CONSTRUCTOR
+     * The entries are added in the same order as the asynchronous mode adds them to the schedule
+     * @param agents to step at each step
+     * @param prepare steppable of the interference engine, stepped before the agents
+     * @param output steppable that saves the state, or null
+     * @param outputInterval number of steps between two outputs
+     * @param order ORDER_COMPATIBLE, ORDER_SHUFFLED or ORDER_FIXED
+     */
+    public BulkStepper(Steppable[] agents, Steppable prepare, Steppable output, int outputInterval, int order){
+        this.agents = agents;
+        this.prepare = prepare;
+        this.output = output;
+        this.outputInterval = Math.max(1, outputInterval);
+        this.order = order;
+
+        permutation = new int[agents.length];
+        for (int i = 0; i < permutation.length; i++){
+            permutation[i] = i;
+        }
+
+        if (order == ORDER_COMPATIBLE){
+            for (Steppable agent : agents){
+                add(agent, 0, 1.0);
+            }
+            add(prepare, -1, 1.0);
+            if (output != null) add(output, 0, this.outputInterval);
+            currentSteps.resize(agents.length + 2);
+            substeps.resize(agents.length + 2);
+        }
+    }
+
+    private void add(Steppable target, int ordering, double interval){
+        Entry entry = new Entry(target, ordering, interval);
+        entries.add(entry);
+        queue.add(entry, entry);
+    }
+
+    /** LAYOUT
+     * @return for each position of the copy of the heap, the index of its entry in the order they were added;
+     * null outside the schedule-compatible order
+     */
+    int[] layout(){
+        if (order != ORDER_COMPATIBLE) return null;
+        Map<Object, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < entries.size(); i++){
+            index.put(entries.get(i), i);
+        }
+        Object[] objects = queue.getObjects();
+        int[] layout = new int[objects.length];
+        for (int position = 0; position < objects.length; position++){
+            layout[position] = index.get(objects[position]);
+        }
+        return layout;
+    }
+
+    /** RESTORE LAYOUT
+     * Builds the copy of the heap again with the entries at the positions of the layout of another bulk stepper,
+     * whose entries were added in the same order, so that both shuffle the agents in the same order
+     * @param layout from layout(), or null to keep the heap as it is
+     */
+    void restore(int[] layout){
+        if (order != ORDER_COMPATIBLE || layout == null || layout.length != entries.size()) return;
+        Entry[] keys = new Entry[layout.length];
+        for (int position = 0; position < layout.length; position++){
+            keys[position] = entries.get(layout[position]);
+        }
+        queue = new Heap(keys, keys.clone());
+    }
+
+    public void step(SimState state){
+        if (order == ORDER_COMPATIBLE){
+            stepCompatible(state);
+            return;
+        }
+
+        // 1. PREPARE
+        prepare.step(state);
+
+        // 2. AGENTS
+        if (order == ORDER_SHUFFLED){
+            for (int x = permutation.length - 1; x >= 1; x--){
+                int rand = state.random.nextInt(x + 1);
+                int swap = permutation[x];
+                permutation[x] = permutation[rand];
+                permutation[rand] = swap;
+            }
+        }
+        for (int i : permutation){
+            agents[i].step(state);
+        }
+
+        // 3. OUTPUT
+        if (output != null && step % outputInterval == 0){
+            output.step(state);
+        }
+        step++;
+    }
+
+    /** SCHEDULE-COMPATIBLE STEP
+     * Same extraction, shuffle and reinsertion as Schedule.step and the repeating entries of the schedule,
+     * over the copy of the heap: all the entries of the next time are extracted ordering by ordering, each ordering
+     * is shuffled with the random number generator of the simulation, and then each entry is reinserted and stepped
+     */
+    private void stepCompatible(SimState state){
+        if (queue.isEmpty()) return;
+        double time = ((Entry) queue.getMinKey()).time;
+
+        while (true){
+            queue.extractMin(substeps);
+            if (substeps.numObjs > 1) substeps.shuffle(state.random);
+            currentSteps.addAll(substeps);
+            substeps.clear();
+
+            Entry next = (Entry) queue.getMinKey();
+            if (next == null || next.time != time) break;
+        }
+
+        int length = currentSteps.numObjs;
+        Object[] objs = currentSteps.objs;
+        for (int x = 0; x < length; x++){
+            Entry entry = (Entry) objs[x];
+            objs[x] = null;
+            entry.time += entry.interval;
+            queue.add(entry, entry);
+            entry.target.step(state);
+        }
+        currentSteps.numObjs = 0;
+    }
+
+    /** ENTRY
+     * A steppable of the copy of the heap, which is its own key, as in Schedule.Key: earlier time first,
+     * then lower ordering
+     */
+    private static class Entry implements Comparable<Entry> {
+        final Steppable target;
+        final int ordering;
+        final double interval;
+        double time = 0.0;
+
+        Entry(Steppable target, int ordering, double interval){
+            this.target = target;
+            this.ordering = ordering;
+            this.interval = interval;
+        }
+
+        public int compareTo(Entry other){
+            if (time == other.time){
+                if (ordering == other.ordering) return 0;
+                return ordering < other.ordering ? -1 : 1;
+            }
+            return time < other.time ? -1 : 1;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.*;
+import java.util.Arrays;
+
+/** CAUSAL ESTIMATOR
+ * Estimates the effect of the vaccine on the infection from the state of a City at the end of a run, as in
+ * R/causalAnalysis.R but without writing the agents to a file:
+ * 1. PROPENSITY: logistic regression vaccine ~ sex, fitted by iteratively reweighted least squares (IRLS)
+ * 2. WEIGHTS: inverse probability of treatment weights (IPTW) 1/ps and 1/(1 - ps), and their stabilised version,
+ *    multiplied by the marginal probability of the treatment received
+ * 3. MARGINAL RISK DIFFERENCE: weighted least squares infected ~ vaccine with the stabilised weights, which is
+ *    the difference of the weighted risks of the vaccinated and unvaccinated agents
+ * 4. ADJUSTED RISK DIFFERENCE: weighted least squares infected ~ vaccine + sex + contagionDist, the marginal
+ *    structural model of the script
+ * 5. ODDS RATIO: weighted logistic regression infected ~ vaccine + sex + contagionDist, by IRLS
+ * The standard errors are HC0 sandwich estimators, like vcovHC(model, type = "HC0") in the script: they treat the
+ * weights as known, which is conservative for IPTW
+ * Estimates that cannot be fitted, when nobody or everybody is vaccinated or infected, are NaN
+ */
+
+public class CausalEstimator {
+    private static final String DIRECTORY = "output";
+    public static final String FILE = "estimates.csv";
+    public static final String HEADER = "file,seed,step,agents,vaccinated,infected,psIntercept,psSex," +
+            "meanWeight,maxWeight,meanStabilisedWeight,maxStabilisedWeight," +
+            "riskDifference,riskDifferenceSE,adjustedRiskDifference,adjustedRiskDifferenceSE,logOddsRatio,logOddsRatioSE";
+
+    private static final int MAX_ITERATIONS = 50;
+    private static final double TOLERANCE = 1e-10;
+    private static final Object LOCK = new Object();
+
+    private final String file;
+    private final long seed;
+    private final long step;
+    private final int agents;
+    private final int vaccinated;
+    private final int infected;
+    private double psIntercept = Double.NaN;
+    private double psSex = Double.NaN;
+    private double meanWeight = Double.NaN;
+    private double maxWeight = Double.NaN;
+    private double meanStabilisedWeight = Double.NaN;
+    private double maxStabilisedWeight = Double.NaN;
+    private double riskDifference = Double.NaN;
+    private double riskDifferenceSE = Double.NaN;
+    private double adjustedRiskDifference = Double.NaN;
+    private double adjustedRiskDifferenceSE = Double.NaN;
+    private double logOddsRatio = Double.NaN;
+    private double logOddsRatioSE = Double.NaN;
+
+    /** CAUSAL ESTIMATOR CONSTRUCTOR
+     * Fits every model on the current state of the agents
+     * @param city at the end of a run
+     */
+    public CausalEstimator(City city){
+        PopulationStore store = city.population;
+        int n = store.size;
+        file = city.getFileNameHash();
+        seed = city.seed();
+        step = city.getCompletedSteps() - 1;
+        agents = n;
+        vaccinated = store.countVaccinated();
+        infected = store.countInfected();
+        if (vaccinated == 0 || vaccinated == n) return;
+
+        double[] sex = new double[n];
+        double[] vaccine = new double[n];
+        double[] outcome = new double[n];
+        for (int i = 0; i < n; i++){
+            sex[i] = store.sex.get(i) ? 1.0 : 0.0;
+            vaccine[i] = store.vaccine.get(i) ? 1.0 : 0.0;
+            outcome[i] = store.infected.get(i) ? 1.0 : 0.0;
+        }
+        double[] ones = new double[n];
+        Arrays.fill(ones, 1.0);
+
+        // 1. PROPENSITY
+        double[][] psDesign = {ones, sex};
+        double[] ps = logistic(psDesign, vaccine, ones);
+        if (ps == null) return;
+        psIntercept = ps[0];
+        psSex = ps[1];
+
+        // 2. WEIGHTS
+        double treated = vaccinated / (double) n;
+        double[] weight = new double[n];
+        double[] stabilised = new double[n];
+        double sumWeight = 0.0, sumStabilised = 0.0;
+        maxWeight = 0.0;
+        maxStabilisedWeight = 0.0;
+        for (int i = 0; i < n; i++){
+            double p = 1.0 / (1.0 + Math.exp(-(psIntercept + psSex * sex[i])));
+            weight[i] = vaccine[i] == 1.0 ? 1.0 / p : 1.0 / (1.0 - p);
+            stabilised[i] = vaccine[i] == 1.0 ? treated / p : (1.0 - treated) / (1.0 - p);
+            sumWeight += weight[i];
+            sumStabilised += stabilised[i];
+            maxWeight = Math.max(maxWeight, weight[i]);
+            maxStabilisedWeight = Math.max(maxStabilisedWeight, stabilised[i]);
+        }
+        meanWeight = sumWeight / n;
+        meanStabilisedWeight = sumStabilised / n;
+        if (infected == 0 || infected == n) return;
+
+        // 3. MARGINAL RISK DIFFERENCE
+        double[][] marginal = {ones, vaccine};
+        double[] se = new double[2];
+        double[] beta = leastSquares(marginal, outcome, stabilised, se);
+        if (beta != null){
+            riskDifference = beta[1];
+            riskDifferenceSE = se[1];
+        }
+
+        // 4. ADJUSTED RISK DIFFERENCE
+        double[][] adjusted = {ones, vaccine, sex, store.contagionDistance};
+        se = new double[4];
+        beta = leastSquares(adjusted, outcome, stabilised, se);
+        if (beta != null){
+            adjustedRiskDifference = beta[1];
+            adjustedRiskDifferenceSE = se[1];
+        }
+
+        // 5. ODDS RATIO
+        se = new double[4];
+        beta = logistic(adjusted, outcome, stabilised, se);
+        if (beta != null){
+            logOddsRatio = beta[1];
+            logOddsRatioSE = se[1];
+        }
+    }
+
+    // Getters
+    public double getPsIntercept(){return psIntercept;}
+    public double getPsSex(){return psSex;}
+    public double getMeanWeight(){return meanWeight;}
+    public double getMaxWeight(){return maxWeight;}
+    public double getMeanStabilisedWeight(){return meanStabilisedWeight;}
+    public double getMaxStabilisedWeight(){return maxStabilisedWeight;}
+    public double getRiskDifference(){return riskDifference;}
+    public double getRiskDifferenceSE(){return riskDifferenceSE;}
+    public double getAdjustedRiskDifference(){return adjustedRiskDifference;}
+    public double getAdjustedRiskDifferenceSE(){return adjustedRiskDifferenceSE;}
+    public double getLogOddsRatio(){return logOddsRatio;}
+    public double getLogOddsRatioSE(){return logOddsRatioSE;}
+
+    /** CSV LINE
+     * @return the estimates in the order of HEADER
+     */
+    public String toCsv(){
+        return file + "," + seed + "," + step + "," + agents + "," + vaccinated + "," + infected + "," +
+                psIntercept + "," + psSex + "," + meanWeight + "," + maxWeight + "," +
+                meanStabilisedWeight + "," + maxStabilisedWeight + "," + riskDifference + "," + riskDifferenceSE + "," +
+                adjustedRiskDifference + "," + adjustedRiskDifferenceSE + "," + logOddsRatio + "," + logOddsRatioSE;
+    }
+
+    /** APPEND
+     * Adds the estimates to output/estimates.csv, with the header if the file is new
+     * Runs of a sweep finish on several threads at once, so the lines are appended one at a time
+     */
+    public void append() throws IOException {
+        synchronized (LOCK){
+            new File(DIRECTORY).mkdirs();
+            File results = new File(DIRECTORY, FILE);
+            boolean header = !results.exists();
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(results, true), "utf-8"))){
+                if (header){
+                    writer.write(HEADER);
+                    writer.write(System.lineSeparator());
+                }
+                writer.write(toCsv());
+                writer.write(System.lineSeparator());
+            }
+        }
+    }
+
+    /** LOGISTIC REGRESSION
+     * @param x columns of the design matrix
+     * @param y outcome, 0 or 1
+     * @param w prior weights
+     * @return the coefficients, or null if IRLS did not converge
+     */
+    private static double[] logistic(double[][] x, double[] y, double[] w){
+        return logistic(x, y, w, null);
+    }
+
+    /** LOGISTIC REGRESSION WITH SANDWICH
+     * IRLS: each iteration is a weighted least squares fit of the working response, with working weights
+     * w * mu * (1 - mu)
+     * @param se filled with the HC0 standard errors of the coefficients, or null
+     * @return the coefficients, or null if IRLS did not converge
+     */
+    private static double[] logistic(double[][] x, double[] y, double[] w, double[] se){
+        int p = x.length;
+        int n = y.length;
+        double[] beta = new double[p];
+        double[] mu = new double[n];
+        double[] working = new double[n];
+        double[] response = new double[n];
+        double deviance = Double.POSITIVE_INFINITY;
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++){
+            double newDeviance = 0.0;
+            for (int i = 0; i < n; i++){
+                double eta = 0.0;
+                for (int j = 0; j < p; j++) eta += x[j][i] * beta[j];
+                mu[i] = 1.0 / (1.0 + Math.exp(-eta));
+                double variance = Math.max(mu[i] * (1.0 - mu[i]), 1e-12);
+                working[i] = w[i] * variance;
+                response[i] = eta + (y[i] - mu[i]) / variance;
+                newDeviance -= 2.0 * w[i] * (y[i] == 1.0 ? Math.log(Math.max(mu[i], 1e-300)) : Math.log(Math.max(1.0 - mu[i], 1e-300)));
+            }
+            if (Math.abs(deviance - newDeviance) <= TOLERANCE * (Math.abs(newDeviance) + 0.1)){
+                if (se != null){
+                    // Score of agent i: w_i * (y_i - mu_i) * x_i, bread: inverse of sum of working_i * x_i * x_i'
+                    double[] scoreWeight = new double[n];
+                    for (int i = 0; i < n; i++) scoreWeight[i] = w[i] * (y[i] - mu[i]);
+                    sandwich(x, working, scoreWeight, se);
+                }
+                return beta;
+            }
+            deviance = newDeviance;
+            beta = weightedSolve(x, response, working);
+            if (beta == null) return null;
+        }
+        return null;
+    }
+
+    /** WEIGHTED LEAST SQUARES WITH SANDWICH
+     * @param x columns of the design matrix
+     * @param y response
+     * @param w weights
+     * @param se filled with the HC0 standard errors of the coefficients
+     * @return the coefficients, or null if the design is singular
+     */
+    private static double[] leastSquares(double[][] x, double[] y, double[] w, double[] se){
+        double[] beta = weightedSolve(x, y, w);
+        if (beta == null) return null;
+        int n = y.length;
+        double[] scoreWeight = new double[n];
+        for (int i = 0; i < n; i++){
+            double fitted = 0.0;
+            for (int j = 0; j < x.length; j++) fitted += x[j][i] * beta[j];
+            scoreWeight[i] = w[i] * (y[i] - fitted);
+        }
+        sandwich(x, w, scoreWeight, se);
+        return beta;
+    }
+
+    /** WEIGHTED SOLVE
+     * @return the solution of (X' W X) beta = X' W y, or null if X' W X is singular
+     */
+    private static double[] weightedSolve(double[][] x, double[] y, double[] w){
+        int p = x.length;
+        double[][] a = crossProduct(x, w);
+        double[] b = new double[p];
+        for (int j = 0; j < p; j++){
+            for (int i = 0; i < y.length; i++) b[j] += x[j][i] * w[i] * y[i];
+        }
+        double[][] inverse = invert(a);
+        if (inverse == null) return null;
+        double[] beta = new double[p];
+        for (int j = 0; j < p; j++){
+            for (int k = 0; k < p; k++) beta[j] += inverse[j][k] * b[k];
+        }
+        return beta;
+    }
+
+    /** SANDWICH
+     * HC0: B M B, with bread B = (X' diag(bread) X)^-1 and meat M = sum of s_i^2 * x_i * x_i'
+     * @param x columns of the design matrix
+     * @param bread weights of the bread
+     * @param score scalar part s_i of the score of each observation
+     * @param se filled with the square roots of the diagonal
+     */
+    private static void sandwich(double[][] x, double[] bread, double[] score, double[] se){
+        int p = x.length;
+        double[][] inverse = invert(crossProduct(x, bread));
+        double[] squared = new double[score.length];
+        for (int i = 0; i < score.length; i++) squared[i] = score[i] * score[i];
+        double[][] meat = crossProduct(x, squared);
+        for (int j = 0; j < p; j++){
+            if (inverse == null){
+                se[j] = Double.NaN;
+                continue;
+            }
+            double variance = 0.0;
+            for (int k = 0; k < p; k++){
+                for (int l = 0; l < p; l++) variance += inverse[j][k] * meat[k][l] * inverse[l][j];
+            }
+            se[j] = Math.sqrt(variance);
+        }
+    }
+
+    /** CROSS PRODUCT
+     * @return X' diag(w) X
+     */
+    private static double[][] crossProduct(double[][] x, double[] w){
+        int p = x.length;
+        double[][] a = new double[p][p];
+        for (int j = 0; j < p; j++){
+            for (int k = j; k < p; k++){
+                double sum = 0.0;
+                for (int i = 0; i < w.length; i++) sum += x[j][i] * w[i] * x[k][i];
+                a[j][k] = sum;
+                a[k][j] = sum;
+            }
+        }
+        return a;
+    }
+
+    /** INVERT
+     * Gauss-Jordan elimination with partial pivoting, for the small matrices of the models
+     * @return the inverse, or null if the matrix is singular
+     */
+    private static double[][] invert(double[][] matrix){
+        int p = matrix.length;
+        double[][] a = new double[p][2 * p];
+        double scale = 0.0;
+        for (int j = 0; j < p; j++){
+            System.arraycopy(matrix[j], 0, a[j], 0, p);
+            a[j][p + j] = 1.0;
+            scale = Math.max(scale, Math.abs(matrix[j][j]));
+        }
+        for (int column = 0; column < p; column++){
+            int pivot = column;
+            for (int row = column + 1; row < p; row++){
+                if (Math.abs(a[row][column]) > Math.abs(a[pivot][column])) pivot = row;
+            }
+            if (Math.abs(a[pivot][column]) <= 1e-12 * scale) return null;
+            double[] swap = a[pivot];
+            a[pivot] = a[column];
+            a[column] = swap;
+
+            double divisor = a[column][column];
+            for (int k = 0; k < 2 * p; k++) a[column][k] /= divisor;
+            for (int row = 0; row < p; row++){
+                if (row == column || a[row][column] == 0.0) continue;
+                double factor = a[row][column];
+                for (int k = 0; k < 2 * p; k++) a[row][k] -= factor * a[column][k];
+            }
+        }
+        double[][] inverse = new double[p][p];
+        for (int j = 0; j < p; j++){
+            System.arraycopy(a[j], p, inverse[j], 0, p);
+        }
+        return inverse;
+    }
+}
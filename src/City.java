@@ -14,14 +14,19 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import ec.util.MersenneTwisterFast;
 import sim.engine.*;
 import sim.field.continuous.Continuous2D;
-import sim.field.network.Network;
-import sim.util.Bag;
 import sim.util.Double2D;
 import sim.util.Interval;
 import java.io.File;
-import java.util.Scanner;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** CITY CLASS
  * This class will extend the SimState from Mason
@@ -48,15 +53,96 @@ public class City extends SimState{
     private double maxPartnerForce = 5.0;
     private double randomForce = 5.0;
     private double partnerForce = 3.0;
+    private int interferenceMode = INTERFERENCE_EXACT;
+    private double openingAngle = 0.5;
+    private int meshResolution = 128;
+    private boolean compareInterference = false;
+    private int stepMode = STEP_ASYNCHRONOUS;
+    private int bulkOrder = BulkStepper.ORDER_COMPATIBLE;
+    private int vaccinationMode = VACCINATION_BERNOULLI;
+    private int infectionMode = INFECTION_BERNOULLI;
+    private double tauLeap = 0.25;
+    private boolean stopOnAbsorbing = false;
+    private int plateauSteps = 0;
+    private double plateauTolerance = 0.001;
+    private double wallClockSeconds = 0.0;
+    private boolean estimateEffects = false;
+    private int networkModel = NETWORK_POISSON;
+    private double meanDegree = 4.0;
+    private double rewiringProbability = 0.1;
+    private int outputMode = OUTPUT_ASYNCHRONOUS;
+    private int outputBackpressure = OutputPipeline.BLOCK;
+    private int outputBuffers = 4;
+    private int keyframeInterval = 100;
+    private OutputPlan outputPlan = OutputPlan.ALL;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
     private String filenameHash;
 
     // Other variables
-    private Scanner inputStream;
     private int lines = 0;
     private boolean multiSIM = true;
     public int earlyGUIStop = 300;
     private int numIntervals = 1;
-    public Network peers = new Network(false);
+    public PeerNetwork peers = new PeerNetwork();
+
+    // State of the agents by id, and the agents that are views over it
+    public PopulationStore population = new PopulationStore(0);
+    public Patient[] patients = new Patient[0];
+
+    // Interference engines
+    public static final int INTERFERENCE_EXACT = 0;
+    public static final int INTERFERENCE_BARNES_HUT = 1;
+    public static final int INTERFERENCE_PARTICLE_MESH = 2;
+    private InterferenceEngine interferenceEngine = new ExactInterference();
+    final double[] interferenceScratch = new double[3];
+
+    // Step modes: agents one by one in random order, all at once from the state of the previous step,
+    // one by one under a single entry of the schedule, or each phase over the whole population
+    public static final int STEP_ASYNCHRONOUS = 0;
+    public static final int STEP_SYNCHRONOUS = 1;
+    public static final int STEP_BULK = 2;
+    public static final int STEP_PHASE = 3;
+    private SynchronousStepper synchronousStepper;
+    private PhaseStepper phaseStepper;
+    private BulkStepper bulkStepper;
+
+    // Vaccination: a draw for every agent at every step, or the step of each agent drawn once at the start
+    public static final int VACCINATION_BERNOULLI = 0;
+    public static final int VACCINATION_EVENT_TIME = 1;
+    private VaccinationQueue vaccinationQueue;
+
+    // Infection: a draw for every agent at every step, or events in continuous time, exact or by tau-leaping
+    public static final int INFECTION_BERNOULLI = 0;
+    public static final int INFECTION_GILLESPIE = 1;
+    public static final int INFECTION_TAU_LEAPING = 2;
+    private EventInfection eventInfection;
+
+    // Stop conditions: from the properties, and added with addStopCondition
+    private final List<StopCondition> stopConditions = new ArrayList<>();
+    private final List<StopCondition> addedStopConditions = new ArrayList<>();
+    private long checkedSteps;
+    private String stopReason;
+    private long stopStep = -1;
+
+    // Network generators
+    public static final int NETWORK_POISSON = 0;
+    public static final int NETWORK_CONFIGURATION = 1;
+    public static final int NETWORK_WATTS_STROGATZ = 2;
+    public static final int NETWORK_PREFERENTIAL_ATTACHMENT = 3;
+    private NetworkGenerator networkGenerator = new PoissonNetworkGenerator();
+
+    // Output of the state at each step: written by the simulation thread, by a writer thread, or not at all,
+    // or only the changes of state with keyframes every keyframeInterval steps, or to a binary file of fixed-size records
+    // The outputPlan selects the steps and agents that are written, except in the transitions mode
+    public static final int OUTPUT_SYNCHRONOUS = 0;
+    public static final int OUTPUT_ASYNCHRONOUS = 1;
+    public static final int OUTPUT_NONE = 2;
+    public static final int OUTPUT_TRANSITIONS = 3;
+    public static final int OUTPUT_BINARY = 4;
+    private Utils utils;
+
+    // Causal estimates of the effect of the vaccine at the end of each run, appended to output/estimates.csv
+    private CausalEstimator causalEstimates;
 
     /** CITY CONSTRUCTOR
      * @param seed for seeding a pseudo-random number generator
@@ -64,7 +150,7 @@ public class City extends SimState{
      */
 
     public City(long seed){
-        super(seed);
+        super(seed, new CitySchedule());
         this.setNumPatients(numPatients);
         this.setProbInfected(probInfected);
         this.setProbVaccine(probVaccine);
@@ -99,6 +185,52 @@ public class City extends SimState{
     public double getMaxPartnerForce(){return maxPartnerForce;}
     public double getRandomForce(){return randomForce;}
     public double getPartnerForce(){return partnerForce;}
+    public int getInterferenceMode(){return interferenceMode;}
+    public double getOpeningAngle(){return openingAngle;}
+    public int getMeshResolution(){return meshResolution;}
+    public boolean getCompareInterference(){return compareInterference;}
+    public double getInterferenceErrorBound(){return interferenceEngine.getErrorBound();}
+    public double getInterferenceMaxError(){
+        return interferenceEngine instanceof ComparedInterference ?
+                ((ComparedInterference) interferenceEngine).getMaxError() : Double.NaN;
+    }
+    public double getInterferenceRmsError(){
+        return interferenceEngine instanceof ComparedInterference ?
+                ((ComparedInterference) interferenceEngine).getRmsError() : Double.NaN;
+    }
+    public InterferenceEngine getInterferenceEngine(){return interferenceEngine;}
+    public int getStepMode(){return stepMode;}
+    public int getBulkOrder(){return bulkOrder;}
+    public int getVaccinationMode(){return vaccinationMode;}
+    public VaccinationQueue getVaccinationQueue(){return vaccinationQueue;}
+    public int getInfectionMode(){return infectionMode;}
+    public double getTauLeap(){return tauLeap;}
+    public boolean getStopOnAbsorbing(){return stopOnAbsorbing;}
+    public int getPlateauSteps(){return plateauSteps;}
+    public double getPlateauTolerance(){return plateauTolerance;}
+    public double getWallClockSeconds(){return wallClockSeconds;}
+    public String getStopReason(){return stopReason;}
+    public long getStopStep(){return stopStep;}
+    public boolean getEstimateEffects(){return estimateEffects;}
+    public CausalEstimator getCausalEstimates(){return causalEstimates;}
+    public long getInfectionEvents(){return eventInfection == null ? 0 : eventInfection.getEvents();}
+    public String getPhaseTimings(){return phaseStepper == null ? "" : phaseStepper.getTimings();}
+    public PhaseStepper getPhaseStepper(){return phaseStepper;}
+    public BulkStepper getBulkStepper(){return bulkStepper;}
+    public int getNumThreads(){return numThreads;}
+    public int getNetworkModel(){return networkModel;}
+    public double getMeanDegree(){return meanDegree;}
+    public double getRewiringProbability(){return rewiringProbability;}
+    public NetworkGenerator getNetworkGenerator(){return networkGenerator;}
+    public int getOutputMode(){return outputMode;}
+    public int getOutputBackpressure(){return outputBackpressure;}
+    public int getOutputBuffers(){return outputBuffers;}
+    public int getKeyframeInterval(){return keyframeInterval;}
+    public String getOutputPlan(){return outputPlan.toString();}
+    public OutputPlan getPlan(){return outputPlan;}
+    public long getOutputDroppedSteps(){return utils == null ? 0 : utils.getDroppedSteps();}
+    public double getOutputRowsPerSecond(){return utils == null ? 0.0 : utils.getRowsPerSecond();}
+    public double getOutputMegabytesPerSecond(){return utils == null ? 0.0 : utils.getMegabytesPerSecond();}
     public String getFileNameHash(){return filenameHash.toString();}
     private int getLines(){return lines;}
 
@@ -116,7 +248,37 @@ public class City extends SimState{
     public void setMaxPartnerForce(double value){maxPartnerForce = value;}
     public void setRandomForce(double value){randomForce = value;}
     public void setPartnerForce(double value){partnerForce = value;}
+    public void setInterferenceMode(int value){interferenceMode = value;}
+    public void setOpeningAngle(double value){openingAngle = value;}
+    public void setMeshResolution(int value){meshResolution = value;}
+    public void setCompareInterference(boolean value){compareInterference = value;}
+    public void setStepMode(int value){stepMode = value;}
+    public void setBulkOrder(int value){bulkOrder = value;}
+    public void setVaccinationMode(int value){vaccinationMode = value;}
+    public void setInfectionMode(int value){infectionMode = value;}
+    public void setTauLeap(double value){tauLeap = value;}
+    public void setStopOnAbsorbing(boolean value){stopOnAbsorbing = value;}
+    public void setPlateauSteps(int value){plateauSteps = Math.max(0, value);}
+    public void setPlateauTolerance(double value){plateauTolerance = value;}
+    public void setWallClockSeconds(double value){wallClockSeconds = value;}
+    public void setEstimateEffects(boolean value){estimateEffects = value;}
+    public void setNumThreads(int value){numThreads = Math.max(1, value);}
+    public void setNetworkModel(int value){networkModel = value;}
+    public void setMeanDegree(double value){meanDegree = value;}
+    public void setRewiringProbability(double value){rewiringProbability = value;}
+    public void setOutputMode(int value){outputMode = value;}
+    public void setOutputBackpressure(int value){outputBackpressure = value;}
+    public void setKeyframeInterval(int value){keyframeInterval = Math.max(1, value);}
+    public void setOutputPlan(String value){
+        try {
+            outputPlan = OutputPlan.parse(value);
+        } catch (IllegalArgumentException ex){
+            System.out.println(ex.getMessage());
+        }
+    }
+    public void setOutputBuffers(int value){outputBuffers = Math.max(1, value);}
     public void setFilenameHash(){calculateFilenameHash();}
+    public void setFileName(String value){filenameHash = value;}
     private void setLines(int value){lines = value;}
 
     // Domains: slider in the GUI controler
@@ -133,6 +295,24 @@ public class City extends SimState{
     public Object domMaxPartnerForce(){return new Interval(0.0,this.getPartnerForce() * 1.5);}
     public Object domRandomForce(){return new Interval(0.0,20.0);}
     public Object domPartnerForce(){return new Interval(0.0,20.0);}
+    public Object domInterferenceMode(){return new String[]{"Exact","Barnes-Hut","Particle-mesh"};}
+    public Object domOpeningAngle(){return new Interval(0.0,2.0);}
+    public Object domMeshResolution(){return new Interval(8,512);}
+    public Object domStepMode(){return new String[]{"Asynchronous","Synchronous","Bulk","Phase-major"};}
+    public Object domInfectionMode(){return new String[]{"Bernoulli","Gillespie","Tau-leaping"};}
+    public Object domTauLeap(){return new Interval(0.01,1.0);}
+    public Object domPlateauSteps(){return new Interval(0,300);}
+    public Object domPlateauTolerance(){return new Interval(0.0,0.1);}
+    public Object domVaccinationMode(){return new String[]{"Bernoulli","Event time"};}
+    public Object domBulkOrder(){return new String[]{"Schedule-compatible","Shuffled","Fixed"};}
+    public Object domNumThreads(){return new Interval(1,64);}
+    public Object domNetworkModel(){return new String[]{"Poisson","Configuration","Watts-Strogatz","Preferential attachment"};}
+    public Object domMeanDegree(){return new Interval(0.0,50.0);}
+    public Object domRewiringProbability(){return new Interval(0.0,1.0);}
+    public Object domOutputMode(){return new String[]{"Synchronous","Asynchronous","None","Transitions","Binary"};}
+    public Object domKeyframeInterval(){return new Interval(1,300);}
+    public Object domOutputBackpressure(){return new String[]{"Block","Drop"};}
+    public Object domOutputBuffers(){return new Interval(1,64);}
 
 
     /** GET DISTRUBUTION OF TIME-DEPENDENT VARIABLES IN GUI
@@ -147,44 +327,32 @@ public class City extends SimState{
 
     // INFECTION DISTRIBUTION
     public boolean[] getInfectionDistribution(){
-      Bag agents = peers.getAllNodes();
-      boolean[] distribution = new boolean[agents.numObjs];
-      for(int i = 0; i < agents.numObjs; i++){
-          distribution[i] = ((Patient)(agents.objs[i])).getInfected();
-      }
-      return distribution;
+        boolean[] distribution = new boolean[population.size];
+        for(int i = 0; i < population.size; i++){
+            distribution[i] = population.infected.get(i);
+        }
+        return distribution;
     }
 
     // VACCINE DISTRIBUTION
     public boolean[] getVaccineDistribution(){
-        Bag agents = peers.getAllNodes();
-        boolean[] distribution = new boolean[agents.numObjs];
-        for(int i = 0; i < agents.numObjs; i++){
-            distribution[i] = ((Patient)(agents.objs[i])).getVaccine();
+        boolean[] distribution = new boolean[population.size];
+        for(int i = 0; i < population.size; i++){
+            distribution[i] = population.vaccine.get(i);
         }
         return distribution;
     }
 
     // CUMULATIVE INFECTION DISTANCE DISTRIBUTION
     public double[] getCumulativeDistanceDistribution(){
-        Bag agents = peers.getAllNodes();
-        double[] distribution = new double[agents.numObjs];
-        for(int i = 0; i < agents.numObjs; i++){
-            distribution[i] = ((Patient)(agents.objs[i])).getIndirectInterference();
-        }
-        return distribution;
+        return population.indirectInterference.clone();
     }
 
     // EDGES DISTRIBUTION
     public int[] getEdgesDegreeDistribution(){
-        Bag peers = this.peers.getAllNodes();
-        int[] distribution = new int[peers.numObjs];
-
-        for (int i = 0; i < peers.size(); i++){
-            distribution[i] = ((Patient) peers.objs[i]).getDegree();
-        }
-        return distribution;
+        return population.degree.clone();
     }
+
     /** START
      * The simulation will initialise
      * The yard and network will be cleared while the agents are created and scheduled, stepped
@@ -193,77 +361,364 @@ public class City extends SimState{
 
     public void start(){
         super.start();
+        if (StepProfiler.ENABLED) StepProfiler.getInstance().begin();
         int initialLocationMultiplier = 40;
 
         yard.clear();
-        peers.clear();
+        peers.reset(this.getNumPatients());
+        population = new PopulationStore(this.getNumPatients());
+        patients = new Patient[this.getNumPatients()];
+        interferenceEngine = createInterferenceEngine();
+        networkGenerator = createNetworkGenerator();
 
         // ADD PATIENTS TO THE YARD
         for (int i = 0; i < this.getNumPatients(); i++){
-            Patient patient = new Patient("Patient_"+i, this);
-            yard.setObjectLocation(patient, new Double2D(yard.getWidth() * 0.5 +
+            Patient patient = new Patient(i, this);
+            patients[i] = patient;
+            population.setLocation(i, yard.getWidth() * 0.5 +
                     initialLocationMultiplier * random.nextDouble() -
                     initialLocationMultiplier * 0.5,
                     yard.getHeight() * 0.5 +
                             initialLocationMultiplier * random.nextDouble() -
-                            initialLocationMultiplier * 0.5));
-            peers.addNode(patient);
-            schedule.scheduleRepeating(patient);
+                            initialLocationMultiplier * 0.5);
+            yard.setObjectLocation(patient, new Double2D(population.x[i], population.y[i]));
         }
 
+        // INITIAL NETWORK
+        networkGenerator.generate(this);
+
+        // EVENT-TIME VACCINATION: THE STEP OF EACH AGENT IS DRAWN ONCE
+        vaccinationQueue = vaccinationMode == VACCINATION_EVENT_TIME ? new VaccinationQueue(this, earlyGUIStop) : null;
+
+        scheduleModel();
+    }
+
+    /** SNAPSHOT
+     * Copies the state of the simulation between two steps, for instance after a burn-in, to fork branches
+     * @return an in-memory snapshot of the population, the network and the random number generator
+     * @throws IllegalStateException if the state cannot be copied at this point, see CitySnapshot
+     */
+    public CitySnapshot snapshot(){
+        return new CitySnapshot(this);
+    }
+
+    /** FORK
+     * Creates a counterfactual branch: a City with the properties and the state of the snapshot, started at the
+     * time of the snapshot, that goes on independently
+     * Branches forked from the same snapshot draw the same random numbers until their interventions make them differ
+     * @param snapshot state to start from
+     * @param intervention applied before the first step of the branch, or null
+     * @param fileName of the output of the branch
+     * @param threads number of threads of the synchronous and phase-major modes
+     * @return the branch, ready to be stepped
+     */
+    public static City fork(CitySnapshot snapshot, Intervention intervention, String fileName, int threads){
+        City branch = new City(snapshot.seed);
+        snapshot.applyProperties(branch);
+        branch.setFileName(fileName);
+        branch.setNumThreads(threads);
+        branch.startBranch(snapshot);
+        if (intervention != null) intervention.apply(branch);
+        return branch;
+    }
+
+    /** BRANCH
+     * Forks one branch per intervention from the current state and runs all of them at once, each on its own
+     * thread, until the early stop or one of the stop conditions of the properties
+     * This City is not changed: run the burn-in first, then branch from it
+     * @param interventions one per branch, null for a branch without intervention
+     * @return the finished branches, in the order of the interventions
+     */
+    public List<City> branch(List<Intervention> interventions) throws InterruptedException, ExecutionException {
+        CitySnapshot snapshot = snapshot();
+        int count = Math.max(1, interventions.size());
+        int threads = Math.max(1, numThreads / count);
+        String name = filenameHash.endsWith(".csv") ? filenameHash.substring(0, filenameHash.length() - 4) : filenameHash;
+
+        ExecutorService pool = Executors.newFixedThreadPool(count);
+        List<Future<City>> futures = new ArrayList<>();
+        for (int k = 0; k < interventions.size(); k++){
+            Intervention intervention = interventions.get(k);
+            String fileName = name + "_branch" + k + ".csv";
+            futures.add(pool.submit(() -> {
+                City branch = fork(snapshot, intervention, fileName, threads);
+                do {
+                    if (!branch.schedule.step(branch)) break;
+                }
+                while(branch.getCompletedSteps() < branch.earlyGUIStop && !branch.checkStop());
+                branch.finish();
+                return branch;
+            }));
+        }
+        pool.shutdown();
+
+        List<City> branches = new ArrayList<>();
+        try {
+            for (Future<City> future : futures){
+                branches.add(future.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return branches;
+    }
+
+    /** START BRANCH
+     * Like start(), but over copies of the state of the snapshot instead of a new population and network:
+     * the agents and the steppers are built again and scheduled from the time of the snapshot
+     * @param snapshot state to start from
+     */
+    private void startBranch(CitySnapshot snapshot){
+        super.start();
+        schedule = new CitySchedule(snapshot.time, snapshot.steps);
+        random = (MersenneTwisterFast) snapshot.random.clone();
+
+        yard.clear();
+        peers = snapshot.peers.copy();
+        population = snapshot.population.copy();
+        patients = new Patient[population.size];
+        for (int i = 0; i < population.size; i++){
+            patients[i] = new Patient(i, population);
+        }
+        updateYard();
+        interferenceEngine = createInterferenceEngine();
+        networkGenerator = snapshot.networkGenerator.copy();
+        vaccinationQueue = null;
+
+        // The same entries as the City, added in the same order: their heaps are given the same layout
+        scheduleModel();
+        ((CitySchedule) schedule).restore(snapshot.scheduleLayout);
+        if (bulkStepper != null) bulkStepper.restore(snapshot.bulkLayout);
+    }
+
+    /** SCHEDULE THE MODEL
+     * Adds the agents, the steppers of the step mode and the output to the schedule, from its current time
+     * Shared by start() and startBranch(): the entries are always added in the same order
+     */
+    private void scheduleModel(){
+        bulkStepper = null;
+        if (stepMode == STEP_ASYNCHRONOUS){
+            for (Patient patient : patients){
+                schedule.scheduleRepeating(patient);
+            }
+        }
+
+        // SYNCHRONOUS MODE: A SINGLE STEPPER FOR THE WHOLE POPULATION
+        if (stepMode == STEP_SYNCHRONOUS){
+            synchronousStepper = new SynchronousStepper(this, numThreads);
+            schedule.scheduleRepeating(synchronousStepper, 0, 1.0);
+        }
+
+        // PHASE-MAJOR MODE: ONE ENTRY PER PHASE, THE INTERFERENCE PHASE PREPARES THE ENGINE ITSELF
+        int outputOrdering = stepMode == STEP_SYNCHRONOUS ? 1 : 0;
+        phaseStepper = null;
+        if (stepMode == STEP_PHASE){
+            phaseStepper = new PhaseStepper(this, numThreads);
+            outputOrdering = phaseStepper.schedule(schedule, 0);
+        }
+
+        // PREPARE THE INTERFERENCE ENGINE BEFORE THE AGENTS OF EACH STEP, AFTER THE EVENT-TIME VACCINATIONS
+        // The profiler closes the previous step here: an entry of its own would change the order of the schedule
+        Steppable prepare = new Steppable() {
+            public void step(SimState state) {
+                if (StepProfiler.ENABLED) StepProfiler.getInstance().step(state);
+                if (vaccinationQueue != null){
+                    long start = StepProfiler.ENABLED ? System.nanoTime() : 0;
+                    vaccinationQueue.apply((City) state, ((City) state).getStep());
+                    if (StepProfiler.ENABLED) StepProfiler.record(StepProfiler.VACCINE, start);
+                }
+                interferenceEngine.prepare((City) state);
+            }
+        };
+
         // CREATE FILE TO SAVE STATE
-        Utils utils = null;
+        utils = null;
         try {
             utils = new Utils(this);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        schedule.scheduleRepeating(utils, 0, numIntervals);
+
+        // STOP CONDITIONS: CHECKED BETWEEN STEPS, NOT SCHEDULED
+        stopConditions.clear();
+        if (stopOnAbsorbing) stopConditions.add(new AbsorbingStopCondition());
+        if (plateauSteps > 0) stopConditions.add(new PlateauStopCondition(plateauSteps, plateauTolerance));
+        if (wallClockSeconds > 0) stopConditions.add(new WallClockStopCondition(wallClockSeconds));
+        stopConditions.addAll(addedStopConditions);
+        checkedSteps = 0;
+        stopReason = null;
+        stopStep = -1;
+        causalEstimates = null;
+
+        // EVENT INFECTION: HAZARDS AT THE END OF EACH STEP, INFECTIONS UNTIL THE NEXT ONE
+        eventInfection = null;
+        if (infectionMode != INFECTION_BERNOULLI){
+            eventInfection = new EventInfection(getNumPatients(), infectionMode == INFECTION_TAU_LEAPING, tauLeap);
+            schedule.scheduleRepeating(eventInfection, EventInfection.ORDERING, 1.0);
+        }
+
+        // BULK MODE: THE PREPARATION, THE AGENTS AND THE OUTPUT UNDER A SINGLE ENTRY
+        if (stepMode == STEP_BULK){
+            bulkStepper = new BulkStepper(patients, prepare, utils, numIntervals, bulkOrder);
+            schedule.scheduleRepeating(bulkStepper, 0, 1.0);
+            return;
+        }
+        if (stepMode != STEP_PHASE) schedule.scheduleRepeating(prepare, -1, 1.0);
+        schedule.scheduleRepeating(utils, outputOrdering, numIntervals);
     }
 
-    /** ReadFile Method
-     * The columns of the `params` file will be stored as properties of a FileParams object
-     * @return A FileParams object that will contain the columns of the file as properties
+    /** STEP
+     * Events in continuous time are scheduled between integer times, and each of them counts as a step of the
+     * schedule: the step of the model is the integer part of the time instead
+     * @return the step of the model being stepped
      */
-    private FileParams readFile(){
+    public long getStep(){
+        return (long) Math.floor(Math.max(Schedule.EPOCH, schedule.getTime()));
+    }
+
+    /** COMPLETED STEPS
+     * @return the number of steps of the model already stepped, between two calls to schedule.step
+     */
+    public long getCompletedSteps(){
+        double time = schedule.getTime();
+        return time < Schedule.EPOCH ? 0 : (long) Math.floor(time) + 1;
+    }
+
+    /** ADD STOP CONDITION
+     * @param condition checked after every step of the next runs, with those of the properties
+     */
+    public void addStopCondition(StopCondition condition){
+        addedStopConditions.add(condition);
+    }
 
-        try{
-            inputStream = new Scanner(new File("params"));
-        } catch (Exception e){
-            System.out.println("Could not find file");
+    /** CHECK STOP
+     * Called between two calls to schedule.step: the conditions are checked once per completed step
+     * @return true if a condition has stopped the run, whose reason and step are kept for the output
+     */
+    public boolean checkStop(){
+        if (stopReason != null) return true;
+        long completed = getCompletedSteps();
+        if (completed == checkedSteps) return false;
+        checkedSteps = completed;
+        for (StopCondition condition : stopConditions){
+            String reason = condition.check(this);
+            if (reason != null){
+                stopReason = reason;
+                stopStep = completed - 1;
+                return true;
+            }
         }
+        return false;
+    }
 
-        // Ignore the first line: HEADER
-        inputStream.next();
-
-        // Initialise the object to collect parameters
-        FileParams fileParams = new FileParams();
-
-        int index = 1;
-
-        while(inputStream.hasNext()) {
-            String allData = inputStream.next();
-            String[] columns = allData.split(",");
-
-            int i = 0;
-            fileParams.addNumPatients(Integer.parseInt(columns[i++]));
-            fileParams.addProbInfected(Double.parseDouble(columns[i++]));
-            fileParams.addProbVaccine(Double.parseDouble(columns[i++]));
-            fileParams.addLambda(Double.parseDouble(columns[i++]));
-            fileParams.addContagion(Double.parseDouble(columns[i++]));
-            fileParams.addInfectiousness(Double.parseDouble(columns[i++]));
-            fileParams.addSexOnInfection(Double.parseDouble(columns[i++]));
-            fileParams.addSexOnVaccine(Double.parseDouble(columns[i++]));
-            fileParams.addVaccineOnInfection(Double.parseDouble(columns[i++]));
-            fileParams.addPromiscuityPopulation(Double.parseDouble(columns[i++]));
-            fileParams.addMaxPartnerForce(Double.parseDouble(columns[i++]));
-            fileParams.addRandomForce(Double.parseDouble(columns[i++]));
-            fileParams.addPartnerForce(Double.parseDouble(columns[i]));
-            this.setLines(index++);
+    /** UPDATE YARD
+     * The locations are kept in the population store: the yard is only needed by the portrayals of the GUI,
+     * so it is brought up to date by the GUI after each step instead of by the agents
+     */
+    public void updateYard(){
+        for (int i = 0; i < patients.length; i++){
+            yard.setObjectLocation(patients[i], new Double2D(population.x[i], population.y[i]));
         }
+    }
 
-        inputStream.close();
+    /** UPDATE STORE FROM THE YARD
+     * Called by the GUI before each step: the agents dragged in the display are the only ones whose location in
+     * the yard is not the one written by updateYard, and their new locations are copied to the population store
+     */
+    public void updateStore(){
+        for (int i = 0; i < patients.length; i++){
+            Double2D location = yard.getObjectLocation(patients[i]);
+            if (location != null && (location.x != population.x[i] || location.y != population.y[i])){
+                population.setLocation(i, location.x, location.y);
+            }
+        }
+    }
 
+    /** FINISH
+     * Writes the buffered output to the file and stops the threads of the synchronous and phase-major modes
+     */
+    public void finish(){
+        super.finish();
+        if (stopReason == null){
+            stopReason = "steps";
+            stopStep = getCompletedSteps() - 1;
+        }
+        if (utils != null){
+            utils.close();
+            utils.writeStop(stopReason, stopStep);
+        }
+        if (estimateEffects && causalEstimates == null){
+            causalEstimates = new CausalEstimator(this);
+            try {
+                causalEstimates.append();
+            } catch (IOException e){
+                System.out.println("Error writing the estimates");
+            }
+        }
+        if (synchronousStepper != null){
+            synchronousStepper.cleanup();
+            synchronousStepper = null;
+        }
+        if (phaseStepper != null){
+            phaseStepper.cleanup();
+        }
+    }
+
+    private void printOutputThroughput(){
+        System.out.println(String.format("Output: %.0f rows/s, %.1f MB/s, %d steps dropped",
+                getOutputRowsPerSecond(), getOutputMegabytesPerSecond(), getOutputDroppedSteps()));
+    }
+
+    // Summary of the StepProfiler for the run that has just finished
+    private void printProfile(){
+        if (StepProfiler.ENABLED){
+            System.out.println(StepProfiler.getInstance().getSummary());
+            StepProfiler.getInstance().reset();
+        }
+    }
+
+    /** CREATE INTERFERENCE ENGINE
+     * With compareInterference, approximate engines are checked against the exact sum at every step
+     * @return the engine that will calculate f(Y) according to the interferenceMode
+     */
+    private InterferenceEngine createInterferenceEngine(){
+        InterferenceEngine engine;
+        switch (interferenceMode){
+            case INTERFERENCE_BARNES_HUT:
+                engine = new BarnesHutInterference(openingAngle);
+                break;
+            case INTERFERENCE_PARTICLE_MESH:
+                engine = new ParticleMeshInterference(meshResolution);
+                break;
+            default:
+                return new ExactInterference();
+        }
+        return compareInterference ? new ComparedInterference(engine) : engine;
+    }
+
+    /** CREATE NETWORK GENERATOR
+     * @return the generator that will build and rewire the network according to the networkModel
+     */
+    private NetworkGenerator createNetworkGenerator(){
+        switch (networkModel){
+            case NETWORK_CONFIGURATION:
+                return new ConfigurationNetworkGenerator();
+            case NETWORK_WATTS_STROGATZ:
+                return new WattsStrogatzNetworkGenerator();
+            case NETWORK_PREFERENTIAL_ATTACHMENT:
+                return new PreferentialAttachmentNetworkGenerator();
+            default:
+                return new PoissonNetworkGenerator();
+        }
+    }
+
+    /** ReadFile Method
+     * The columns of the `params` file will be stored as properties of a FileParams object
+     * @return A FileParams object that will contain the columns of the file as properties
+     */
+    private FileParams readFile(){
+        FileParams fileParams = FileParams.read(new File("params"));
+        this.setLines(fileParams.getSize());
         return fileParams;
     }
 
@@ -290,19 +745,7 @@ public class City extends SimState{
                 // 1. Get ALL params from fileParams
                 // 2. Set ALL params for current SIM
 
-                ((City) state).setNumPatients(fileParams.getNumPatients(i));
-                ((City) state).setProbInfected(fileParams.getProbInfected(i));
-                ((City) state).setProbVaccine(fileParams.getProbVaccine(i));
-                ((City) state).setLambda(fileParams.getLambda(i));
-                ((City) state).setContagion(fileParams.getContagion(i));
-                ((City) state).setInfectiousness(fileParams.getInfectiousness(i));
-                ((City) state).setSexOnInfection(fileParams.getSexOnInfection(i));
-                ((City) state).setSexOnVaccine(fileParams.getSexOnVaccine(i));
-                ((City) state).setVaccineOnInfection(fileParams.getVaccineOnInfection(i));
-                ((City) state).setPromiscuityPopulation(fileParams.getPromiscuityPopulation(i));
-                ((City) state).setMaxPartnerForce(fileParams.getMaxPartnerForce(i));
-                ((City) state).setRandomForce(fileParams.getRandomForce(i));
-                ((City) state).setPartnerForce(fileParams.getPartnerForce(i));
+                fileParams.apply(i, (City) state);
                 ((City) state).setFilenameHash();
 
                 System.out.println("sexOnVaccine = " + ((City) state).getSexOnVaccine());
@@ -312,8 +755,10 @@ public class City extends SimState{
                 do {
                     if (!state.schedule.step(state)) break;
                 }
-                while(state.schedule.getSteps() < ((City) state).earlyGUIStop);
+                while(((City) state).getCompletedSteps() < ((City) state).earlyGUIStop && !((City) state).checkStop());
                 state.finish();
+                ((City) state).printOutputThroughput();
+                ((City) state).printProfile();
             }
 
             System.exit(0);
@@ -324,8 +769,10 @@ public class City extends SimState{
             do {
                 if (!state.schedule.step(state)) break;
             }
-            while(state.schedule.getSteps() < ((City) state).earlyGUIStop);
+            while(((City) state).getCompletedSteps() < ((City) state).earlyGUIStop && !((City) state).checkStop());
             state.finish();
+            ((City) state).printOutputThroughput();
+            ((City) state).printProfile();
             System.exit(0);
         }
     }
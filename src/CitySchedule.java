@@ -0,0 +1,128 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import sim.engine.Schedule;
+import sim.engine.Steppable;
+import sim.engine.Stoppable;
+import sim.util.Heap;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** CITY SCHEDULE
+ * The schedule of the City: a MASON Schedule that also keeps its repeating entries in the order they were added,
+ * so that the layout of its heap can be copied to the schedule of a branch
+ * The entries of an ordering are shuffled in the order they come out of the heap, so a branch whose heap has the
+ * same layout steps its agents in the same order as the City it was forked from
+ */
+
+public class CitySchedule extends Schedule {
+    private final List<Stoppable> repeating = new ArrayList<>();
+
+    public CitySchedule(){}
+
+    /** BRANCH SCHEDULE CONSTRUCTOR
+     * @param time of the snapshot the branch starts from, instead of before the simulation
+     * @param steps of the schedule at the time of the snapshot
+     */
+    CitySchedule(double time, long steps){
+        this.time = time;
+        this.steps = steps;
+    }
+
+    @Override
+    public Stoppable scheduleRepeating(double time, int ordering, Steppable event, double interval){
+        Stoppable entry = super.scheduleRepeating(time, ordering, event, interval);
+        if (entry != null){
+            synchronized (lock){
+                repeating.add(entry);
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public void clear(){
+        synchronized (lock){
+            super.clear();
+            repeating.clear();
+        }
+    }
+
+    @Override
+    public void reset(){
+        synchronized (lock){
+            super.reset();
+            repeating.clear();
+        }
+    }
+
+    /** LAYOUT
+     * @return for each position of the heap, the index of its entry in the order they were added; null if the
+     * heap holds any other entry, such as those scheduled once
+     */
+    int[] layout(){
+        synchronized (lock){
+            Object[] objects = queue.getObjects();
+            if (objects.length != repeating.size()) return null;
+            Map<Object, Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < repeating.size(); i++){
+                index.put(repeating.get(i), i);
+            }
+
+            int[] layout = new int[objects.length];
+            for (int position = 0; position < objects.length; position++){
+                Integer i = index.get(objects[position]);
+                if (i == null) return null;
+                layout[position] = i;
+            }
+            return layout;
+        }
+    }
+
+    /** RESTORE LAYOUT
+     * Builds the heap again with the entries at the positions of the layout
+     * The entries must have been added in the same order as those of the schedule the layout was taken from
+     * @param layout from layout(), or null
+     * @return whether the layout could be applied: otherwise the heap is left as it was
+     */
+    boolean restore(int[] layout){
+        synchronized (lock){
+            Object[] objects = queue.getObjects();
+            Comparable<?>[] keys = queue.getKeys();
+            if (layout == null || layout.length != objects.length || objects.length != repeating.size()) return false;
+            Map<Object, Comparable<?>> keyOf = new IdentityHashMap<>();
+            for (int position = 0; position < objects.length; position++){
+                keyOf.put(objects[position], keys[position]);
+            }
+
+            Object[] newObjects = new Object[objects.length];
+            Comparable<?>[] newKeys = new Comparable<?>[objects.length];
+            for (int position = 0; position < layout.length; position++){
+                Object entry = repeating.get(layout[position]);
+                newObjects[position] = entry;
+                newKeys[position] = keyOf.get(entry);
+                if (newKeys[position] == null) return false;
+            }
+
+            // The keys are already in heap order, so building the heap moves none of them
+            queue = new Heap(newKeys, newObjects);
+            return true;
+        }
+    }
+}
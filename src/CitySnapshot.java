@@ -0,0 +1,102 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import ec.util.MersenneTwisterFast;
+import sim.engine.Schedule;
+import sim.util.Properties;
+import sim.util.SimpleProperties;
+import java.util.HashMap;
+import java.util.Map;
+
+/** CITY SNAPSHOT
+ * The state of a City between two steps, kept in memory to fork counterfactual branches with City.fork():
+ * 1. The seed, the time of the schedule and the writable properties
+ * 2. Copies of the population store, the network, the network generator and the random number generator
+ * 3. The layout of the heap of the schedule, so that the agents of the branches are shuffled as in the City
+ * The copies are taken once and only read afterwards: each branch copies them again when it is forked, so the
+ * City and its branches can go on independently, each on its own thread
+ * Unlike SimState.writeToCheckpoint, nothing is serialized
+ * The agents, the yard and the steppers are not copied but built again over the copied state
+ */
+
+public class CitySnapshot {
+    final long seed;
+    final double time;
+    final long steps;
+    final int earlyGUIStop;
+    final String fileName;
+    final PopulationStore population;
+    final PeerNetwork peers;
+    final NetworkGenerator networkGenerator;
+    final MersenneTwisterFast random;
+    final int[] scheduleLayout;
+    final int[] bulkLayout;
+    private final Map<String, Object> properties = new HashMap<>();
+
+    /** CITY SNAPSHOT CONSTRUCTOR
+     * @param city started, before its first step or between two calls to schedule.step
+     * @throws IllegalStateException if the City has not started, is in the middle of a step, or keeps state
+     * outside the population store: the event-time vaccination and the infection events are not copied
+     */
+    CitySnapshot(City city){
+        double time = city.schedule.getTime();
+        if (city.patients.length == 0){
+            throw new IllegalStateException("A snapshot can only be taken once the City has started");
+        }
+        if (time != Schedule.BEFORE_SIMULATION && (time < Schedule.EPOCH || time != Math.floor(time))){
+            throw new IllegalStateException("A snapshot can only be taken between two steps, at time " + time);
+        }
+        if (city.getVaccinationMode() != City.VACCINATION_BERNOULLI || city.getInfectionMode() != City.INFECTION_BERNOULLI){
+            throw new IllegalStateException("A snapshot needs the Bernoulli vaccination and infection modes");
+        }
+
+        this.seed = city.seed();
+        this.time = time;
+        this.steps = city.schedule.getSteps();
+        this.earlyGUIStop = city.earlyGUIStop;
+        this.fileName = city.getFileNameHash();
+        this.population = city.population.copy();
+        this.peers = city.peers.copy();
+        this.networkGenerator = city.getNetworkGenerator().copy();
+        this.random = (MersenneTwisterFast) city.random.clone();
+        this.scheduleLayout = city.schedule instanceof CitySchedule ? ((CitySchedule) city.schedule).layout() : null;
+        this.bulkLayout = city.getBulkStepper() != null ? city.getBulkStepper().layout() : null;
+
+        Properties source = new SimpleProperties(city);
+        for (int i = 0; i < source.numProperties(); i++){
+            if (source.isReadWrite(i)) properties.put(source.getName(i), source.getValue(i));
+        }
+    }
+
+    /** STEP
+     * @return the last step stepped before the snapshot, -1 if it was taken before the first step
+     */
+    public long getStep(){return (long) time;}
+    public long getSeed(){return seed;}
+
+    /** APPLY PROPERTIES
+     * @param city whose writable properties are set to those of the snapshot
+     */
+    void applyProperties(City city){
+        Properties target = new SimpleProperties(city);
+        for (int i = 0; i < target.numProperties(); i++){
+            String name = target.getName(i);
+            if (target.isReadWrite(i) && properties.containsKey(name)) target.setValue(i, properties.get(name));
+        }
+        city.earlyGUIStop = earlyGUIStop;
+    }
+}
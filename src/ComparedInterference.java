@@ -0,0 +1,71 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/** COMPARED INTERFERENCE
+ * Runs an approximate engine and the exact sum side by side
+ * The simulation follows the approximate engine, while the largest and root mean square absolute error of
+ * indirectInterference over the last step are recorded
+ */
+
+public class ComparedInterference implements InterferenceEngine {
+    private final InterferenceEngine approximate;
+    private final InterferenceEngine exact = new ExactInterference();
+    private final ThreadLocal<double[]> references = ThreadLocal.withInitial(() -> new double[3]);
+
+    // The agents may be stepped in parallel
+    private final DoubleAccumulator maxError = new DoubleAccumulator(Math::max, 0.0);
+    private final DoubleAdder sumSquaredError = new DoubleAdder();
+    private final LongAdder count = new LongAdder();
+    private double lastMaxError;
+    private double lastRmsError;
+
+    public ComparedInterference(InterferenceEngine approximate){
+        this.approximate = approximate;
+    }
+
+    public void prepare(City city){
+        if (count.sum() > 0){
+            lastMaxError = maxError.get();
+            lastRmsError = Math.sqrt(sumSquaredError.sum() / count.sum());
+        }
+        maxError.reset();
+        sumSquaredError.reset();
+        count.reset();
+        approximate.prepare(city);
+        exact.prepare(city);
+    }
+
+    public void interference(City city, int ego, double[] out){
+        double[] reference = references.get();
+        approximate.interference(city, ego, out);
+        exact.interference(city, ego, reference);
+
+        double error = Math.abs(out[INDIRECT] - reference[INDIRECT]);
+        maxError.accumulate(error);
+        sumSquaredError.add(error * error);
+        count.increment();
+    }
+
+    public double getErrorBound(){return approximate.getErrorBound();}
+
+    // Measured errors of the last complete step
+    public double getMaxError(){return lastMaxError;}
+    public double getRmsError(){return lastRmsError;}
+}
@@ -0,0 +1,65 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/** CONFIGURATION NETWORK GENERATOR
+ * Erased configuration model:
+ * 1. Each agent draws its target degree from a Poisson(meanDegree)
+ * 2. The stubs of all the agents are shuffled and paired, dropping self-loops and repeated edges
+ * When an agent rewires, it keeps its degree and its new peers are drawn with probability proportional to
+ * their degree, as a stub would be
+ */
+
+public class ConfigurationNetworkGenerator extends AbstractNetworkGenerator {
+
+    public void generate(City city){
+        clear(city);
+        PopulationStore store = city.population;
+        PoissonTable table = PoissonTable.forLambda(city.getMeanDegree());
+
+        // STUBS: each agent appears as many times as its target degree
+        int[] target = new int[store.size];
+        int stubs = 0;
+        for (int i = 0; i < store.size; i++){
+            target[i] = table.sample(city.random.nextDouble());
+            stubs += target[i];
+        }
+        int[] stub = new int[stubs];
+        int next = 0;
+        for (int i = 0; i < store.size; i++){
+            for (int k = 0; k < target[i]; k++) stub[next++] = i;
+        }
+
+        // SHUFFLE AND PAIR: an odd stub is left out
+        for (int i = stubs - 1; i > 0; i--){
+            int j = city.random.nextInt(i + 1);
+            int swap = stub[i];
+            stub[i] = stub[j];
+            stub[j] = swap;
+        }
+        for (int i = 0; i + 1 < stubs; i += 2){
+            int one = stub[i];
+            int other = stub[i + 1];
+            if (one != other && !connected(city, one, other)){
+                connect(city, one, other);
+            }
+        }
+    }
+
+    public void rewire(City city, Patient patient){
+        int ego = patient.getId();
+        connectDegreeProportional(city, ego, disconnect(city, ego));
+    }
+}
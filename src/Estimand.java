@@ -0,0 +1,59 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** ESTIMAND
+ * A quantity measured on the state of a City at the end of a run, estimated over its replicates
+ * 1. PREVALENCE: fraction of infected agents
+ * 2. RISK_DIFFERENCE: risk of infection of the vaccinated agents minus that of the unvaccinated ones, the crude
+ *    contrast of R/causalAnalysis.R; NaN if either group is empty
+ */
+
+public interface Estimand {
+
+    Estimand PREVALENCE = city -> city.population.countInfected() / (double) city.population.size;
+
+    Estimand RISK_DIFFERENCE = city -> {
+        PopulationStore store = city.population;
+        int vaccinated = store.countVaccinated();
+        int unvaccinated = store.size - vaccinated;
+        if (vaccinated == 0 || unvaccinated == 0) return Double.NaN;
+        int infectedVaccinated = 0;
+        for (int i = store.vaccine.nextSetBit(0); i >= 0; i = store.vaccine.nextSetBit(i + 1)){
+            if (store.infected.get(i)) infectedVaccinated++;
+        }
+        int infectedUnvaccinated = store.countInfected() - infectedVaccinated;
+        return infectedVaccinated / (double) vaccinated - infectedUnvaccinated / (double) unvaccinated;
+    };
+
+    /** MEASURE
+     * @param city at the end of a run
+     * @return the value of the estimand, NaN if it is not defined for this run
+     */
+    double measure(City city);
+
+    /** ESTIMAND BY NAME
+     * @param name prevalence or riskDifference
+     * @return the estimand
+     */
+    static Estimand forName(String name){
+        switch (name){
+            case "prevalence": return PREVALENCE;
+            case "riskDifference": return RISK_DIFFERENCE;
+            default: throw new IllegalArgumentException("Unknown estimand: " + name);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import ec.util.MersenneTwisterFast;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/** EVENT INFECTION
+ * Continuous-time infection: instead of a Bernoulli draw for every agent at every step, infections are events
+ * fired with Schedule.scheduleOnce at exponentially distributed times
+ * 1. At the end of each step t the hazard of every susceptible agent is set from its infection probability q,
+ *    with the interference just calculated, lambda = -log(1 - q), so that the probability of infection over one
+ *    step at a constant hazard is still q
+ * 2. The hazards are constant until t + 1, and are kept in a Fenwick tree to pick agents by hazard in O(log N)
+ * 3. GILLESPIE: the next infection is at an exponential time of rate sum(lambda), for the agent picked by hazard;
+ *    after each event the next one is drawn from the event time, which is exact for constant hazards
+ * 4. TAU-LEAPING: the step is split into leaps of tauLeap steps and a Poisson number of infections of mean
+ *    sum(lambda) * tauLeap is fired at the end of each leap; leaps without infections are not scheduled
+ * The output is still sampled at integer steps, since Utils is only scheduled at integer times
+ */
+
+public class EventInfection implements Steppable {
+    // After every other steppable of the step; the last leap of a step fires before everything of the next one
+    public static final int ORDERING = Integer.MAX_VALUE - 1;
+    private static final int LAST_LEAP_ORDERING = Integer.MIN_VALUE;
+
+    private final double[] hazard;
+    private final double[] tree;
+    private final int highestPower;
+    private final boolean tauLeaping;
+    private final double tauLeap;
+    private final Steppable event;
+
+    private double totalHazard;
+    private double end;
+    private long pendingInfections;
+    private long events;
+
+    /** EVENT INFECTION CONSTRUCTOR
+     * @param size number of agents
+     * @param tauLeaping true for tau-leaping, false for the exact Gillespie algorithm
+     * @param tauLeap length of each leap, in steps
+     */
+    public EventInfection(int size, boolean tauLeaping, double tauLeap){
+        this.hazard = new double[size];
+        this.tree = new double[size + 1];
+        this.highestPower = size == 0 ? 0 : Integer.highestOneBit(size);
+        this.tauLeaping = tauLeaping;
+        this.tauLeap = Math.min(1.0, Math.max(1e-6, tauLeap));
+        this.event = new Steppable() {
+            public void step(SimState state) {
+                fire((City) state);
+            }
+        };
+    }
+
+    /** STEP
+     * Sets the hazards from the state at the end of the step, and schedules the first event until the next step
+     * @param state of the simulation
+     */
+    public void step(SimState state){
+        City city = (City) state;
+        PopulationStore store = city.population;
+        double now = city.schedule.getTime();
+        end = Math.floor(now) + 1.0;
+
+        // 1. HAZARDS: agents certain to be infected are infected now
+        java.util.Arrays.fill(tree, 0.0);
+        totalHazard = 0.0;
+        for (int i = 0; i < hazard.length; i++){
+            double rate = 0.0;
+            if (!store.infected.get(i)){
+                double q = city.patients[i].infectionProbability(city, store.vaccine.get(i), store.indirectInterference[i]);
+                if (q >= 1.0){
+                    store.setInfected(i, true);
+                    events++;
+                } else if (q > 0.0){
+                    rate = -Math.log1p(-q);
+                }
+            }
+            hazard[i] = rate;
+            tree[i + 1] = rate;
+            totalHazard += rate;
+        }
+
+        // 2. FENWICK TREE IN O(N)
+        for (int i = 1; i <= hazard.length; i++){
+            int parent = i + (i & -i);
+            if (parent <= hazard.length) tree[parent] += tree[i];
+        }
+
+        // 3. FIRST EVENT
+        scheduleNext(city, now);
+    }
+
+    /** SCHEDULE NEXT
+     * Schedules the next event after the given time, if it happens before the next step
+     * A leap that ends with the step fires at the next step, before anything else of it
+     * @param city of the schedule
+     * @param from time of the last event
+     */
+    private void scheduleNext(City city, double from){
+        MersenneTwisterFast random = city.random;
+        if (!tauLeaping){
+            if (totalHazard <= 0.0) return;
+            double time = from - Math.log(1.0 - random.nextDouble()) / totalHazard;
+            if (time < end) city.schedule.scheduleOnce(time, ORDERING, event);
+            return;
+        }
+
+        // Quiet leaps are skipped without being scheduled
+        while (totalHazard > 0.0 && from < end){
+            double time = Math.min(from + tauLeap, end);
+            pendingInfections = poisson(random, totalHazard * (time - from));
+            if (pendingInfections > 0){
+                if (time < end) city.schedule.scheduleOnce(time, ORDERING, event);
+                else city.schedule.scheduleOnce(time, LAST_LEAP_ORDERING, event);
+                return;
+            }
+            from = time;
+        }
+    }
+
+    /** FIRE
+     * Infects one agent picked by hazard, or, when tau-leaping, the infections drawn for the leap
+     * @param city whose agents are infected
+     */
+    private void fire(City city){
+        long infections = tauLeaping ? pendingInfections : 1;
+        for (long k = 0; k < infections && totalHazard > 0.0; k++){
+            int agent = pick(city.random.nextDouble() * totalHazard);
+            city.population.setInfected(agent, true);
+            remove(agent);
+            events++;
+        }
+        scheduleNext(city, city.schedule.getTime());
+    }
+
+    /** PICK
+     * @param target in [0, total hazard)
+     * @return the agent whose interval of cumulative hazard holds the target
+     */
+    private int pick(double target){
+        int position = 0;
+        for (int step = highestPower; step > 0; step >>= 1){
+            int next = position + step;
+            if (next <= hazard.length && tree[next] <= target){
+                position = next;
+                target -= tree[next];
+            }
+        }
+        // Rounding may land on an agent without hazard: take the nearest one with it
+        int agent = Math.min(position, hazard.length - 1);
+        while (agent > 0 && hazard[agent] == 0.0) agent--;
+        while (agent < hazard.length - 1 && hazard[agent] == 0.0) agent++;
+        return agent;
+    }
+
+    private void remove(int agent){
+        double rate = hazard[agent];
+        hazard[agent] = 0.0;
+        for (int i = agent + 1; i <= hazard.length; i += i & -i){
+            tree[i] -= rate;
+        }
+        totalHazard -= rate;
+        if (totalHazard < 1e-12) totalHazard = 0.0;
+    }
+
+    /** POISSON
+     * Inversion for small means, normal approximation for large ones
+     */
+    private static long poisson(MersenneTwisterFast random, double mean){
+        if (mean <= 0.0) return 0;
+        if (mean < 30.0){
+            double limit = Math.exp(-mean);
+            double product = random.nextDouble();
+            long count = 0;
+            while (product > limit){
+                product *= random.nextDouble();
+                count++;
+            }
+            return count;
+        }
+        return Math.max(0L, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+    }
+
+    public long getEvents(){return events;}
+    public double getTotalHazard(){return totalHazard;}
+}
@@ -0,0 +1,71 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.BitSet;
+
+/** EXACT INTERFERENCE
+ * Sums the inverse distance between each agent and the other agents of the simulation
+ * Only infected alters contribute to contagionDistance and indirectInterference, and only vaccinated alters
+ * to infectiousnessDistance, so the sums iterate the infected and vaccinated bitsets of the population: O(N*I) per step
+ * The indexes are visited by increasing id, the order of the nodes of the network, so the sums are bit-identical
+ * to adding a zero for every other alter
+ */
+
+public class ExactInterference implements InterferenceEngine {
+
+    public void prepare(City city){}
+
+    public void interference(City city, int ego, double[] out){
+        PopulationStore store = city.population;
+        BitSet infectedIndex = store.infected;
+        BitSet vaccinatedIndex = store.vaccine;
+
+        // Calculate the following parameters
+        double contagionDistance = 0.0;
+        double infectiousnessDistance = 0.0;
+        double indirectInterference = 0.0;
+
+        for(int alter = infectedIndex.nextSetBit(0); alter >= 0; alter = infectedIndex.nextSetBit(alter + 1)){
+            if(alter != ego){
+                double denominator = 1 + store.distance(ego, alter);
+                int infected = 1;
+                int vaccine = vaccinatedIndex.get(alter) ? 1:0;
+
+                contagionDistance += infected / denominator;
+
+                // Infectiousness only occurs when alters are infected (Y == 1)
+                indirectInterference += (infected * city.getContagion() -
+                        vaccine * city.getInfectiousness()) /
+                        denominator;
+            }
+        }
+
+        for(int alter = vaccinatedIndex.nextSetBit(0); alter >= 0; alter = vaccinatedIndex.nextSetBit(alter + 1)){
+            if(alter != ego){
+                double denominator = 1 + store.distance(ego, alter);
+                int vaccine = 1;
+
+                infectiousnessDistance += vaccine / denominator;
+            }
+        }
+
+        out[CONTAGION] = contagionDistance;
+        out[INFECTIOUSNESS] = infectiousnessDistance;
+        out[INDIRECT] = indirectInterference;
+    }
+
+    public double getErrorBound(){return 0.0;}
+}
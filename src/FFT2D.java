@@ -0,0 +1,125 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/** FFT2D CLASS
+ * In-place radix-2 Fast Fourier Transform of a square complex array of side size (a power of two)
+ * The real and imaginary parts are stored row-major in two double arrays of size * size
+ */
+
+public class FFT2D {
+    private final int size;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reverse;
+    private final double[] columnRe;
+    private final double[] columnIm;
+
+    /** FFT2D CONSTRUCTOR
+     * @param size side of the array: must be a power of two
+     */
+    public FFT2D(int size){
+        if (Integer.bitCount(size) != 1){
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+        this.cos = new double[size / 2];
+        this.sin = new double[size / 2];
+        this.reverse = new int[size];
+        this.columnRe = new double[size];
+        this.columnIm = new double[size];
+
+        for (int i = 0; i < size / 2; i++){
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = Math.sin(2 * Math.PI * i / size);
+        }
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++){
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int getSize(){return size;}
+
+    // Smallest power of two that is not smaller than n
+    public static int powerOfTwo(int n){
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    public void forward(double[] re, double[] im){transform(re, im, false);}
+
+    /** INVERSE TRANSFORM
+     * Scaled by 1 / (size * size) so that inverse(forward(x)) == x
+     */
+    public void inverse(double[] re, double[] im){
+        transform(re, im, true);
+        double scale = 1.0 / ((double) size * size);
+        for (int i = 0; i < re.length; i++){
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(double[] re, double[] im, boolean inverse){
+        // Rows
+        for (int row = 0; row < size; row++){
+            transform1D(re, im, row * size, 1, inverse);
+        }
+        // Columns: copied to contiguous buffers
+        for (int column = 0; column < size; column++){
+            for (int i = 0; i < size; i++){
+                columnRe[i] = re[i * size + column];
+                columnIm[i] = im[i * size + column];
+            }
+            transform1D(columnRe, columnIm, 0, 1, inverse);
+            for (int i = 0; i < size; i++){
+                re[i * size + column] = columnRe[i];
+                im[i * size + column] = columnIm[i];
+            }
+        }
+    }
+
+    private void transform1D(double[] re, double[] im, int offset, int stride, boolean inverse){
+        // Bit-reversal permutation
+        for (int i = 0; i < size; i++){
+            int j = reverse[i];
+            if (j > i){
+                int a = offset + i * stride, b = offset + j * stride;
+                double t = re[a]; re[a] = re[b]; re[b] = t;
+                t = im[a]; im[a] = im[b]; im[b] = t;
+            }
+        }
+        // Butterflies
+        double sign = inverse ? 1.0 : -1.0;
+        for (int length = 2; length <= size; length <<= 1){
+            int half = length >> 1;
+            int step = size / length;
+            for (int start = 0; start < size; start += length){
+                for (int k = 0; k < half; k++){
+                    double wr = cos[k * step];
+                    double wi = sign * sin[k * step];
+                    int a = offset + (start + k) * stride;
+                    int b = offset + (start + k + half) * stride;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
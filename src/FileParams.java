@@ -14,10 +14,13 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Scanner;
 
 /** FILEPARAMS CLASS
 The columns of the `params` file will be stored as properties of a FileParams object
+A last column, outputPlan, is optional: lines without it write every step of every agent (see OutputPlan)
  */
 
 public class FileParams {
@@ -34,6 +37,7 @@ public class FileParams {
     private ArrayList<Double> maxPartnerForce;
     private ArrayList<Double> randomForce;
     private ArrayList<Double> partnerForce;
+    private ArrayList<String> outputPlan;
 
     // Constructor
     public FileParams(){
@@ -50,9 +54,83 @@ public class FileParams {
         this.maxPartnerForce = new ArrayList<>();
         this.randomForce = new ArrayList<>();
         this.partnerForce = new ArrayList<>();
+        this.outputPlan = new ArrayList<>();
+    }
+
+    /** READ
+     * The first line of the file is the header, and each following line a simulation
+     * @param file with the parameters separated by commas, in the column order of the `params` file
+     * @return A FileParams object that will contain the columns of the file as properties
+     */
+    public static FileParams read(File file){
+        Scanner inputStream = null;
+
+        try{
+            inputStream = new Scanner(file);
+        } catch (Exception e){
+            System.out.println("Could not find file");
+        }
+
+        // Ignore the first line: HEADER
+        inputStream.next();
+
+        // Initialise the object to collect parameters
+        FileParams fileParams = new FileParams();
+
+        while(inputStream.hasNext()) {
+            String allData = inputStream.next();
+            String[] columns = allData.split(",");
+
+            int i = 0;
+            fileParams.addNumPatients(Integer.parseInt(columns[i++]));
+            fileParams.addProbInfected(Double.parseDouble(columns[i++]));
+            fileParams.addProbVaccine(Double.parseDouble(columns[i++]));
+            fileParams.addLambda(Double.parseDouble(columns[i++]));
+            fileParams.addContagion(Double.parseDouble(columns[i++]));
+            fileParams.addInfectiousness(Double.parseDouble(columns[i++]));
+            fileParams.addSexOnInfection(Double.parseDouble(columns[i++]));
+            fileParams.addSexOnVaccine(Double.parseDouble(columns[i++]));
+            fileParams.addVaccineOnInfection(Double.parseDouble(columns[i++]));
+            fileParams.addPromiscuityPopulation(Double.parseDouble(columns[i++]));
+            fileParams.addMaxPartnerForce(Double.parseDouble(columns[i++]));
+            fileParams.addRandomForce(Double.parseDouble(columns[i++]));
+            fileParams.addPartnerForce(Double.parseDouble(columns[i++]));
+
+            // The plan is checked here, so that a wrong plan stops the sweep before any run
+            String plan = columns.length > i ? columns[i] : "all";
+            OutputPlan.parse(plan);
+            fileParams.addOutputPlan(plan);
+        }
+
+        inputStream.close();
+
+        return fileParams;
+    }
+
+    /** APPLY
+     * Sets ALL params of a line on a City
+     * @param index of the line, without the header
+     * @param city whose properties are set
+     */
+    public void apply(int index, City city){
+        city.setNumPatients(this.getNumPatients(index));
+        city.setProbInfected(this.getProbInfected(index));
+        city.setProbVaccine(this.getProbVaccine(index));
+        city.setLambda(this.getLambda(index));
+        city.setContagion(this.getContagion(index));
+        city.setInfectiousness(this.getInfectiousness(index));
+        city.setSexOnInfection(this.getSexOnInfection(index));
+        city.setSexOnVaccine(this.getSexOnVaccine(index));
+        city.setVaccineOnInfection(this.getVaccineOnInfection(index));
+        city.setPromiscuityPopulation(this.getPromiscuityPopulation(index));
+        city.setMaxPartnerForce(this.getMaxPartnerForce(index));
+        city.setRandomForce(this.getRandomForce(index));
+        city.setPartnerForce(this.getPartnerForce(index));
+        city.setOutputPlan(this.getOutputPlan(index));
     }
 
     // Getters
+    public int getSize(){return this.numPatients.size();}
     public int getNumPatients(int index){return this.numPatients.get(index);}
     public double getProbInfected(int index){return this.probInfected.get(index);}
     public double getProbVaccine(int index){return this.probVaccine.get(index);}
@@ -66,6 +144,7 @@ public class FileParams {
     public double getMaxPartnerForce(int index){return this.maxPartnerForce.get(index);}
     public double getRandomForce(int index){return this.randomForce.get(index);}
     public double getPartnerForce(int index){return this.partnerForce.get(index);}
+    public String getOutputPlan(int index){return this.outputPlan.get(index);}
 
     // Adders
     public void addNumPatients(int value){this.numPatients.add(value);}
@@ -81,5 +160,6 @@ public class FileParams {
     public void addMaxPartnerForce(double value){this.maxPartnerForce.add(value);}
     public void addRandomForce(double value){this.randomForce.add(value);}
     public void addPartnerForce(double value){this.partnerForce.add(value);}
+    public void addOutputPlan(String value){this.outputPlan.add(value);}
 
 }
@@ -24,14 +24,10 @@ import sim.engine.Steppable;
 import sim.portrayal.DrawInfo2D;
 import sim.portrayal.Inspector;
 import sim.portrayal.continuous.ContinuousPortrayal2D;
-import sim.portrayal.network.NetworkPortrayal2D;
-import sim.portrayal.network.SimpleEdgePortrayal2D;
-import sim.portrayal.network.SpatialNetwork2D;
 import sim.portrayal.simple.CircledPortrayal2D;
 import sim.portrayal.simple.LabelledPortrayal2D;
 import sim.portrayal.simple.MovablePortrayal2D;
 import sim.portrayal.simple.OvalPortrayal2D;
-import sim.util.Bag;
 import sim.util.media.chart.TimeSeriesChartGenerator;
 import javax.swing.*;
 import java.awt.*;
@@ -46,7 +42,7 @@ public class GUI extends GUIState {
     private Display2D display;
     private JFrame displayFrame;
     private ContinuousPortrayal2D yardPortrayal = new ContinuousPortrayal2D();
-    private NetworkPortrayal2D peersPortrayal = new NetworkPortrayal2D();
+    private PeersPortrayal2D peersPortrayal = new PeersPortrayal2D(Color.lightGray);
     private TimeSeriesChartGenerator cumDistanceChart;
     private JFrame cumDistanceChartFrame;
     private TimeSeriesChartGenerator numInfectedVaccinatedChart;
@@ -87,6 +83,21 @@ public class GUI extends GUIState {
         super.start();
         setupPortrayals();
 
+        // LOCATIONS OF THE AGENTS DRAGGED IN THE DISPLAY, BEFORE THE AGENTS MOVE
+        scheduleRepeatingImmediatelyBefore(new Steppable() {
+            public void step(SimState state) {
+                ((City) state).updateStore();
+            }
+        });
+
+        // LOCATIONS OF THE AGENTS FOR THE PORTRAYALS
+        scheduleRepeatingImmediatelyAfter(new Steppable() {
+            public void step(SimState state) {
+                ((City) state).updateYard();
+                if (((City) state).checkStop()) state.kill();
+            }
+        });
+
         XYSeries mean_series, max_series, min_series, numInfectedSeries, numVaccinatedSeries;
 
         // CUMULATIVE DISTANCE CHART
@@ -102,16 +113,16 @@ public class GUI extends GUIState {
             @Override
             public void step(SimState state) {
                 City city = (City) state;
-                double x = city.schedule.getSteps();
+                double x = city.getCompletedSteps();
 
-                Bag agents = city.yard.getAllObjects();
+                double[] indirectInterference = city.population.indirectInterference;
                 double cumDistance;
                 double minCumDistance = Double.POSITIVE_INFINITY;
                 double maxCumDistance = 0;
                 double cumDistanceSum = 0;
-                long numPatients = agents.size();
+                long numPatients = city.population.size;
                 for(int i = 0; i < numPatients; i++){
-                    cumDistance = ((Patient) agents.get(i)).getIndirectInterference();
+                    cumDistance = indirectInterference[i];
                     cumDistanceSum += cumDistance;
                     if (cumDistance > maxCumDistance){
                         maxCumDistance = cumDistance;
@@ -127,7 +138,7 @@ public class GUI extends GUIState {
                     min_series.add(x,minCumDistance,false);
                     mean_series.add(x, cumDistanceSum/numPatients,false);
 
-                    cumDistanceChart.updateChartWithin(state.schedule.getSteps(), 1000);
+                    cumDistanceChart.updateChartWithin(((City) state).getCompletedSteps(), 1000);
                 }
             }
         });
@@ -142,29 +153,18 @@ public class GUI extends GUIState {
 
             public void step(SimState state) {
                 City city = (City) state;
-                Patient patient = new Patient("name",city);
-                Bag peers = city.peers.getAllNodes();
-
-                int countInfected = 0;
-                int countVaccine = 0;
 
                 // count vaccinated and infected
-                for(int i = 0; i < peers.size(); i++){
-                    if (((Patient) peers.get(i)).getInfected()){
-                        countInfected++;
-                    } if (((Patient) peers.get(i)).getVaccine()) {
-                        countVaccine++;
-                    }
-
-                }
+                int countInfected = city.population.countInfected();
+                int countVaccine = city.population.countVaccinated();
 
-                double x = city.schedule.getSteps();
+                double x = city.getCompletedSteps();
 
                 // ADD THE DATA
                 if (x >= state.schedule.EPOCH && x < state.schedule.AFTER_SIMULATION){
                     numInfectedSeries.add(x,countInfected,false); // don't redraw data immediately
                     numVaccinatedSeries.add(x,countVaccine,false);
-                    numInfectedVaccinatedChart.updateChartWithin(state.schedule.getSteps(),1000);
+                    numInfectedVaccinatedChart.updateChartWithin(((City) state).getCompletedSteps(), 1000);
                 }
             }
         });
@@ -193,15 +193,16 @@ public class GUI extends GUIState {
                                             public void draw(Object object,
                                                              Graphics2D graphics,
                                                              DrawInfo2D info){
-                                                Patient patient = (Patient) object;
+                                                int id = ((Patient) object).getId();
+                                                PopulationStore store = ((City) state).population;
                                                 int infectedColor = 0;
                                                 int treatedColor = 0;
 
                                                 // SET DIFFERENT COLORS DEPENDING ON PROPERTIES
-                                                if (patient.getInfected()){
+                                                if (store.infected.get(id)){
                                                     infectedColor = 255;
                                                 }
-                                                if (patient.getVaccine()){
+                                                if (store.vaccine.get(id)){
                                                     treatedColor = 255;
                                                 }
 
@@ -216,8 +217,7 @@ public class GUI extends GUIState {
         );
 
         // NETWORK PORTRAYAL
-        peersPortrayal.setField(new SpatialNetwork2D(city.yard, city.peers));
-        peersPortrayal.setPortrayalForAll(new SimpleEdgePortrayal2D(Color.lightGray, null));
+        peersPortrayal.setField(city);
 
         // RESCHEDULE THE DISPLAY
         display.reset();
@@ -0,0 +1,50 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/** INTERFERENCE ENGINE
+ * Computes the distance function f(Y) of the outcome for each agent:
+ * 1. contagionDistance = sum over alters of Y_j / (1 + D_ij)
+ * 2. infectiousnessDistance = sum over alters of A_j / (1 + D_ij)
+ * 3. indirectInterference = sum over infected alters of (contagion - A_j * infectiousness) / (1 + D_ij)
+ * The engine is selected with the interferenceMode property of the City
+ */
+
+public interface InterferenceEngine {
+
+    // Indexes of the values written by interference()
+    int CONTAGION = 0;
+    int INFECTIOUSNESS = 1;
+    int INDIRECT = 2;
+
+    /** PREPARE
+     * Called once per step, before any agent is stepped
+     * @param city to get the current state of the agents
+     */
+    void prepare(City city);
+
+    /** INTERFERENCE OF ONE AGENT
+     * May be called from several threads at once between two calls to prepare()
+     * @param city to get the current state of the agents
+     * @param ego id of the agent whose interference is calculated
+     * @param out array of length 3 filled at CONTAGION, INFECTIOUSNESS and INDIRECT
+     */
+    void interference(City city, int ego, double[] out);
+
+    /** ERROR BOUND
+     * @return the largest absolute error bound of indirectInterference over the last step: 0 for exact engines
+     */
+    double getErrorBound();
+}
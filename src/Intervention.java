@@ -0,0 +1,30 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** INTERVENTION
+ * Changes the state or the properties of a counterfactual branch of the simulation, such as the vaccination
+ * assignment of the agents
+ * Called once on each branch forked from a CitySnapshot, after its state has been restored and before its first step
+ */
+
+public interface Intervention {
+
+    /** APPLY
+     * @param city the branch, already started from the snapshot
+     */
+    void apply(City city);
+}
@@ -0,0 +1,223 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/** LOCKSTEP
+ * Runs several arms of the same City in a single loop, step by step, with common random numbers:
+ * 1. Every arm is forked from the same snapshot, so all of them start from the same population and network
+ * 2. In the synchronous mode the movement, vaccine and infection draws come from the AgentRandom substreams of each
+ *    agent. In the phase-major mode they come from the generator of each arm, in id order, one draw per agent and
+ *    phase whatever its state: the coupling then rests on that order, not on substreams. In both modes the network
+ *    is rewired with the generator of each arm in id order, whose draws do not depend on the outcomes: the arms
+ *    draw the same numbers at every step, which is checked after each of them
+ * 3. The arms differ only by their interventions, so the difference of the outcome of an agent between an arm
+ *    and the reference arm, the first one, is a paired difference Y_i(a) - Y_i(a')
+ * The asynchronous and bulk modes draw in the order of the shuffle, from a single generator, and would drift apart:
+ * the arms must use the synchronous or the phase-major mode
+ * Usage: java Lockstep [-agents n] [-steps n] [-burnin n] [-seed n] [-threads n] [-coverage p,p,...]
+ * The arms of main only differ by their coverage: the probability of vaccination is set to 0 in every arm, so that
+ * no agent is vaccinated after the assignment
+ */
+
+public class Lockstep {
+    private static final String DIRECTORY = "output";
+
+    private final List<City> arms = new ArrayList<>();
+    private final boolean[] finished;
+    private long steps;
+
+    /** LOCKSTEP CONSTRUCTOR
+     * @param snapshot state the arms start from, taken after the burn-in or right after start()
+     * @param interventions one per arm, the first one being the reference; null for an arm without intervention
+     * @param threads number of threads of each arm
+     * @throws IllegalArgumentException if the step mode does not draw from per-agent substreams
+     */
+    public Lockstep(CitySnapshot snapshot, List<Intervention> interventions, int threads){
+        String name = "lockstep_" + snapshot.getSeed();
+        for (int k = 0; k < interventions.size(); k++){
+            City arm = City.fork(snapshot, interventions.get(k), name + "_arm" + k + ".csv", threads);
+            if (arm.getStepMode() != City.STEP_SYNCHRONOUS && arm.getStepMode() != City.STEP_PHASE){
+                throw new IllegalArgumentException("The arms must use the synchronous or the phase-major step mode");
+            }
+            arms.add(arm);
+        }
+        finished = new boolean[arms.size()];
+    }
+
+    /** RUN
+     * Steps every arm once per iteration, until all of them have reached the early stop or a stop condition
+     * @throws IllegalStateException if the random number generators of the arms are no longer in the same state
+     */
+    public void run(){
+        boolean running = true;
+        while (running){
+            running = false;
+            for (int k = 0; k < arms.size(); k++){
+                if (finished[k]) continue;
+                City arm = arms.get(k);
+                if (!arm.schedule.step(arm) || arm.getCompletedSteps() >= arm.earlyGUIStop || arm.checkStop()){
+                    arm.finish();
+                    finished[k] = true;
+                } else {
+                    running = true;
+                }
+            }
+            steps++;
+            checkLockstep();
+        }
+    }
+
+    /** CHECK LOCKSTEP
+     * The arms still running at the same step must have drawn the same numbers from their generators
+     */
+    private void checkLockstep(){
+        City reference = null;
+        for (City arm : arms){
+            if (reference == null){
+                reference = arm;
+            } else if (arm.getCompletedSteps() == reference.getCompletedSteps() && !arm.random.stateEquals(reference.random)){
+                throw new IllegalStateException("The arms are no longer in lockstep at step " + arm.getStep());
+            }
+        }
+    }
+
+    public int getArms(){return arms.size();}
+    public City getArm(int arm){return arms.get(arm);}
+    public long getSteps(){return steps;}
+
+    /** PAIRED DIFFERENCES
+     * @param arm index of the arm
+     * @return for each agent, its infection in the arm minus its infection in the reference arm: -1, 0 or 1
+     */
+    public int[] pairedDifferences(int arm){
+        BitSet infected = arms.get(arm).population.infected;
+        BitSet reference = arms.get(0).population.infected;
+        int[] difference = new int[arms.get(0).population.size];
+        for (int i = 0; i < difference.length; i++){
+            difference[i] = (infected.get(i) ? 1 : 0) - (reference.get(i) ? 1 : 0);
+        }
+        return difference;
+    }
+
+    /** MEAN PAIRED DIFFERENCE
+     * @param arm index of the arm
+     * @return the mean over the agents of the paired differences, the overall effect of the arm on prevalence
+     */
+    public double meanDifference(int arm){
+        return (arms.get(arm).population.countInfected() - arms.get(0).population.countInfected()) /
+                (double) arms.get(0).population.size;
+    }
+
+    /** STANDARD ERROR OF THE MEAN PAIRED DIFFERENCE
+     * Across the agents of a single run: the agents interfere with each other, so it is a lower bound
+     * @param arm index of the arm
+     * @return the standard deviation of the paired differences over the square root of the number of agents
+     */
+    public double standardError(int arm){
+        int[] difference = pairedDifferences(arm);
+        int n = difference.length;
+        if (n < 2) return 0.0;
+        double mean = meanDifference(arm);
+        double sum = 0.0;
+        for (int value : difference){
+            sum += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(sum / (n - 1) / n);
+    }
+
+    /** WRITE PAIRED DIFFERENCES
+     * One line per agent and arm other than the reference, to output/<file>
+     * @param file name of the file
+     */
+    public void write(String file) throws IOException {
+        new File(DIRECTORY).mkdirs();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(DIRECTORY, file)), "utf-8"))){
+            writer.write("arm,agent,vaccine,infected,referenceVaccine,referenceInfected,difference");
+            writer.write(System.lineSeparator());
+            PopulationStore reference = arms.get(0).population;
+            for (int k = 1; k < arms.size(); k++){
+                PopulationStore store = arms.get(k).population;
+                int[] difference = pairedDifferences(k);
+                for (int i = 0; i < store.size; i++){
+                    writer.write(k + "," + i + "," + store.vaccine.get(i) + "," + store.infected.get(i) + "," +
+                            reference.vaccine.get(i) + "," + reference.infected.get(i) + "," + difference[i]);
+                    writer.write(System.lineSeparator());
+                }
+            }
+        }
+    }
+
+    /** COUPLED VACCINATION ASSIGNMENT
+     * An agent is vaccinated if its own draw is below the coverage, so the assignment of a lower coverage is
+     * contained in that of a higher one
+     * @param seed of the draws
+     * @param size number of agents
+     * @param coverage fraction of vaccinated agents
+     * @return the ids of the vaccinated agents
+     */
+    public static BitSet assignment(long seed, int size, double coverage){
+        BitSet assignment = new BitSet(size);
+        for (int i = 0; i < size; i++){
+            if (AgentRandom.nextDouble(seed, i, -1, AgentRandom.VACCINE) < coverage) assignment.set(i);
+        }
+        return assignment;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = Long.parseLong(Arguments.value(args, "-seed", String.valueOf(System.currentTimeMillis())));
+        int agents = Integer.parseInt(Arguments.value(args, "-agents", "200"));
+        int burnIn = Integer.parseInt(Arguments.value(args, "-burnin", "0"));
+        int threads = Integer.parseInt(
+                Arguments.value(args, "-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        String[] coverages = Arguments.value(args, "-coverage", "0,0.5").split(",");
+
+        City city = new City(seed);
+        city.setNumPatients(agents);
+        city.setStepMode(City.STEP_SYNCHRONOUS);
+        city.setNumThreads(threads);
+        city.earlyGUIStop = Integer.parseInt(Arguments.value(args, "-steps", String.valueOf(city.earlyGUIStop)));
+        city.setFileName("lockstep_" + seed + "_burnin.csv");
+
+        // BURN-IN: then every arm starts from the same state
+        city.start();
+        while (city.getCompletedSteps() < burnIn && city.schedule.step(city));
+        CitySnapshot snapshot = city.snapshot();
+        city.finish();
+
+        List<Intervention> interventions = new ArrayList<>();
+        for (String coverage : coverages){
+            interventions.add(new VaccinationIntervention(assignment(seed, agents, Double.parseDouble(coverage)), 0.0));
+        }
+
+        System.out.println("LOCKSTEP MODE: seed " + seed + ", " + interventions.size() + " arms from step " + snapshot.getStep());
+        long start = System.nanoTime();
+        Lockstep lockstep = new Lockstep(snapshot, interventions, threads);
+        lockstep.run();
+        for (int k = 1; k < lockstep.getArms(); k++){
+            System.out.println(String.format(Locale.ROOT, "Arm %d (coverage %s) - arm 0 (coverage %s): %.4f (SE %.4f)",
+                    k, coverages[k], coverages[0], lockstep.meanDifference(k), lockstep.standardError(k)));
+        }
+        lockstep.write("lockstep_" + seed + ".csv");
+        System.out.println(String.format(Locale.ROOT, "%d steps in %.1f s", lockstep.getSteps(), (System.nanoTime() - start) * 1e-9));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,44 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/** NETWORK GENERATOR
+ * Builds and rewires the network of peers of the City:
+ * 1. generate() creates the initial network, before the first step
+ * 2. rewire() replaces the peers of one agent, when it changes its network during the simulation
+ * 3. copy() duplicates the generator, along with any index it keeps of the network, for a branch of the simulation
+ * The generator is selected with the networkModel property of the City
+ */
+
+public interface NetworkGenerator {
+
+    /** GENERATE
+     * Removes every edge of the network and creates the initial one
+     * @param city with the agents already added as nodes
+     */
+    void generate(City city);
+
+    /** REWIRE
+     * Removes the edges of the patient and connects it again following the model
+     * @param city to get the network and the pseudo-random number generator
+     * @param patient whose peers are replaced
+     */
+    void rewire(City city, Patient patient);
+
+    /** COPY
+     * @return an independent generator with the same state, to go on with a copy of the network
+     */
+    NetworkGenerator copy();
+}
@@ -0,0 +1,142 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/** OUTPUT PIPELINE
+ * Writes the steps of the simulation on a background thread:
+ * 1. The simulation thread copies the state of each step into a free snapshot from a fixed pool
+ * 2. The snapshot is handed to the writer thread through a bounded queue, and returned to the pool once written
+ * When every snapshot is in use, the simulation either waits for one (BLOCK) or skips the step and counts it
+ * (DROP)
+ */
+
+public class OutputPipeline {
+
+    // Backpressure
+    public static final int BLOCK = 0;
+    public static final int DROP = 1;
+
+    // Handed to the writer thread to stop it
+    private static final StepSnapshot END = new StepSnapshot();
+
+    private final StepWriter writer;
+    private final int backpressure;
+    private final ArrayBlockingQueue<StepSnapshot> free;
+    private final ArrayBlockingQueue<StepSnapshot> full;
+    private final Thread thread;
+    private boolean closed;
+
+    // Written by one thread each: dropped by the simulation, the rest by the writer
+    private volatile long droppedSteps;
+    private volatile long rows;
+    private volatile long bytes;
+    private volatile long writeNanos;
+
+    /** OUTPUT PIPELINE CONSTRUCTOR
+     * @param writer that receives the rows, owned and closed by the pipeline
+     * @param buffers number of snapshots in the pool
+     * @param backpressure BLOCK or DROP
+     */
+    public OutputPipeline(StepWriter writer, int buffers, int backpressure){
+        this.writer = writer;
+        this.backpressure = backpressure;
+        buffers = Math.max(1, buffers);
+        free = new ArrayBlockingQueue<>(buffers);
+        full = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++){
+            free.add(new StepSnapshot());
+        }
+        rows = writer.getRows();
+        bytes = writer.getBytes();
+
+        thread = new Thread(this::run, "output-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long getDroppedSteps(){return droppedSteps;}
+    public long getRows(){return rows;}
+    public long getBytes(){return bytes;}
+    public long getWriteNanos(){return writeNanos;}
+
+    /** SUBMIT
+     * Copies the state of the agents and queues it for the writer thread
+     * @param step of the simulation
+     * @param store with the current state of the agents
+     * @param sample ids of the agents written, or null for every agent
+     */
+    public void submit(long step, PopulationStore store, int[] sample) throws InterruptedException {
+        StepSnapshot snapshot = backpressure == DROP ? free.poll() : free.take();
+        if (snapshot == null){
+            droppedSteps++;
+            return;
+        }
+        snapshot.capture(step, store, sample);
+        full.put(snapshot);
+    }
+
+    /** SUBMIT A SNAPSHOT
+     * Queues a snapshot captured elsewhere, such as the final steps kept back by Utils
+     * @param snapshot of a step
+     */
+    public void submit(StepSnapshot snapshot) throws InterruptedException {
+        full.put(snapshot);
+    }
+
+    /** CLOSE
+     * Waits until every queued step is written, then closes the file
+     */
+    public void close() throws InterruptedException {
+        if (closed) return;
+        closed = true;
+        full.put(END);
+        thread.join();
+    }
+
+    private void run(){
+        try {
+            while (true){
+                StepSnapshot snapshot = full.take();
+                if (snapshot == END) break;
+
+                long start = System.nanoTime();
+                try {
+                    snapshot.write(writer);
+                } catch (IOException ex){
+                    System.out.println("Error writing file");
+                }
+                // Snapshots submitted from outside the pool only join it while it has room
+                free.offer(snapshot);
+                writeNanos += System.nanoTime() - start;
+                rows = writer.getRows();
+                bytes = writer.getBytes();
+            }
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        } finally {
+            long start = System.nanoTime();
+            try {
+                writer.close();
+            } catch (IOException ex){
+                System.out.println("Error closing file");
+            }
+            writeNanos += System.nanoTime() - start;
+            bytes = writer.getBytes();
+        }
+    }
+}
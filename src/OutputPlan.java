@@ -0,0 +1,163 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** OUTPUT PLAN
+ * Which steps and which agents of a run are written to its file, declared with terms separated by semicolons:
+ * 1. steps=a|b|c: the listed steps
+ * 2. every=k: the steps that are a multiple of k
+ * 3. last=K: the final K steps of the run, however it stops; they are kept back and written when the file is
+ *    closed, after the other steps
+ * 4. sample=f: a fraction f of the agents, drawn from each stratum of sex and vaccine at the first step, so that
+ *    every stratum keeps its share; the draw only depends on the seed and the id of the agent
+ * The steps of the three first terms are added together, and a plan without any of them writes every step
+ * The plan "all" writes every step of every agent; a plan of several terms is, for example, every=10;last=5;sample=0.1
+ */
+
+public class OutputPlan {
+    public static final OutputPlan ALL = new OutputPlan(new long[0], 0, 0, 1.0);
+
+    private final long[] steps;
+    private final int every;
+    private final int last;
+    private final double sample;
+
+    private OutputPlan(long[] steps, int every, int last, double sample){
+        this.steps = steps;
+        this.every = every;
+        this.last = last;
+        this.sample = sample;
+    }
+
+    /** PARSE
+     * @param spec terms of the plan, or all
+     * @return the plan of the terms
+     * @throws IllegalArgumentException if a term is not valid
+     */
+    public static OutputPlan parse(String spec){
+        spec = spec == null ? "" : spec.trim();
+        if (spec.isEmpty() || spec.equals("all")) return ALL;
+
+        List<Long> steps = new ArrayList<>();
+        int every = 0;
+        int last = 0;
+        double sample = 1.0;
+        for (String term : spec.split(";")){
+            int equals = term.indexOf('=');
+            if (equals < 0) throw new IllegalArgumentException("Output plan term without a value: " + term);
+            String key = term.substring(0, equals).trim();
+            String value = term.substring(equals + 1).trim();
+            try {
+                switch (key){
+                    case "steps":
+                        for (String step : value.split("\\|")){
+                            steps.add(Long.parseLong(step.trim()));
+                        }
+                        break;
+                    case "every":
+                        every = Integer.parseInt(value);
+                        if (every < 1) throw new IllegalArgumentException("Output plan every must be at least 1: " + value);
+                        break;
+                    case "last":
+                        last = Integer.parseInt(value);
+                        if (last < 1) throw new IllegalArgumentException("Output plan last must be at least 1: " + value);
+                        break;
+                    case "sample":
+                        sample = Double.parseDouble(value);
+                        if (!(sample > 0 && sample <= 1)) {
+                            throw new IllegalArgumentException("Output plan sample must be in (0, 1]: " + value);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown output plan term: " + key);
+                }
+            } catch (NumberFormatException ex){
+                throw new IllegalArgumentException("Output plan term is not a number: " + term);
+            }
+        }
+
+        long[] sorted = new long[steps.size()];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = steps.get(i);
+        Arrays.sort(sorted);
+        return new OutputPlan(sorted, every, last, sample);
+    }
+
+    public int getLast(){return last;}
+    public boolean isSampled(){return sample < 1.0;}
+
+    /** OUTPUT STEP
+     * @param step of the simulation
+     * @return whether the step is written when it is run: the final steps of last=K are not
+     */
+    public boolean isOutputStep(long step){
+        if (steps.length == 0 && every == 0 && last == 0) return true;
+        return Arrays.binarySearch(steps, step) >= 0 || (every > 0 && step % every == 0);
+    }
+
+    /** SAMPLE
+     * Within each stratum of sex and vaccine, the agents with the lowest draws are taken, in the proportion
+     * of the plan rounded to the nearest agent
+     * @param city with the population at the first step
+     * @return the ids of the agents written, in increasing order, or null for every agent
+     */
+    public int[] sample(City city){
+        if (!isSampled()) return null;
+        PopulationStore store = city.population;
+        long seed = city.seed();
+
+        List<List<Integer>> strata = new ArrayList<>();
+        for (int s = 0; s < 4; s++) strata.add(new ArrayList<>());
+        for (int i = 0; i < store.size; i++){
+            strata.get((store.sex.get(i) ? 2 : 0) + (store.vaccine.get(i) ? 1 : 0)).add(i);
+        }
+
+        List<Integer> chosen = new ArrayList<>();
+        for (List<Integer> stratum : strata){
+            stratum.sort((a, b) -> Double.compare(AgentRandom.nextDouble(seed, a, -1, AgentRandom.SAMPLE),
+                    AgentRandom.nextDouble(seed, b, -1, AgentRandom.SAMPLE)));
+            chosen.addAll(stratum.subList(0, (int) Math.round(sample * stratum.size())));
+        }
+
+        int[] ids = new int[chosen.size()];
+        for (int k = 0; k < ids.length; k++) ids[k] = chosen.get(k);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /** SPEC
+     * @return the terms of the plan, that parse() reads back
+     */
+    public String toString(){
+        if (this == ALL) return "all";
+        List<String> terms = new ArrayList<>();
+        if (steps.length > 0){
+            StringBuilder list = new StringBuilder("steps=");
+            for (int i = 0; i < steps.length; i++){
+                if (i > 0) list.append('|');
+                list.append(steps[i]);
+            }
+            terms.add(list.toString());
+        }
+        if (every > 0) terms.add("every=" + every);
+        if (last > 0) terms.add("last=" + last);
+        if (sample < 1.0) terms.add("sample=" + sample);
+        return terms.isEmpty() ? "all" : String.join(";", terms);
+    }
+}
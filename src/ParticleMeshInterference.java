@@ -0,0 +1,272 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import sim.field.grid.DoubleGrid2D;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+/** PARTICLE-MESH INTERFERENCE
+ * Approximates the interference on a square mesh of meshResolution * meshResolution points, built once per step:
+ * 1. The infected, vaccinated and infected^vaccinated mass is deposited on the mesh with cloud-in-cell weights
+ * 2. The mass is convolved with the kernel 1/(1 + d) by FFT, zero-padded so that the convolution is not periodic
+ * 3. The potentials are interpolated back to each agent with the same weights, removing the agent's own mass
+ * The mesh covers the yard and every agent, plus the largest displacement of an agent in one step
+ * The kernel is 1-Lipschitz, and deposit and interpolation move each mass by less than sqrt(2) cells, so the error
+ * is at most 2 * sqrt(2) * cell size per unit of mass: this is the reported error bound, loose but rigorous
+ * Each step costs O(N + G log G) with G the number of points of the padded mesh
+ */
+
+public class ParticleMeshInterference implements InterferenceEngine {
+    private final int resolution;
+    private final DoubleAccumulator errorBound = new DoubleAccumulator(Math::max, 0.0);
+
+    // Mesh geometry of the current step
+    private double originX;
+    private double originY;
+    private double cellSize;
+    private double totalInfected;
+    private double totalBoth;
+
+    // Deposited mass and interpolated potentials
+    private final DoubleGrid2D massInfected;
+    private final DoubleGrid2D massVaccine;
+    private final DoubleGrid2D massBoth;
+    private final DoubleGrid2D potentialInfected;
+    private final DoubleGrid2D potentialVaccine;
+    private final DoubleGrid2D potentialBoth;
+
+    // Zero-padded FFT buffers
+    private final FFT2D fft;
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+    private final double[] fieldRe;
+    private final double[] fieldIm;
+    private final double[] bothRe;
+    private final double[] bothIm;
+
+    // Deposit of each agent, by id
+    private double[] depositU = new double[0];
+    private double[] depositV = new double[0];
+    private boolean[] depositInfected = new boolean[0];
+    private boolean[] depositVaccine = new boolean[0];
+
+    /** PARTICLE-MESH CONSTRUCTOR
+     * @param resolution number of mesh points per side
+     */
+    public ParticleMeshInterference(int resolution){
+        this.resolution = Math.max(2, resolution);
+        massInfected = new DoubleGrid2D(this.resolution, this.resolution);
+        massVaccine = new DoubleGrid2D(this.resolution, this.resolution);
+        massBoth = new DoubleGrid2D(this.resolution, this.resolution);
+        potentialInfected = new DoubleGrid2D(this.resolution, this.resolution);
+        potentialVaccine = new DoubleGrid2D(this.resolution, this.resolution);
+        potentialBoth = new DoubleGrid2D(this.resolution, this.resolution);
+
+        fft = new FFT2D(FFT2D.powerOfTwo(2 * this.resolution));
+        int cells = fft.getSize() * fft.getSize();
+        kernelRe = new double[cells];
+        kernelIm = new double[cells];
+        fieldRe = new double[cells];
+        fieldIm = new double[cells];
+        bothRe = new double[cells];
+        bothIm = new double[cells];
+    }
+
+    public double getErrorBound(){return errorBound.get();}
+
+    /** DEPOSIT AND CONVOLVE
+     * @param city to get the location and state of the agents at the start of the step
+     */
+    public void prepare(City city){
+        PopulationStore store = city.population;
+        BitSet infectedIndex = store.infected;
+        BitSet vaccinatedIndex = store.vaccine;
+        errorBound.reset();
+
+        if (depositU.length < store.size){
+            depositU = new double[store.size];
+            depositV = new double[store.size];
+            depositInfected = new boolean[store.size];
+            depositVaccine = new boolean[store.size];
+        }
+
+        // Bounds of the mesh
+        double minX = 0, minY = 0;
+        double maxX = city.yard.getWidth(), maxY = city.yard.getHeight();
+        for (int id = 0; id < store.size; id++){
+            minX = Math.min(minX, store.x[id]);
+            minY = Math.min(minY, store.y[id]);
+            maxX = Math.max(maxX, store.x[id]);
+            maxY = Math.max(maxY, store.y[id]);
+        }
+        double margin = city.getRandomForce() * 0.5 + city.getMaxPartnerForce();
+        originX = minX - margin;
+        originY = minY - margin;
+        cellSize = (Math.max(maxX - minX, maxY - minY) + 2 * margin) / (resolution - 1) * (1 + 1e-9);
+
+        // 1. Deposit the mass
+        massInfected.setTo(0.0);
+        massVaccine.setTo(0.0);
+        massBoth.setTo(0.0);
+        totalInfected = 0;
+        totalBoth = 0;
+        for (int id = 0; id < store.size; id++){
+            depositU[id] = toMesh(store.x[id], originX);
+            depositV[id] = toMesh(store.y[id], originY);
+
+            boolean infected = infectedIndex.get(id);
+            boolean vaccine = vaccinatedIndex.get(id);
+            depositInfected[id] = infected;
+            depositVaccine[id] = vaccine;
+            if (infected){deposit(massInfected, depositU[id], depositV[id]); totalInfected++;}
+            if (vaccine) deposit(massVaccine, depositU[id], depositV[id]);
+            if (infected && vaccine){deposit(massBoth, depositU[id], depositV[id]); totalBoth++;}
+        }
+
+        // 2. Convolve: infected and vaccinated mass share one complex transform, the kernel being real and even
+        int size = fft.getSize();
+        Arrays.fill(kernelIm, 0.0);
+        for (int i = 0; i < size; i++){
+            int dx = i < size / 2 ? i : i - size;
+            for (int j = 0; j < size; j++){
+                int dy = j < size / 2 ? j : j - size;
+                kernelRe[i * size + j] = kernel(dx, dy);
+            }
+        }
+        fft.forward(kernelRe, kernelIm);
+
+        load(massInfected, massVaccine, fieldRe, fieldIm);
+        load(massBoth, null, bothRe, bothIm);
+        convolve(fieldRe, fieldIm);
+        convolve(bothRe, bothIm);
+        store(fieldRe, potentialInfected);
+        store(fieldIm, potentialVaccine);
+        store(bothRe, potentialBoth);
+    }
+
+    /** INTERFERENCE OF ONE AGENT
+     * Bilinear interpolation of the potentials at the current location of the ego
+     */
+    public void interference(City city, int id, double[] out){
+        double u = toMesh(city.population.x[id], originX);
+        double v = toMesh(city.population.y[id], originY);
+
+        double infected = interpolate(potentialInfected, u, v);
+        double vaccine = interpolate(potentialVaccine, u, v);
+        double both = interpolate(potentialBoth, u, v);
+
+        // Remove the contribution of the ego's own deposit
+        double self = 0;
+        boolean selfInfected = depositInfected[id];
+        boolean selfVaccine = depositVaccine[id];
+        if (selfInfected || selfVaccine){
+            self = selfPotential(depositU[id], depositV[id], u, v);
+        }
+        if (selfInfected) infected -= self;
+        if (selfVaccine) vaccine -= self;
+        if (selfInfected && selfVaccine) both -= self;
+
+        double contagion = city.getContagion();
+        double infectiousness = city.getInfectiousness();
+        double bound = 2 * Math.sqrt(2) * cellSize *
+                (Math.abs(contagion) * totalInfected + Math.abs(infectiousness) * totalBoth);
+        errorBound.accumulate(bound);
+
+        out[CONTAGION] = infected;
+        out[INFECTIOUSNESS] = vaccine;
+        out[INDIRECT] = contagion * infected - infectiousness * both;
+    }
+
+    private double kernel(int dx, int dy){
+        return 1 / (1 + cellSize * Math.sqrt((double) dx * dx + (double) dy * dy));
+    }
+
+    private double toMesh(double coordinate, double origin){
+        double value = (coordinate - origin) / cellSize;
+        return Math.min(Math.max(value, 0.0), resolution - 1 - 1e-9);
+    }
+
+    // Cloud-in-cell deposit of a unit of mass
+    private void deposit(DoubleGrid2D grid, double u, double v){
+        int i = (int) u, j = (int) v;
+        double fu = u - i, fv = v - j;
+        grid.field[i][j] += (1 - fu) * (1 - fv);
+        grid.field[i + 1][j] += fu * (1 - fv);
+        grid.field[i][j + 1] += (1 - fu) * fv;
+        grid.field[i + 1][j + 1] += fu * fv;
+    }
+
+    private double interpolate(DoubleGrid2D grid, double u, double v){
+        int i = (int) u, j = (int) v;
+        double fu = u - i, fv = v - j;
+        return grid.field[i][j] * (1 - fu) * (1 - fv) +
+                grid.field[i + 1][j] * fu * (1 - fv) +
+                grid.field[i][j + 1] * (1 - fu) * fv +
+                grid.field[i + 1][j + 1] * fu * fv;
+    }
+
+    // Potential at (u, v) of a unit of mass deposited at (du, dv)
+    private double selfPotential(double du, double dv, double u, double v){
+        int di = (int) du, dj = (int) dv, i = (int) u, j = (int) v;
+        double potential = 0;
+        for (int a = 0; a < 4; a++){
+            for (int b = 0; b < 4; b++){
+                int dx = (i + (b >> 1)) - (di + (a >> 1));
+                int dy = (j + (b & 1)) - (dj + (a & 1));
+                potential += weight(u - i, v - j, b) * weight(du - di, dv - dj, a) * kernel(dx, dy);
+            }
+        }
+        return potential;
+    }
+
+    // Weight of the corner (0,0), (0,1), (1,0) or (1,1) of a cell
+    private static double weight(double fu, double fv, int corner){
+        return ((corner >> 1) == 0 ? 1 - fu : fu) * ((corner & 1) == 0 ? 1 - fv : fv);
+    }
+
+    private void load(DoubleGrid2D real, DoubleGrid2D imaginary, double[] re, double[] im){
+        int size = fft.getSize();
+        Arrays.fill(re, 0.0);
+        Arrays.fill(im, 0.0);
+        for (int i = 0; i < resolution; i++){
+            for (int j = 0; j < resolution; j++){
+                re[i * size + j] = real.field[i][j];
+                if (imaginary != null) im[i * size + j] = imaginary.field[i][j];
+            }
+        }
+    }
+
+    private void convolve(double[] re, double[] im){
+        fft.forward(re, im);
+        for (int k = 0; k < re.length; k++){
+            double r = re[k] * kernelRe[k] - im[k] * kernelIm[k];
+            double i = re[k] * kernelIm[k] + im[k] * kernelRe[k];
+            re[k] = r;
+            im[k] = i;
+        }
+        fft.inverse(re, im);
+    }
+
+    private void store(double[] values, DoubleGrid2D grid){
+        int size = fft.getSize();
+        for (int i = 0; i < resolution; i++){
+            for (int j = 0; j < resolution; j++){
+                grid.field[i][j] = values[i * size + j];
+            }
+        }
+    }
+}
@@ -16,11 +16,6 @@
 
 import sim.engine.SimState;
 import sim.engine.Steppable;
-import sim.field.continuous.Continuous2D;
-import sim.field.network.Edge;
-import sim.util.Bag;
-import sim.util.Double2D;
-import sim.util.MutableDouble2D;
 
 /** PATIENT CLASS
  * The Patient object will be defined in this class
@@ -28,14 +23,8 @@ import sim.util.MutableDouble2D;
  */
 
 public class Patient implements Steppable {
-    private Boolean infected;
-    private Boolean vaccine;
-    private Boolean sex;
-    private int degree;
-    private double contagionDistance;
-    private double infectiousnessDistance;
-    private double indirectInterference;
-    private String name;
+    private final int id;
+    private final PopulationStore store;
 
     // LABEL TO DISPLAY IN SIM WHEN SELECTED
     public String toString(){
@@ -47,11 +36,13 @@ public class Patient implements Steppable {
     }
 
     /** PATIENT CONSTRUCTOR
-     * @param name to specify a name per agent and be recognisable though the course of the simulation
+     * The state of the patient is kept in the population store of the city, at the position of its id
+     * @param id to specify the agent and be recognisable though the course of the simulation
      * @param city that is required to generate the random integer for the sex
      */
-    public Patient (String name, City city){
-        this.setName(name);
+    public Patient (int id, City city){
+        this.id = id;
+        this.store = city.population;
         this.setInfected(false);
         this.setVaccine(false);
         this.setSex(city.random.nextBoolean());
@@ -61,45 +52,53 @@ public class Patient implements Steppable {
         this.setIndirectInterference(0.0);
     }
 
+    /** PATIENT VIEW CONSTRUCTOR
+     * A view over a state already in the population store, such as the copy of a branch: nothing is drawn or set
+     * @param id position of the agent in the store
+     * @param store with the state of the agent
+     */
+    Patient(int id, PopulationStore store){
+        this.id = id;
+        this.store = store;
+    }
+
     // Setters
     private void setSex(boolean bool){
-        sex = bool;
+        store.sex.set(id, bool);
     }
     private void setInfected(boolean bool){
-        infected = bool;
+        store.setInfected(id, bool);
     }
     private void setVaccine(boolean bool) {
-        vaccine = bool;
-    }
-    private void setName(String string){
-        name = string;
+        store.setVaccine(id, bool);
     }
-    private void setDegree(int value){degree = value;}
+    private void setDegree(int value){store.degree[id] = value;}
     private void setContagionDistance(double value){
-        contagionDistance = value;
+        store.contagionDistance[id] = value;
     }
-    private void setInfectiousnessDistance(double value){infectiousnessDistance = value;}
-    private void setIndirectInterference(double value){indirectInterference = value;}
+    private void setInfectiousnessDistance(double value){store.infectiousnessDistance[id] = value;}
+    private void setIndirectInterference(double value){store.indirectInterference[id] = value;}
 
     // Getters
     public boolean getSex(){
-        return sex;
+        return store.sex.get(id);
     }
     public boolean getInfected(){
-        return infected;
+        return store.infected.get(id);
     }
     public boolean getVaccine(){
-        return vaccine;
+        return store.vaccine.get(id);
     }
     public String getName(){
-        return name;
+        return "Patient_" + id;
     }
-    public int getDegree(){return degree;}
+    public int getId(){return id;}
+    public int getDegree(){return store.degree[id];}
     public double getContagionDistance(){
-        return contagionDistance;
+        return store.contagionDistance[id];
     }
-    public double getInfectiousnessDistance(){return infectiousnessDistance;}
-    public double getIndirectInterference(){return indirectInterference;}
+    public double getInfectiousnessDistance(){return store.infectiousnessDistance[id];}
+    public double getIndirectInterference(){return store.indirectInterference[id];}
 
     /** STEP METHOD
      * All the defined methods/functions will be applied here to be applied at each step of the simulation
@@ -108,28 +107,29 @@ public class Patient implements Steppable {
      */
     public void step(SimState state){
         City city = (City) state;
-        long step = city.schedule.getSteps();
+        long step = city.getStep();
 
-        // INITIATE NETWORK
-        if (step == 0){
-            defineNetwork(city);
-            actualiseDegree(city);
-        }
+        long start = StepProfiler.ENABLED ? System.nanoTime() : 0;
 
         // 1. CHANGE NETWORK EACH X STEPS
         changeNetwork(city);
+        if (StepProfiler.ENABLED) start = StepProfiler.record(StepProfiler.NETWORK, start);
 
         // 2. ACTUALISE LOCATION OF AGENTS
         actualiseLocation(city);
+        if (StepProfiler.ENABLED) start = StepProfiler.record(StepProfiler.LOCATION, start);
 
-        // 3. APPLY VACCINE
-        applyVaccine(city);
+        // 3. APPLY VACCINE: in event-time mode the vaccine is applied by the VaccinationQueue
+        if (city.getVaccinationMode() == City.VACCINATION_BERNOULLI) applyVaccine(city);
+        if (StepProfiler.ENABLED) start = StepProfiler.record(StepProfiler.VACCINE, start);
 
-        // 4. APPLY INFECTION
-        applyInfection(city);
+        // 4. APPLY INFECTION: in continuous time the infections are events of the EventInfection
+        if (city.getInfectionMode() == City.INFECTION_BERNOULLI) applyInfection(city);
+        if (StepProfiler.ENABLED) start = StepProfiler.record(StepProfiler.INFECTION, start);
 
         // 5. ADD INTERFERENCE
         addIndirectInterference(city);
+        if (StepProfiler.ENABLED) StepProfiler.record(StepProfiler.INTERFERENCE, start);
 
         // FINISH THE SIMULATION
         if (step == city.earlyGUIStop){
@@ -142,38 +142,16 @@ public class Patient implements Steppable {
      * and enemies to ensure that all agents can interact among each other by:
      * 1. Defining a set of agents that will be FRIENDS to each individual agent
      * 2. Defining a set of agents that will be ENEMIES to each individual agent
+     * The new peers are chosen by the network generator of the city
      * @param city to get the current state of the agents
      */
 
     public void defineNetwork(City city){
-        Object other;
-        Bag peers = city.peers.getAllNodes();
-        Bag edges = city.peers.getEdges(this, new Bag());
-
-        // Clean ALL previous edges
-        for(int i = 0; i < edges.size(); i++){
-            city.peers.removeEdge((Edge) edges.get(i));
-        }
-
-        // Iterate though peers and add edge based on Poisson probability
-        for(int i = 0; i < peers.size(); i++) {
-            other = (Patient) peers.get(i);
-
-            if (city.random.nextDouble() < PoissonCDF(this.getDegree() + ((Patient) other).getDegree(), city.getLambda())){
-                if (this != other) {
-                    double peership = city.random.nextDouble();
-                    city.peers.addEdge(this, other, peership);
-
-                    // Actualise degree of this and other
-                    this.setDegree(this.getDegree() + 1);
-                    ((Patient) other).setDegree(((Patient) other).getDegree() + 1);
-                }
-            }
-        }
+        city.getNetworkGenerator().rewire(city, this);
     }
 
-    private void actualiseDegree(City city){
-        this.setDegree(city.peers.getEdges(this, new Bag()).size());
+    void actualiseDegree(City city){
+        this.setDegree(city.peers.degree(id));
     }
 
     /** ACTUALISE LOCATION OF THE AGENTS AT EACH STEP
@@ -187,102 +165,88 @@ public class Patient implements Steppable {
      * @param city to get the current state of the agents
      */
 
-    private void actualiseLocation(City city){
-        Continuous2D yard = city.yard;
-        Double2D ego;
-        Double2D alter;
-        Double2D forceRandom;
+    void actualiseLocation(City city){
+        PopulationStore store = city.population;
 
-        ego = city.yard.getObjectLocation(this);
+        double randomX = city.getRandomForce() * city.random.nextDouble() - city.getRandomForce() * 0.5;
+        double randomY = city.getRandomForce() * city.random.nextDouble() - city.getRandomForce() * 0.5;
 
-        // Define forces
-        MutableDouble2D sumForces = new MutableDouble2D();
-        MutableDouble2D forcePartner = new MutableDouble2D();
+        // Actualise location: the yard is only updated for the portrayals, see City.updateYard
+        computeLocation(city, randomX, randomY, store.x, store.y);
+    }
 
-        forceRandom = new Double2D(city.getRandomForce() * city.random.nextDouble() - city.getRandomForce() * 0.5,
-                city.getRandomForce() * city.random.nextDouble() - city.getRandomForce() * 0.5);
+    /** COMPUTE LOCATION
+     * Adds up the partner force, the random force and the prior location of the agent
+     * The forces are kept in local variables, with the same arithmetic as MutableDouble2D, so that no object is
+     * allocated at each step
+     * @param city to get the network and the current locations
+     * @param randomX random force in x
+     * @param randomY random force in y
+     * @param newX array where the new x of the agent is written, at its id
+     * @param newY array where the new y of the agent is written, at its id
+     */
+    void computeLocation(City city, double randomX, double randomY, double[] newX, double[] newY){
+        PopulationStore store = city.population;
+        double maxPartnerForce = city.getMaxPartnerForce();
 
-        Bag out = city.peers.getEdges(this,null);
+        double egoX = store.x[id];
+        double egoY = store.y[id];
 
-        for (int i = 0; i < out.size(); i++){
+        // Define forces
+        double partnerX = 0.0;
+        double partnerY = 0.0;
 
-            Edge edge = (Edge) out.get(i);
+        PeerNetwork peers = city.peers;
+        int end = peers.rowStart[id] + peers.rowLength[id];
 
-            double peership = ((Double) edge.info).doubleValue() * city.getPartnerForce();
+        for (int i = peers.rowStart[id]; i < end; i++){
 
-            // COULD BE THE TO() END OR THE FROM() END
-            alter = city.yard.getObjectLocation(edge.getOtherNode(this));
+            double peership = peers.weight[i] * city.getPartnerForce();
+            int alter = peers.neighbour[i];
 
             if(peership >= 0){
-                forcePartner.setTo((alter.x - ego.x) * peership,
-                        (alter.y - ego.y) * peership);
-
-                if(forcePartner.length() > city.getMaxPartnerForce()){
-                    forcePartner.resize(city.getMaxPartnerForce());
+                partnerX = (store.x[alter] - egoX) * peership;
+                partnerY = (store.y[alter] - egoY) * peership;
+                double length = Math.sqrt(partnerX * partnerX + partnerY * partnerY);
+
+                if(length > maxPartnerForce){
+                    double scale = maxPartnerForce / length;
+                    partnerX = partnerX * scale;
+                    partnerY = partnerY * scale;
                 }
             } else {
-                forcePartner.setTo((alter.x - ego.x) * -peership,
-                        (alter.y - ego.y) * -peership);
-                if(forcePartner.length() > city.getMaxPartnerForce()){
-                    forcePartner.resize(0.0);
+                partnerX = (store.x[alter] - egoX) * -peership;
+                partnerY = (store.y[alter] - egoY) * -peership;
+                double length = Math.sqrt(partnerX * partnerX + partnerY * partnerY);
+
+                if(length > maxPartnerForce){
+                    partnerX = partnerY = 0.0;
                 }
-                else if (forcePartner.length() > 0){
-                    forcePartner.resize(city.getMaxPartnerForce() - forcePartner.length());
+                else if (length > 0){
+                    double scale = (maxPartnerForce - length) / length;
+                    partnerX = partnerX * scale;
+                    partnerY = partnerY * scale;
                 }
             }
         }
 
         // Sum all forces
-        sumForces.addIn(forcePartner);
-        sumForces.addIn(forceRandom);
-        sumForces.addIn(ego);
-
-        // Actualise location
-        city.yard.setObjectLocation(this, new Double2D(sumForces));
+        newX[id] = egoX + (randomX + (partnerX + 0.0));
+        newY[id] = egoY + (randomY + (partnerY + 0.0));
     }
 
     /** Get total Indirect Interference
      * To determine how close is each agent with regards to the infected agents
+     * The sums are delegated to the interference engine of the city
      * @param city to get the agents
-     * @return the cumulative distance between each agent and all the infected agents
      */
-    private void addIndirectInterference(City city){
-        Bag agents = city.peers.getAllNodes();
-        Patient alter;
-
-        // Calculate the following parameters
-        double contagionDistance = 0.0;
-        double infectiousnessDistance = 0.0;
-        double indirectInterference = 0.0;
-
-        for(int i = 0; i < agents.size(); i++){
-            alter = (Patient) agents.get(i);
-
-            if(alter != this){
-                Double2D one = city.yard.getObjectLocation(this);
-                Double2D other = city.yard.getObjectLocation(alter);
-
-                double denominator = 1 + distance(one,other);
-                int infected = alter.getInfected() ? 1:0;
-                int vaccine = alter.getVaccine() ? 1:0;
-
-                contagionDistance += infected / denominator;
-                infectiousnessDistance += vaccine / denominator;
-
-                // Infectiousness only occurs when alters are infected (Y == 1)
-                if(infected == 1) {
-                    indirectInterference += (infected * city.getContagion() -
-                            vaccine * city.getInfectiousness()) /
-                            denominator;
-                } else {
-                    indirectInterference += 0;
-                }
-            }
-        }
+    void addIndirectInterference(City city){
+        double[] interference = city.interferenceScratch;
+        city.getInterferenceEngine().interference(city, id, interference);
 
-        this.setContagionDistance(contagionDistance);
-        this.setInfectiousnessDistance(infectiousnessDistance);
-        this.setIndirectInterference(indirectInterference);
+        this.setContagionDistance(interference[InterferenceEngine.CONTAGION]);
+        this.setInfectiousnessDistance(interference[InterferenceEngine.INFECTIOUSNESS]);
+        this.setIndirectInterference(interference[InterferenceEngine.INDIRECT]);
     }
 
     /** PROBABILITY OF CHANGING THE NETWORK
@@ -290,7 +254,7 @@ public class Patient implements Steppable {
      * that every patient has the probability of interacting with each other patient
      * @param city to import the random number generator
      */
-    private void changeNetwork(City city){
+    void changeNetwork(City city){
         double probChangeNetwork = city.random.nextDouble();
         if(probChangeNetwork < city.getPromiscuityPopulation()){
             defineNetwork(city);
@@ -305,15 +269,21 @@ public class Patient implements Steppable {
      * 3. The outcome
      * @param city to get the pseudo-random number generator
      */
-    private void applyVaccine(City city){
+    void applyVaccine(City city){
+        if(city.random.nextDouble() < vaccineProbability(city)){
+            setVaccine(true);
+        }
+    }
+
+    /** PROBABILITY OF VACCINE
+     * @param city to get the parameters of the simulation
+     * @return the probability of getting the vaccine at each step
+     */
+    double vaccineProbability(City city){
         int sex = this.getSex() ? 1:0;
 
         // - sex to make the vaccination 'sexOnVaccine' times more likely
-        double applyVaccine = (1 - sex + city.getSexOnVaccine() * sex) * city.getProbVaccine();
-
-        if(city.random.nextDouble() < applyVaccine){
-            setVaccine(true);
-        }
+        return (1 - sex + city.getSexOnVaccine() * sex) * city.getProbVaccine();
     }
 
     /** APPLY INFECTIONS
@@ -325,72 +295,28 @@ public class Patient implements Steppable {
      * 5. Cumulative distance of each patient to the infected patients
      * @param city to get the pseudo-random number generator
      */
-    private void applyInfection(City city){
+    void applyInfection(City city){
+        if(city.random.nextDouble() < infectionProbability(city, this.getVaccine(), this.getIndirectInterference())){
+            setInfected(true);
+        }
+    }
 
+    /** PROBABILITY OF INFECTION
+     * @param city to get the parameters of the simulation
+     * @param vaccinated vaccine status of the agent
+     * @param interference indirect interference of the agent
+     * @return the probability of getting infected at each step
+     */
+    double infectionProbability(City city, boolean vaccinated, double interference){
         int sex = this.getSex() ? 1:0;
-        int vaccine = this.getVaccine() ? 1:0;
-
+        int vaccine = vaccinated ? 1:0;
 
         // - 1 * sex to make the infection 'sexOnVaccine' times more probable
         // + 1 * vaccine to make infection exactly 'vaccineOnInfection' times more probable
-        double applyInfection = (1 +
+        return (1 +
                 city.getSexOnInfection() * sex - sex -
                 city.getVaccineOnInfection() * vaccine + vaccine +
-                this.getIndirectInterference())
+                interference)
                 * city.getProbInfected();
-
-        if(city.random.nextDouble() < applyInfection){
-            setInfected(true);
-        }
-    }
-
-    /** EUCLIDEAN DISTANCE
-     * To calculate the Euclidean distance between agents in the simulation
-     * @param one is the location of a alter agent
-     * @param other is the location of any other agent that will be iterated though a loop
-     * @return the Euclidean distance
-     */
-
-    private double distance (Double2D one, Double2D other){
-        double y = Math.abs(other.y - one.y);
-        double x = Math.abs(other.x - one.x);
-        return Math.sqrt(y*y + x*x);
-    }
-
-    /** POISSON CUMULATIVE DENSITY FUNCTION: LEFT
-     * To calculate the left cumulative probability
-     * @param x point
-     * @param lambda mean of the function and variance
-     * @return the cdf
-     */
-    private double PoissonCDF(int x, double lambda){
-        double result = 0.0;
-        int i = 0;
-        while (i < x) {
-            result = result + Poisson(i, lambda);
-            i = i + 1;
-        }
-        return 1 - result;
-    }
-
-    /** POISSON FUNCTION
-     * @param x point
-     * @param lambda as defined
-     * @return the probability
-     */
-    private double Poisson(int x, double lambda){
-        return (Math.pow(lambda, x) * Math.exp(-lambda)) / factorial(x);
-    }
-
-    /** FACTORIAL FUNCTION
-     * @param N to calculate N!
-     * @return factorial of N
-     */
-    private static long factorial(int N) {
-        long multi = 1;
-        for (int i = 1; i <= N; i++) {
-            multi = multi * i;
-        }
-        return multi;
     }
 }
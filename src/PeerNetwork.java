@@ -0,0 +1,209 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/** PEER NETWORK
+ * Undirected weighted network of the agents, stored as a compressed sparse row adjacency with slack:
+ * 1. The neighbours of agent i are neighbour[rowStart[i]] ... neighbour[rowStart[i] + rowLength[i] - 1]
+ * 2. The weight of each edge, its peership, is at the same position of the weight array
+ * 3. Each row keeps room for rowCapacity[i] edges: a full row is moved to the end of the arrays with twice
+ *    the room, and the arrays are compacted when they run out of space, into spare arrays of the same length
+ *    that are kept between compactions, so that only growing the arrays allocates
+ * Every edge is stored once in the row of each end. Removing an edge moves the last edge of the row into its
+ * place, so the rows keep the same order as the edge bags of a sim.field.network.Network
+ * The rows can be read by several threads at once, as long as no edge is added or removed
+ */
+
+public class PeerNetwork {
+    private static final int MIN_CAPACITY = 4;
+
+    public int[] rowStart = new int[0];
+    public int[] rowLength = new int[0];
+    public int[] neighbour = new int[0];
+    public double[] weight = new double[0];
+    private int[] rowCapacity = new int[0];
+
+    // Arrays the rows are compacted into, swapped with the arrays in use
+    private int[] spareNeighbour = new int[0];
+    private double[] spareWeight = new double[0];
+
+    // End of the used part of the arrays, and room left behind by moved rows
+    private int used;
+    private int garbage;
+    private int edges;
+
+    /** RESET
+     * Removes every edge and sets the number of agents
+     * @param size number of agents
+     */
+    public void reset(int size){
+        rowStart = new int[size];
+        rowLength = new int[size];
+        rowCapacity = new int[size];
+        neighbour = new int[size * MIN_CAPACITY];
+        weight = new double[size * MIN_CAPACITY];
+        spareNeighbour = new int[0];
+        spareWeight = new double[0];
+        for (int i = 0; i < size; i++){
+            rowStart[i] = i * MIN_CAPACITY;
+            rowCapacity[i] = MIN_CAPACITY;
+        }
+        used = size * MIN_CAPACITY;
+        garbage = 0;
+        edges = 0;
+    }
+
+    /** CLEAR
+     * Removes every edge, keeping the room of the rows
+     */
+    public void clear(){
+        Arrays.fill(rowLength, 0);
+        edges = 0;
+    }
+
+    /** COPY
+     * @return an independent network with the same edges, in the same order
+     */
+    public PeerNetwork copy(){
+        PeerNetwork copy = new PeerNetwork();
+        copy.rowStart = rowStart.clone();
+        copy.rowLength = rowLength.clone();
+        copy.neighbour = neighbour.clone();
+        copy.weight = weight.clone();
+        copy.rowCapacity = rowCapacity.clone();
+        copy.used = used;
+        copy.garbage = garbage;
+        copy.edges = edges;
+        return copy;
+    }
+
+    public int size(){return rowStart.length;}
+    public int getEdgeCount(){return edges;}
+    public int degree(int id){return rowLength[id];}
+
+    /** ADD EDGE
+     * @param one id of an agent
+     * @param other id of another agent
+     * @param peership weight of the edge
+     */
+    public void addEdge(int one, int other, double peership){
+        append(one, other, peership);
+        append(other, one, peership);
+        edges++;
+    }
+
+    /** REMOVE EDGE
+     * @param one id of an agent
+     * @param other id of another agent
+     * @return whether there was an edge between both agents
+     */
+    public boolean removeEdge(int one, int other){
+        if (!removeFromRow(one, other)) return false;
+        removeFromRow(other, one);
+        edges--;
+        return true;
+    }
+
+    /** CONTAINS
+     * Looks through the row of the agent with the lowest degree
+     * @return whether there is an edge between both agents
+     */
+    public boolean contains(int one, int other){
+        return find(one, other) >= 0;
+    }
+
+    /** WEIGHT
+     * @return the peership of the edge between both agents, NaN if there is none
+     */
+    public double weight(int one, int other){
+        int position = find(one, other);
+        return position >= 0 ? weight[position] : Double.NaN;
+    }
+
+    private int find(int one, int other){
+        return rowLength[one] <= rowLength[other] ? indexOf(one, other) : indexOf(other, one);
+    }
+
+    private int indexOf(int row, int value){
+        int end = rowStart[row] + rowLength[row];
+        for (int k = rowStart[row]; k < end; k++){
+            if (neighbour[k] == value) return k;
+        }
+        return -1;
+    }
+
+    private void append(int row, int value, double peership){
+        if (rowLength[row] == rowCapacity[row]) grow(row);
+        int position = rowStart[row] + rowLength[row]++;
+        neighbour[position] = value;
+        weight[position] = peership;
+    }
+
+    private boolean removeFromRow(int row, int value){
+        int position = indexOf(row, value);
+        if (position < 0) return false;
+        int last = rowStart[row] + --rowLength[row];
+        neighbour[position] = neighbour[last];
+        weight[position] = weight[last];
+        return true;
+    }
+
+    /** GROW
+     * Moves a full row to the end of the arrays with twice its room
+     */
+    private void grow(int row){
+        int capacity = Math.max(MIN_CAPACITY, rowCapacity[row] * 2);
+        if (used + capacity > neighbour.length) compact(capacity);
+
+        System.arraycopy(neighbour, rowStart[row], neighbour, used, rowLength[row]);
+        System.arraycopy(weight, rowStart[row], weight, used, rowLength[row]);
+        garbage += rowCapacity[row];
+        rowStart[row] = used;
+        rowCapacity[row] = capacity;
+        used += capacity;
+    }
+
+    /** COMPACT
+     * Copies the rows next to each other, without the room left behind by moved rows, into the spare arrays when
+     * the rows and the extra room take at most half of them, or else into new arrays with space for at least as
+     * much again
+     * @param extra room that must be left at the end
+     */
+    private void compact(int extra){
+        int needed = Math.max(MIN_CAPACITY, 2 * (used - garbage + extra));
+        int length = needed <= neighbour.length ? neighbour.length : needed;
+        if (spareNeighbour.length != length){
+            spareNeighbour = new int[length];
+            spareWeight = new double[length];
+        }
+        int[] newNeighbour = spareNeighbour;
+        double[] newWeight = spareWeight;
+        int next = 0;
+        for (int i = 0; i < rowStart.length; i++){
+            System.arraycopy(neighbour, rowStart[i], newNeighbour, next, rowLength[i]);
+            System.arraycopy(weight, rowStart[i], newWeight, next, rowLength[i]);
+            rowStart[i] = next;
+            next += rowCapacity[i];
+        }
+        spareNeighbour = neighbour;
+        spareWeight = weight;
+        neighbour = newNeighbour;
+        weight = newWeight;
+        used = next;
+        garbage = 0;
+    }
+}
@@ -0,0 +1,77 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import sim.portrayal.DrawInfo2D;
+import sim.portrayal.FieldPortrayal2D;
+import sim.portrayal.Portrayal;
+import sim.portrayal.SimplePortrayal2D;
+import sim.util.Bag;
+import java.awt.*;
+
+/** PEERS PORTRAYAL
+ * Draws the edges of the PeerNetwork of a City as lines between the locations of the agents
+ * The rows of the network and the location columns of the population store are read directly, so that no
+ * edge objects are created while drawing
+ * Edges cannot be selected or inspected
+ */
+
+public class PeersPortrayal2D extends FieldPortrayal2D {
+    private final Color color;
+
+    /** PEERS PORTRAYAL CONSTRUCTOR
+     * @param color of the lines
+     */
+    public PeersPortrayal2D(Color color){
+        this.color = color;
+    }
+
+    @Override
+    public void setField(Object field){
+        if (field instanceof City) super.setField(field);
+        else throw new RuntimeException("Invalid field for PeersPortrayal2D: " + field);
+    }
+
+    public Portrayal getDefaultPortrayal(){
+        return new SimplePortrayal2D();
+    }
+
+    @Override
+    protected void hitOrDraw(Graphics2D graphics, DrawInfo2D info, Bag putInHere){
+        if (graphics == null || field == null) return;
+
+        City city = (City) field;
+        PeerNetwork peers = city.peers;
+        PopulationStore store = city.population;
+        double xScale = info.draw.width / city.yard.getWidth();
+        double yScale = info.draw.height / city.yard.getHeight();
+
+        graphics.setColor(color);
+        for (int i = 0; i < peers.size(); i++){
+            int fromX = (int) (info.draw.x + xScale * store.x[i]);
+            int fromY = (int) (info.draw.y + yScale * store.y[i]);
+            int end = peers.rowStart[i] + peers.rowLength[i];
+            for (int k = peers.rowStart[i]; k < end; k++){
+
+                // Each edge is in the row of both ends: draw it once
+                int alter = peers.neighbour[k];
+                if (alter < i) continue;
+                graphics.drawLine(fromX, fromY,
+                        (int) (info.draw.x + xScale * store.x[alter]),
+                        (int) (info.draw.y + yScale * store.y[alter]));
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import sim.engine.ParallelSequence;
+import sim.engine.Schedule;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/** PHASE STEPPER
+ * Steps the population phase by phase: each phase of Patient.step runs over every agent, in id order,
+ * before the next phase starts
+ * 0. NETWORK: the network is rewired and the degrees are updated
+ * 1. LOCATION: the agents move
+ * 2. VACCINE: the vaccine is applied, agent by agent or from the VaccinationQueue
+ * 3. INFECTION: the infection is applied, unless the infections are events of the EventInfection
+ * 4. INTERFERENCE: the interference engine is prepared with the new locations and outcomes, and the interference
+ *    of every agent is calculated, in parallel
+ * Each phase is scheduled on its own ordering and can be replaced with setPhase before the simulation starts
+ */
+
+public class PhaseStepper implements Steppable {
+    public static final int NETWORK = 0;
+    public static final int LOCATION = 1;
+    public static final int VACCINE = 2;
+    public static final int INFECTION = 3;
+    public static final int INTERFERENCE = 4;
+
+    private final PopulationPhase[] phases;
+
+    /** PHASE STEPPER CONSTRUCTOR
+     * @param city whose population will be stepped
+     * @param threads number of threads of the interference phase
+     */
+    public PhaseStepper(City city, int threads){
+        phases = new PopulationPhase[]{
+                new NetworkPhase(),
+                new LocationPhase(),
+                new VaccinePhase(),
+                new InfectionPhase(),
+                new InterferencePhase(city.population.size, threads)
+        };
+    }
+
+    public PopulationPhase getPhase(int index){return phases[index];}
+    public void setPhase(int index, PopulationPhase phase){
+        phases[index].cleanup();
+        phases[index] = phase;
+    }
+    public int getNumPhases(){return phases.length;}
+
+    /** SCHEDULE
+     * Schedules the phases on consecutive orderings, followed by the end of the step
+     * @param schedule of the simulation
+     * @param ordering of the first phase
+     * @return the next free ordering
+     */
+    public int schedule(Schedule schedule, int ordering){
+        for (PopulationPhase phase : phases){
+            schedule.scheduleRepeating(phase, ordering++, 1.0);
+        }
+        schedule.scheduleRepeating(this, ordering++, 1.0);
+        return ordering;
+    }
+
+    // END OF THE STEP: PROFILE AND FINISH THE SIMULATION
+    public void step(SimState state){
+        City city = (City) state;
+        if (StepProfiler.ENABLED) StepProfiler.getInstance().step(state);
+        if (city.getStep() == city.earlyGUIStop){
+            city.finish();
+        }
+    }
+
+    /** TIMINGS
+     * @return the mean time of each phase in milliseconds
+     */
+    public String getTimings(){
+        StringBuilder timings = new StringBuilder();
+        for (PopulationPhase phase : phases){
+            if (timings.length() > 0) timings.append(", ");
+            timings.append(phase.getName()).append(' ').append(String.format("%.3f", phase.getMeanMillis())).append(" ms");
+        }
+        return timings.toString();
+    }
+
+    /** CLEANUP
+     * Stops the threads of every phase
+     */
+    public void cleanup(){
+        for (PopulationPhase phase : phases){
+            phase.cleanup();
+        }
+    }
+
+    private static class NetworkPhase extends PopulationPhase {
+        NetworkPhase(){super("network", StepProfiler.NETWORK);}
+
+        protected void run(City city){
+            for (Patient patient : city.patients){
+                patient.changeNetwork(city);
+            }
+        }
+    }
+
+    private static class LocationPhase extends PopulationPhase {
+        LocationPhase(){super("location", StepProfiler.LOCATION);}
+
+        protected void run(City city){
+            for (Patient patient : city.patients){
+                patient.actualiseLocation(city);
+            }
+        }
+    }
+
+    private static class VaccinePhase extends PopulationPhase {
+        VaccinePhase(){super("vaccine", StepProfiler.VACCINE);}
+
+        protected void run(City city){
+            if (city.getVaccinationQueue() != null){
+                city.getVaccinationQueue().apply(city, city.getStep());
+                return;
+            }
+            for (Patient patient : city.patients){
+                patient.applyVaccine(city);
+            }
+        }
+    }
+
+    private static class InfectionPhase extends PopulationPhase {
+        InfectionPhase(){super("infection", StepProfiler.INFECTION);}
+
+        protected void run(City city){
+            if (city.getInfectionMode() != City.INFECTION_BERNOULLI) return;
+            for (Patient patient : city.patients){
+                patient.applyInfection(city);
+            }
+        }
+    }
+
+    /** INTERFERENCE PHASE
+     * Every agent only writes its own interference and reads locations and outcomes, which do not change
+     * during the phase, so the population is split into chunks stepped in parallel
+     */
+    private static class InterferencePhase extends PopulationPhase {
+        private final ParallelSequence chunks;
+
+        InterferencePhase(int size, int threads){
+            super("interference", StepProfiler.INTERFERENCE);
+            threads = Math.max(1, threads);
+            Steppable[] steppables = new Steppable[threads];
+            for (int i = 0; i < threads; i++){
+                steppables[i] = new Chunk((int) ((long) size * i / threads), (int) ((long) size * (i + 1) / threads));
+            }
+            chunks = new ParallelSequence(steppables, threads);
+        }
+
+        protected void run(City city){
+            city.getInterferenceEngine().prepare(city);
+            chunks.step(city);
+        }
+
+        public void cleanup(){
+            chunks.cleanup();
+        }
+    }
+
+    private static class Chunk implements Steppable {
+        private final int start;
+        private final int end;
+        private final double[] interference = new double[3];
+
+        Chunk(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        public void step(SimState state){
+            City city = (City) state;
+            PopulationStore store = city.population;
+            InterferenceEngine engine = city.getInterferenceEngine();
+            for (int i = start; i < end; i++){
+                engine.interference(city, i, interference);
+                store.contagionDistance[i] = interference[InterferenceEngine.CONTAGION];
+                store.infectiousnessDistance[i] = interference[InterferenceEngine.INFECTIOUSNESS];
+                store.indirectInterference[i] = interference[InterferenceEngine.INDIRECT];
+            }
+        }
+    }
+}
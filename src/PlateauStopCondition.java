@@ -0,0 +1,50 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** PLATEAU STOP CONDITION
+ * Stops when the prevalence of infection has stayed within a tolerance over the last steps:
+ * the largest and smallest prevalence of the last `steps` steps differ by at most `tolerance`
+ */
+
+public class PlateauStopCondition implements StopCondition {
+    private final double[] prevalence;
+    private final double tolerance;
+    private int count;
+
+    /** PLATEAU STOP CONDITION CONSTRUCTOR
+     * @param steps number of steps of the plateau
+     * @param tolerance largest change of the prevalence, as a share of the population, over the plateau
+     */
+    public PlateauStopCondition(int steps, double tolerance){
+        this.prevalence = new double[Math.max(1, steps)];
+        this.tolerance = tolerance;
+    }
+
+    public String check(City city){
+        PopulationStore store = city.population;
+        prevalence[count++ % prevalence.length] = store.size == 0 ? 0.0 : (double) store.countInfected() / store.size;
+        if (count < prevalence.length) return null;
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : prevalence){
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return max - min <= tolerance ? "plateau" : null;
+    }
+}
@@ -0,0 +1,138 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/** POISSON NETWORK GENERATOR
+ * Degree-dependent Erdos-Renyi network: an agent with degree d_i connects to an agent with degree d_j with
+ * probability P(X >= d_i + d_j), X ~ Poisson(lambda), as in the all-pairs loop of the original model
+ * Instead of one draw per pair, the agents are indexed in buckets of equal degree:
+ * 1. Within a bucket the probability only changes when an edge is added, so the candidates that are not
+ *    connected are skipped at once with a geometric draw
+ * 2. The buckets are visited from the largest degree, and the tail of the distribution comes from a
+ *    cached PoissonTable
+ * Each rewire costs O(buckets + edges) draws, so the initial network is built in expected O(N + E)
+ * As in the original model, the degree of the agent before its edges are removed counts towards the probability
+ */
+
+public class PoissonNetworkGenerator extends AbstractNetworkGenerator {
+
+    // Ids sorted by degree: bucket d is order[start[d]] ... order[start[d + 1] - 1]
+    private int[] order;
+    private int[] position;
+    private int[] start;
+    private int[] accepted = new int[16];
+
+    public void generate(City city){
+        clear(city);
+        buildIndex(city.population.size);
+
+        // Every agent defines its network once, in random order
+        for (int ego : shuffledIds(city)){
+            rewire(city, city.patients[ego]);
+        }
+    }
+
+    public void rewire(City city, Patient patient){
+        int ego = patient.getId();
+        int egoDegree = city.population.degree[ego];
+        disconnect(city, ego);
+
+        PoissonTable table = PoissonTable.forLambda(city.getLambda());
+        while (maxDegree > 0 && start[maxDegree] == start[maxDegree + 1]) maxDegree--;
+
+        // The accepted agents are connected after the scan, so that the buckets do not change during it
+        int count = 0;
+        for (int degree = maxDegree; degree >= 0; degree--){
+            int end = start[degree + 1];
+            int i = start[degree];
+            while (i < end){
+                double probability = table.tail(egoDegree + count + degree);
+                if (probability <= 0) break;
+                long next = i + skip(city, probability);
+                if (next >= end) break;
+                i = (int) next;
+
+                int candidate = order[i++];
+                if (candidate != ego){
+                    if (count == accepted.length) accepted = Arrays.copyOf(accepted, count * 2);
+                    accepted[count++] = candidate;
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++){
+            connect(city, ego, accepted[i]);
+        }
+    }
+
+    /** GEOMETRIC SKIP
+     * @param probability of success of each candidate
+     * @return the number of failures before the first success
+     */
+    private static long skip(City city, double probability){
+        if (probability >= 1.0) return 0;
+        double failures = Math.floor(Math.log(1.0 - city.random.nextDouble()) / Math.log1p(-probability));
+        return failures < Integer.MAX_VALUE ? (long) failures : Integer.MAX_VALUE;
+    }
+
+    /** BUILD INDEX
+     * All the agents in the bucket of degree 0
+     * @param size number of agents
+     */
+    private void buildIndex(int size){
+        order = new int[size];
+        position = new int[size];
+        start = new int[size + 2];
+        for (int i = 0; i < size; i++){
+            order[i] = i;
+            position[i] = i;
+        }
+        Arrays.fill(start, 1, start.length, size);
+    }
+
+    protected void degreeChanged(int id, int previous, int current){
+        if (current > previous){
+            // Swap with the last agent of its bucket, which becomes the first of the next one
+            swap(position[id], start[previous + 1] - 1);
+            start[previous + 1]--;
+        } else {
+            // Swap with the first agent of its bucket, which becomes the last of the previous one
+            swap(position[id], start[previous]);
+            start[previous]++;
+        }
+    }
+
+    public NetworkGenerator copy(){
+        PoissonNetworkGenerator copy = (PoissonNetworkGenerator) super.copy();
+        if (order != null){
+            copy.order = order.clone();
+            copy.position = position.clone();
+            copy.start = start.clone();
+        }
+        copy.accepted = new int[accepted.length];
+        return copy;
+    }
+
+    private void swap(int one, int other){
+        int first = order[one];
+        int second = order[other];
+        order[one] = second;
+        order[other] = first;
+        position[second] = one;
+        position[first] = other;
+    }
+}
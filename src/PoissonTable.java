@@ -0,0 +1,92 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** POISSON TABLE
+ * Cached distribution of a Poisson(lambda), built once per lambda:
+ * 1. The probabilities are calculated in log scale, so that no factorial is needed
+ * 2. The right tail P(X >= x) is added up from the largest x, to keep small tails accurate
+ * Beyond the last entry the tail is below 1e-20 and taken as 0
+ */
+
+public final class PoissonTable {
+    private static final ConcurrentHashMap<Double, PoissonTable> TABLES = new ConcurrentHashMap<>();
+    private static final double NEGLIGIBLE = 1e-20;
+
+    // Last table returned: every rewire asks for the same lambda, which is found without boxing a key
+    private static volatile PoissonTable last;
+
+    private final double lambda;
+    private final double[] tail;
+
+    private PoissonTable(double lambda){
+        this.lambda = lambda;
+
+        // PROBABILITIES: p(x) = exp(x log(lambda) - lambda - log(x!))
+        double[] probability = new double[16];
+        int length = 0;
+        double logProbability = -lambda;
+        for (int x = 0; ; x++){
+            if (x > 0) logProbability += Math.log(lambda / x);
+            double value = lambda > 0 ? Math.exp(logProbability) : (x == 0 ? 1.0 : 0.0);
+            if (x > lambda && value < NEGLIGIBLE) break;
+            if (length == probability.length) probability = Arrays.copyOf(probability, length * 2);
+            probability[length++] = value;
+        }
+
+        // RIGHT TAIL
+        tail = new double[length + 1];
+        for (int x = length - 1; x >= 0; x--){
+            tail[x] = tail[x + 1] + probability[x];
+        }
+        tail[0] = 1.0;
+    }
+
+    /** TABLE OF LAMBDA
+     * @param lambda mean of the function and variance
+     * @return the shared table of the distribution
+     */
+    public static PoissonTable forLambda(double lambda){
+        PoissonTable table = last;
+        if (table != null && Double.compare(table.lambda, lambda) == 0) return table;
+        table = TABLES.computeIfAbsent(lambda, PoissonTable::new);
+        last = table;
+        return table;
+    }
+
+    public double getLambda(){return lambda;}
+
+    /** POISSON RIGHT TAIL
+     * @param x point
+     * @return P(X >= x)
+     */
+    public double tail(int x){
+        if (x <= 0) return 1.0;
+        return x < tail.length ? tail[x] : 0.0;
+    }
+
+    /** INVERSE CUMULATIVE DENSITY FUNCTION
+     * @param u uniform draw in [0, 1)
+     * @return the smallest x such that P(X <= x) > u
+     */
+    public int sample(double u){
+        int x = 0;
+        while (x + 1 < tail.length && 1.0 - tail[x + 1] <= u) x++;
+        return x;
+    }
+}
@@ -0,0 +1,74 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/** POPULATION PHASE
+ * One part of the step of an agent, run over the whole population before the next part starts
+ * Each phase is its own entry of the schedule and keeps its own timing
+ */
+
+public abstract class PopulationPhase implements Steppable {
+    private final String name;
+    private final int profilerPhase;
+    private long lastNanos;
+    private long totalNanos;
+    private long steps;
+
+    /** POPULATION PHASE CONSTRUCTOR
+     * @param name to identify the phase in the timings
+     */
+    protected PopulationPhase(String name){
+        this(name, -1);
+    }
+
+    /** POPULATION PHASE CONSTRUCTOR
+     * @param name to identify the phase in the timings
+     * @param profilerPhase phase of the StepProfiler where the time is also recorded, or -1
+     */
+    protected PopulationPhase(String name, int profilerPhase){
+        this.name = name;
+        this.profilerPhase = profilerPhase;
+    }
+
+    /** RUN
+     * Applies the phase to every agent of the population
+     * @param city to get the current state of the agents
+     */
+    protected abstract void run(City city);
+
+    /** CLEANUP
+     * Stops the threads of the phase, if any
+     */
+    public void cleanup(){}
+
+    public final void step(SimState state){
+        long start = System.nanoTime();
+        run((City) state);
+        if (StepProfiler.ENABLED && profilerPhase >= 0) StepProfiler.record(profilerPhase, start);
+        lastNanos = System.nanoTime() - start;
+        totalNanos += lastNanos;
+        steps++;
+    }
+
+    public String getName(){return name;}
+    public long getLastNanos(){return lastNanos;}
+    public long getTotalNanos(){return totalNanos;}
+    public long getSteps(){return steps;}
+    public double getMeanMillis(){return steps == 0 ? 0.0 : totalNanos / 1e6 / steps;}
+}
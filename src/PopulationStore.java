@@ -0,0 +1,110 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.BitSet;
+
+/** POPULATION STORE
+ * The state of every agent, stored column by column and indexed by the id of the agent:
+ * 1. Location in two double arrays
+ * 2. Sex, vaccine and infection in bitsets, that are also the live indexes of the vaccinated and infected agents;
+ *    vaccine and infection are set through setVaccine and setInfected, which keep their counts up to date
+ * 3. Degree in an int array
+ * 4. Contagion distance, infectiousness distance and indirect interference in double arrays
+ * The Patient objects are views over this store
+ */
+
+public class PopulationStore {
+    public final int size;
+    public final double[] x;
+    public final double[] y;
+    public final BitSet sex;
+    public final BitSet vaccine;
+    public final BitSet infected;
+    public final int[] degree;
+    public final double[] contagionDistance;
+    public final double[] infectiousnessDistance;
+    public final double[] indirectInterference;
+    private int infectedCount;
+    private int vaccinatedCount;
+
+    /** POPULATION STORE CONSTRUCTOR
+     * @param size number of agents
+     */
+    public PopulationStore(int size){
+        this.size = size;
+        this.x = new double[size];
+        this.y = new double[size];
+        this.sex = new BitSet(size);
+        this.vaccine = new BitSet(size);
+        this.infected = new BitSet(size);
+        this.degree = new int[size];
+        this.contagionDistance = new double[size];
+        this.infectiousnessDistance = new double[size];
+        this.indirectInterference = new double[size];
+    }
+
+    public void setLocation(int id, double x, double y){
+        this.x[id] = x;
+        this.y[id] = y;
+    }
+
+    public void setInfected(int id, boolean value){
+        if (infected.get(id) != value){
+            infected.set(id, value);
+            infectedCount += value ? 1 : -1;
+        }
+    }
+
+    public void setVaccine(int id, boolean value){
+        if (vaccine.get(id) != value){
+            vaccine.set(id, value);
+            vaccinatedCount += value ? 1 : -1;
+        }
+    }
+
+    /** COPY
+     * @return an independent store with the same state and counts
+     */
+    public PopulationStore copy(){
+        PopulationStore copy = new PopulationStore(size);
+        System.arraycopy(x, 0, copy.x, 0, size);
+        System.arraycopy(y, 0, copy.y, 0, size);
+        copy.sex.or(sex);
+        copy.vaccine.or(vaccine);
+        copy.infected.or(infected);
+        System.arraycopy(degree, 0, copy.degree, 0, size);
+        System.arraycopy(contagionDistance, 0, copy.contagionDistance, 0, size);
+        System.arraycopy(infectiousnessDistance, 0, copy.infectiousnessDistance, 0, size);
+        System.arraycopy(indirectInterference, 0, copy.indirectInterference, 0, size);
+        copy.infectedCount = infectedCount;
+        copy.vaccinatedCount = vaccinatedCount;
+        return copy;
+    }
+
+    public int countInfected(){return infectedCount;}
+    public int countVaccinated(){return vaccinatedCount;}
+
+    /** EUCLIDEAN DISTANCE
+     * @param one id of an agent
+     * @param other id of any other agent
+     * @return the Euclidean distance between both agents
+     */
+    public double distance(int one, int other){
+        double y = Math.abs(this.y[other] - this.y[one]);
+        double x = Math.abs(this.x[other] - this.x[one]);
+        return Math.sqrt(y*y + x*x);
+    }
+}
@@ -0,0 +1,70 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/** PREFERENTIAL ATTACHMENT NETWORK GENERATOR
+ * Barabasi-Albert network:
+ * 1. The first meanDegree / 2 + 1 agents, in random order, are fully connected
+ * 2. Each following agent connects to meanDegree / 2 agents drawn with probability proportional to their degree
+ * When an agent rewires, it keeps its degree and its new peers are drawn in the same way
+ */
+
+public class PreferentialAttachmentNetworkGenerator extends AbstractNetworkGenerator {
+
+    public void generate(City city){
+        clear(city);
+        int size = city.population.size;
+        int edges = edgesPerAgent(city);
+        int[] ids = shuffledIds(city);
+
+        // Every edge end is listed once, so a uniform entry is an agent drawn proportionally to its degree
+        int[] ends = new int[2 * (edges * (edges + 1) / 2 + Math.max(0, size - edges - 1) * edges)];
+        int length = 0;
+
+        // INITIAL CLIQUE
+        int clique = Math.min(edges + 1, size);
+        for (int i = 0; i < clique; i++){
+            for (int j = i + 1; j < clique; j++){
+                connect(city, ids[i], ids[j]);
+                ends[length++] = ids[i];
+                ends[length++] = ids[j];
+            }
+        }
+
+        // ATTACHMENT
+        for (int i = clique; i < size; i++){
+            int ego = ids[i];
+            int added = 0;
+            while (added < edges){
+                int alter = ends[city.random.nextInt(length)];
+                if (alter != ego && !connected(city, ego, alter)){
+                    connect(city, ego, alter);
+                    ends[length++] = ego;
+                    ends[length++] = alter;
+                    added++;
+                }
+            }
+        }
+    }
+
+    public void rewire(City city, Patient patient){
+        int ego = patient.getId();
+        connectDegreeProportional(city, ego, disconnect(city, ego));
+    }
+
+    private static int edgesPerAgent(City city){
+        return Math.max(1, Math.min((int) Math.round(city.getMeanDegree() * 0.5), city.population.size - 1));
+    }
+}
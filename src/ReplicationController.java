@@ -0,0 +1,141 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** REPLICATION CONTROLLER
+ * Decides how many replicates of each line of a sweep are run, instead of a fixed number:
+ * 1. Every line is run at least minReplicates times
+ * 2. A line keeps getting replicates while the 95% confidence interval of its estimand is wider than the target,
+ *    up to maxReplicates
+ * 3. Each free worker is given to the line whose interval is the widest relative to the target, counting the
+ *    replicates still running as if they had shrunk it already: the workers move to the noisy lines as the quiet
+ *    ones reach the target
+ * Runs where the estimand is not defined count as replicates but not in the interval
+ */
+
+public class ReplicationController {
+
+    // Two-sided 95% quantiles of the Student t distribution, by degrees of freedom
+    private static final double[] T_975 = {Double.NaN, 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306,
+            2.262, 2.228, 2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069,
+            2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+
+    private final Estimand estimand;
+    private final double targetWidth;
+    private final int minReplicates;
+    private final int maxReplicates;
+
+    // By line: replicates launched and completed, and running mean and sum of squares of the estimand
+    private final int[] launched;
+    private final int[] completed;
+    private final int[] count;
+    private final double[] mean;
+    private final double[] squares;
+
+    /** REPLICATION CONTROLLER CONSTRUCTOR
+     * @param lines number of lines of the sweep
+     * @param estimand measured at the end of each run
+     * @param targetWidth full width of the 95% confidence interval to reach
+     * @param minReplicates of every line
+     * @param maxReplicates of any line
+     */
+    public ReplicationController(int lines, Estimand estimand, double targetWidth, int minReplicates, int maxReplicates){
+        this.estimand = estimand;
+        this.targetWidth = targetWidth;
+        this.minReplicates = Math.max(2, minReplicates);
+        this.maxReplicates = Math.max(this.minReplicates, maxReplicates);
+        launched = new int[lines];
+        completed = new int[lines];
+        count = new int[lines];
+        mean = new double[lines];
+        squares = new double[lines];
+    }
+
+    public Estimand getEstimand(){return estimand;}
+    public double getTargetWidth(){return targetWidth;}
+    public int getLines(){return launched.length;}
+    public int getReplicates(int line){return completed[line];}
+    public double getMean(int line){return count[line] == 0 ? Double.NaN : mean[line];}
+
+    /** NEXT LINE
+     * @return the line that needs a replicate the most, or -1 if none needs any more
+     */
+    public int next(){
+        int best = -1;
+        double bestPriority = 0.0;
+        for (int line = 0; line < launched.length; line++){
+            if (launched[line] >= maxReplicates) continue;
+            double priority;
+            if (launched[line] < minReplicates){
+                priority = Double.POSITIVE_INFINITY;
+            } else if (completed[line] < minReplicates){
+                continue;
+            } else {
+                // The interval shrinks with the square root of the number of replicates
+                double projected = getWidth(line) * Math.sqrt(completed[line] / (double) launched[line]);
+                if (!(projected > targetWidth)) continue;
+                priority = projected / targetWidth;
+            }
+            if (best < 0 || priority > bestPriority || (priority == bestPriority && launched[line] < launched[best])){
+                best = line;
+                bestPriority = priority;
+            }
+        }
+        return best;
+    }
+
+    /** LAUNCH
+     * @param line given a new replicate
+     * @return the index of the replicate
+     */
+    public int launch(int line){
+        return launched[line]++;
+    }
+
+    /** COMPLETE
+     * Adds the value of a finished run to the interval of its line (Welford)
+     * @param line of the run
+     * @param value of the estimand, NaN if not defined
+     */
+    public void complete(int line, double value){
+        completed[line]++;
+        if (Double.isNaN(value)) return;
+        count[line]++;
+        double delta = value - mean[line];
+        mean[line] += delta / count[line];
+        squares[line] += delta * (value - mean[line]);
+    }
+
+    /** WIDTH
+     * @param line of the sweep
+     * @return the full width of the 95% confidence interval of the mean of the estimand, infinite with fewer
+     * than two values
+     */
+    public double getWidth(int line){
+        int n = count[line];
+        if (n < 2) return Double.POSITIVE_INFINITY;
+        int freedom = n - 1;
+        double t = freedom < T_975.length ? T_975[freedom] : 1.960;
+        return 2.0 * t * Math.sqrt(squares[line] / freedom / n);
+    }
+
+    /** REACHED
+     * @return whether the interval of the line is within the target
+     */
+    public boolean reached(int line){
+        return getWidth(line) <= targetWidth;
+    }
+}
@@ -0,0 +1,263 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/** STEP PROFILER
+ * Records where the time of a run goes:
+ * 1. The nanoseconds of each call of each phase, in histograms of power of two buckets
+ * 2. The bytes allocated by each simulation thread at each step, and the garbage collections of the JVM
+ * It is switched on with -Dcity.profile=true. ENABLED is a static final constant, so when it is false the
+ * JIT removes every call site guarded by it and the profiler costs nothing
+ * The results are exposed through JMX and printed after each run by City.main
+ * Profiling changes neither the schedule nor the draws, so the results are the same with and without it
+ */
+
+public final class StepProfiler implements StepProfilerMBean, Steppable {
+    public static final boolean ENABLED = Boolean.getBoolean("city.profile");
+
+    // Phases
+    public static final int NETWORK = 0;
+    public static final int LOCATION = 1;
+    public static final int VACCINE = 2;
+    public static final int INFECTION = 3;
+    public static final int INTERFERENCE = 4;
+    public static final int OUTPUT = 5;
+    private static final String[] NAMES = {"network", "location", "vaccine", "infection", "interference", "output"};
+
+    // Bucket b holds the times in [2^(b-1), 2^b) nanoseconds, bucket 0 holds 0
+    private static final int BUCKETS = 64;
+
+    private static final StepProfiler INSTANCE = new StepProfiler();
+
+    // Phases may be timed from several threads at once
+    private final AtomicLongArray buckets = new AtomicLongArray(NAMES.length * BUCKETS);
+    private final AtomicLongArray totals = new AtomicLongArray(NAMES.length);
+    private final AtomicLongArray maxima = new AtomicLongArray(NAMES.length);
+
+    // Steps: several simulations may run at once, one per thread, as in SweepRunner. The allocated bytes are those
+    // of the calling thread, so each thread keeps its own baseline; a baseline from before the last reset() is
+    // discarded by its generation
+    private final com.sun.management.ThreadMXBean threads;
+    private final GarbageCollectorMXBean[] collectors;
+    private final ThreadLocal<long[]> lastAllocated = ThreadLocal.withInitial(() -> new long[]{-1, -1});
+    private long generation;
+    private long steps;
+    private long allocatedBytes;
+    private long maxAllocatedBytes;
+
+    // Garbage collections are counted for the whole JVM, since the first step after the last reset()
+    private long gcCount;
+    private long gcMillis;
+    private long firstGcCount = -1;
+    private long firstGcMillis;
+
+    private StepProfiler(){
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()){
+            threads = (com.sun.management.ThreadMXBean) bean;
+        } else {
+            threads = null;
+        }
+        collectors = ManagementFactory.getGarbageCollectorMXBeans().toArray(new GarbageCollectorMXBean[0]);
+        if (ENABLED){
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("City:type=StepProfiler"));
+            } catch (Exception e) {
+                System.out.println("Error registering the profiler: " + e.getMessage());
+            }
+        }
+    }
+
+    public static StepProfiler getInstance(){return INSTANCE;}
+
+    /** RECORD
+     * Adds the time since start to the histogram of the phase
+     * Callers must check ENABLED first: long start = StepProfiler.ENABLED ? System.nanoTime() : 0
+     * @param phase one of the phase constants
+     * @param start System.nanoTime() when the phase started
+     * @return System.nanoTime() now, to be used as the start of the next phase
+     */
+    public static long record(int phase, long start){
+        long now = System.nanoTime();
+        INSTANCE.add(phase, now - start);
+        return now;
+    }
+
+    private void add(int phase, long nanos){
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos);
+        buckets.incrementAndGet(phase * BUCKETS + bucket);
+        totals.addAndGet(phase, nanos);
+        long max = maxima.get(phase);
+        while (nanos > max && !maxima.compareAndSet(phase, max, nanos)){
+            max = maxima.get(phase);
+        }
+    }
+
+    /** BEGIN
+     * Discards the baseline of the calling thread at the start of a run, so that the setup of the run and the
+     * end of the previous run of the thread are not counted as a step
+     */
+    public void begin(){
+        lastAllocated.get()[0] = -1;
+    }
+
+    /** STEP
+     * Called once per step by the simulation thread when ENABLED, at the boundary between two steps: records the
+     * bytes allocated by the thread since its previous call, and the garbage collections since the first call
+     * It is not scheduled by itself, since an extra entry would change the shuffled order of the schedule
+     * @param state of the simulation
+     */
+    public void step(SimState state){
+        long allocated = threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : collectors){
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+
+        long[] last = lastAllocated.get();
+        synchronized (this){
+            if (last[0] == generation){
+                long bytes = allocated - last[1];
+                allocatedBytes += bytes;
+                maxAllocatedBytes = Math.max(maxAllocatedBytes, bytes);
+                steps++;
+            }
+            last[0] = generation;
+            last[1] = allocated;
+
+            if (firstGcCount < 0){
+                firstGcCount = count;
+                firstGcMillis = millis;
+            }
+            gcCount = Math.max(gcCount, count - firstGcCount);
+            gcMillis = Math.max(gcMillis, millis - firstGcMillis);
+        }
+    }
+
+    public String[] getPhaseNames(){return NAMES.clone();}
+
+    public long[] getCalls(){
+        long[] calls = new long[NAMES.length];
+        for (int phase = 0; phase < NAMES.length; phase++){
+            for (int bucket = 0; bucket < BUCKETS; bucket++){
+                calls[phase] += buckets.get(phase * BUCKETS + bucket);
+            }
+        }
+        return calls;
+    }
+
+    public double[] getMeanNanos(){
+        long[] calls = getCalls();
+        double[] means = new double[NAMES.length];
+        for (int phase = 0; phase < NAMES.length; phase++){
+            means[phase] = calls[phase] == 0 ? 0.0 : (double) totals.get(phase) / calls[phase];
+        }
+        return means;
+    }
+
+    public long[] getMedianNanos(){return percentile(0.5);}
+    public long[] getP99Nanos(){return percentile(0.99);}
+
+    public long[] getMaxNanos(){
+        long[] max = new long[NAMES.length];
+        for (int phase = 0; phase < NAMES.length; phase++){
+            max[phase] = maxima.get(phase);
+        }
+        return max;
+    }
+
+    /** PERCENTILE
+     * @param fraction of the calls, in (0, 1]
+     * @return for each phase, the upper bound of the bucket that holds the percentile
+     */
+    private long[] percentile(double fraction){
+        long[] calls = getCalls();
+        long[] result = new long[NAMES.length];
+        for (int phase = 0; phase < NAMES.length; phase++){
+            long rank = (long) Math.ceil(fraction * calls[phase]);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS && calls[phase] > 0; bucket++){
+                seen += buckets.get(phase * BUCKETS + bucket);
+                if (seen >= rank){
+                    result[phase] = bucket == 0 ? 0 : (bucket >= 63 ? Long.MAX_VALUE : 1L << bucket);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getSteps(){return steps;}
+    public synchronized double getMeanAllocatedBytesPerStep(){return steps == 0 ? 0.0 : (double) allocatedBytes / steps;}
+    public synchronized long getMaxAllocatedBytesPerStep(){return maxAllocatedBytes;}
+    public synchronized long getGcCount(){return gcCount;}
+    public synchronized long getGcMillis(){return gcMillis;}
+
+    /** SUMMARY
+     * @return one line per phase with its calls, total, mean, median, 99th percentile and maximum times,
+     * followed by the allocations and garbage collections per step
+     */
+    public String getSummary(){
+        long[] calls = getCalls();
+        double[] means = getMeanNanos();
+        long[] medians = getMedianNanos();
+        long[] p99 = getP99Nanos();
+        long[] max = getMaxNanos();
+
+        StringBuilder summary = new StringBuilder("PROFILE\n");
+        summary.append(String.format(Locale.ROOT, "%-13s %12s %12s %12s %12s %12s %12s%n",
+                "phase", "calls", "total ms", "mean ns", "p50 ns <=", "p99 ns <=", "max ns"));
+        for (int phase = 0; phase < NAMES.length; phase++){
+            summary.append(String.format(Locale.ROOT, "%-13s %12d %12.1f %12.1f %12d %12d %12d%n",
+                    NAMES[phase], calls[phase], totals.get(phase) / 1e6, means[phase],
+                    medians[phase], p99[phase], max[phase]));
+        }
+        summary.append(String.format(Locale.ROOT, "steps %d, allocated %.0f bytes/step (max %d), GC %d collections, %d ms",
+                getSteps(), getMeanAllocatedBytesPerStep(), getMaxAllocatedBytesPerStep(), getGcCount(), getGcMillis()));
+        return summary.toString();
+    }
+
+    /** RESET
+     * Clears every histogram and counter, for example between the runs of City.main
+     */
+    public synchronized void reset(){
+        for (int i = 0; i < buckets.length(); i++){
+            buckets.set(i, 0);
+        }
+        for (int phase = 0; phase < NAMES.length; phase++){
+            totals.set(phase, 0);
+            maxima.set(phase, 0);
+        }
+        generation++;
+        steps = 0;
+        allocatedBytes = 0;
+        maxAllocatedBytes = 0;
+        gcCount = 0;
+        gcMillis = 0;
+        firstGcCount = -1;
+    }
+}
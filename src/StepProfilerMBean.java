@@ -0,0 +1,37 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** STEP PROFILER MBEAN
+ * Management interface of the StepProfiler, registered as City:type=StepProfiler
+ * Times are in nanoseconds, per call of each phase; the percentiles are upper bounds of power of two buckets
+ */
+
+public interface StepProfilerMBean {
+    String[] getPhaseNames();
+    long[] getCalls();
+    double[] getMeanNanos();
+    long[] getMedianNanos();
+    long[] getP99Nanos();
+    long[] getMaxNanos();
+    long getSteps();
+    double getMeanAllocatedBytesPerStep();
+    long getMaxAllocatedBytesPerStep();
+    long getGcCount();
+    long getGcMillis();
+    String getSummary();
+    void reset();
+}
@@ -0,0 +1,145 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/** STEP SNAPSHOT
+ * Copy of the columns of the population store that are written at one step
+ * Snapshots are reused: capture() only allocates when the population is larger than any captured before
+ * A snapshot holds every agent, or only those of a sample, in the order of their ids
+ * The rows are written in the column order of the header created by Utils
+ */
+
+public class StepSnapshot {
+    private static final byte[] AGENT_PREFIX = "Patient_".getBytes(StandardCharsets.US_ASCII);
+
+    private long step;
+    private int size;
+    private int[] agents = new int[0];
+    private boolean[] sex = new boolean[0];
+    private boolean[] vaccine = new boolean[0];
+    private boolean[] infected = new boolean[0];
+    private int[] degree = new int[0];
+    private double[] contagionDistance = new double[0];
+    private double[] infectiousnessDistance = new double[0];
+    private double[] indirectInterference = new double[0];
+
+    public long getStep(){return step;}
+    public int getSize(){return size;}
+
+    // Values of the k-th agent of the snapshot
+    int getAgent(int k){return agents[k];}
+    boolean getSex(int k){return sex[k];}
+    boolean getVaccine(int k){return vaccine[k];}
+    boolean getInfected(int k){return infected[k];}
+    int getDegree(int k){return degree[k];}
+    double getContagionDistance(int k){return contagionDistance[k];}
+    double getInfectiousnessDistance(int k){return infectiousnessDistance[k];}
+    double getIndirectInterference(int k){return indirectInterference[k];}
+
+    /** CAPTURE
+     * @param step of the simulation
+     * @param store with the current state of the agents
+     */
+    public void capture(long step, PopulationStore store){
+        capture(step, store, null);
+    }
+
+    /** CAPTURE A SAMPLE
+     * @param step of the simulation
+     * @param store with the current state of the agents
+     * @param sample ids of the agents captured, in increasing order, or null for every agent
+     */
+    public void capture(long step, PopulationStore store, int[] sample){
+        this.step = step;
+        this.size = sample == null ? store.size : sample.length;
+        if (sex.length < size){
+            agents = new int[size];
+            sex = new boolean[size];
+            vaccine = new boolean[size];
+            infected = new boolean[size];
+            degree = new int[size];
+            contagionDistance = new double[size];
+            infectiousnessDistance = new double[size];
+            indirectInterference = new double[size];
+        }
+        if (sample == null){
+            for (int i = 0; i < size; i++){
+                agents[i] = i;
+                sex[i] = store.sex.get(i);
+                vaccine[i] = store.vaccine.get(i);
+                infected[i] = store.infected.get(i);
+            }
+            System.arraycopy(store.degree, 0, degree, 0, size);
+            System.arraycopy(store.contagionDistance, 0, contagionDistance, 0, size);
+            System.arraycopy(store.infectiousnessDistance, 0, infectiousnessDistance, 0, size);
+            System.arraycopy(store.indirectInterference, 0, indirectInterference, 0, size);
+            return;
+        }
+        for (int k = 0; k < size; k++){
+            int i = sample[k];
+            agents[k] = i;
+            sex[k] = store.sex.get(i);
+            vaccine[k] = store.vaccine.get(i);
+            infected[k] = store.infected.get(i);
+            degree[k] = store.degree[i];
+            contagionDistance[k] = store.contagionDistance[i];
+            infectiousnessDistance[k] = store.infectiousnessDistance[i];
+            indirectInterference[k] = store.indirectInterference[i];
+        }
+    }
+
+    /** WRITE
+     * One row per agent: step,agent,sex,vaccine,infection,degree,contagionDist,infectiousnessDist,indInterference
+     * @param writer where the rows are written
+     */
+    public void write(StepWriter writer) throws IOException {
+        write(writer, true);
+    }
+
+    /** WRITE
+     * @param writer where the rows are written
+     * @param distances whether the contagion distance, infectiousness distance and indirect interference are
+     *                  written, or left blank because they are not known at this step
+     */
+    public void write(StepWriter writer, boolean distances) throws IOException {
+        for (int i = 0; i < size; i++){
+            if (!distances){
+                writer.value(step).comma()
+                        .bytes(AGENT_PREFIX).value(agents[i]).comma()
+                        .value(sex[i]).comma()
+                        .value(vaccine[i]).comma()
+                        .value(infected[i]).comma()
+                        .value(degree[i]).comma()
+                        .comma()
+                        .comma()
+                        .endRow();
+                continue;
+            }
+            writer.value(step).comma()
+                    .bytes(AGENT_PREFIX).value(agents[i]).comma()
+                    .value(sex[i]).comma()
+                    .value(vaccine[i]).comma()
+                    .value(infected[i]).comma()
+                    .value(degree[i]).comma()
+                    .value(contagionDistance[i]).comma()
+                    .value(infectiousnessDistance[i]).comma()
+                    .value(indirectInterference[i])
+                    .endRow();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** STEP WRITER
+ * Keeps one file channel open for the whole run and writes the rows into a reusable byte buffer:
+ * 1. Numbers are formatted by an AsciiFormatter straight into the buffer
+ * 2. The buffer is written to the channel when it cannot hold another row, and on flush() or close()
+ * The number of rows and bytes written are counted for the throughput of the output
+ */
+
+public class StepWriter {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Room that must be left for a row: longer rows are written in several pieces
+    private static final int ROW_ROOM = 512;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] bytes = buffer.array();
+    private final AsciiFormatter formatter = new AsciiFormatter();
+    private int position;
+
+    private long rows;
+    private long written;
+
+    /** STEP WRITER CONSTRUCTOR
+     * @param path of the file
+     * @param append whether the rows are added at the end of an existing file, instead of replacing it
+     */
+    public StepWriter(Path path, boolean append) throws IOException {
+        channel = append ?
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND) :
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public long getRows(){return rows;}
+    public long getBytes(){return written + position;}
+
+    /** TEXT
+     * Writes a line of text, such as the header, that is not counted as a row
+     */
+    public StepWriter line(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++){
+            room(1);
+            bytes[position++] = (byte) text.charAt(i);
+        }
+        return bytes(LINE_SEPARATOR);
+    }
+
+    public StepWriter bytes(byte[] value) throws IOException {
+        room(value.length);
+        System.arraycopy(value, 0, bytes, position, value.length);
+        position += value.length;
+        return this;
+    }
+
+    public StepWriter comma() throws IOException {
+        room(1);
+        bytes[position++] = ',';
+        return this;
+    }
+
+    public StepWriter value(long value) throws IOException {
+        room(AsciiFormatter.MAX_LONG_LENGTH);
+        position = formatter.format(value, bytes, position);
+        return this;
+    }
+
+    public StepWriter value(boolean value) throws IOException {
+        room(5);
+        position = formatter.format(value, bytes, position);
+        return this;
+    }
+
+    public StepWriter value(double value) throws IOException {
+        room(AsciiFormatter.MAX_DOUBLE_LENGTH);
+        position = formatter.format(value, bytes, position);
+        return this;
+    }
+
+    /** END ROW
+     * Ends the line and counts the row
+     */
+    public void endRow() throws IOException {
+        bytes(LINE_SEPARATOR);
+        rows++;
+        if (BUFFER_SIZE - position < ROW_ROOM) drain();
+    }
+
+    /** FLUSH
+     * Writes the buffer to the file
+     */
+    public void flush() throws IOException {
+        drain();
+    }
+
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void room(int size) throws IOException {
+        if (BUFFER_SIZE - position < size) drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.clear();
+        buffer.limit(position);
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        written += position;
+        position = 0;
+    }
+}
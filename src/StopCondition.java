@@ -0,0 +1,31 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** STOP CONDITION
+ * Evaluated once per step, after the step, to end a run before earlyGUIStop
+ * Conditions are added to the City with addStopCondition, or created from its properties at the start
+ */
+
+public interface StopCondition {
+
+    /** CHECK
+     * Should be cheap: the counts of the population store are kept up to date as the agents change
+     * @param city after its last completed step
+     * @return the reason to stop, a single word for the output header, or null to go on
+     */
+    String check(City city);
+}
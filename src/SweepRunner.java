@@ -0,0 +1,266 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.Locale;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** SWEEP RUNNER
+ * Runs every line of the `params` file, a number of replicates each, on a pool of worker threads:
+ * 1. Each run is an independent City, with a 32-bit seed derived from the master seed and its line and replicate
+ * 2. Each run writes to its own file, output/sweep_<master seed>_line<line>_rep<replicate>.csv
+ * 3. The progress and the estimated time left are printed as the runs complete
+ * 4. Every run is added to output/manifest.csv with its seed, file and wall time
+ * With a target width, the number of replicates of each line is decided by a ReplicationController instead, and
+ * the interval reached by each line is written to output/replication_<master seed>.csv
+ * Usage: java SweepRunner [-params file] [-workers n] [-replicates n] [-seed n] [-steps n]
+ *        [-target width [-estimand prevalence|riskDifference] [-min n] [-max n]] [-panel true|false] [-estimates true|false]
+ * A sweep of many runs may keep only the causal estimates of each run, with -panel false -estimates true
+ * -steps replaces the earlyGUIStop of every City, so that runs longer than the default are not finished early
+ */
+
+public class SweepRunner {
+    private static final String DIRECTORY = "output";
+    private static final String MANIFEST = "manifest.csv";
+
+    private final FileParams fileParams;
+    private final int workers;
+    private final int replicates;
+    private final long masterSeed;
+    private final int steps;
+    private ReplicationController controller;
+    private boolean panel = true;
+    private boolean estimates = false;
+
+    /** SWEEP RUNNER CONSTRUCTOR
+     * @param fileParams lines of the sweep
+     * @param workers number of runs at once
+     * @param replicates number of runs of each line
+     * @param masterSeed from which the seed of each run is derived
+     * @param steps of each run
+     */
+    public SweepRunner(FileParams fileParams, int workers, int replicates, long masterSeed, int steps){
+        this.fileParams = fileParams;
+        this.workers = Math.max(1, workers);
+        this.replicates = Math.max(1, replicates);
+        this.masterSeed = masterSeed;
+        this.steps = steps;
+    }
+
+    /** ADAPTIVE REPLICATION
+     * @param controller that decides the replicates of each line, instead of the fixed number, or null
+     */
+    public void setController(ReplicationController controller){
+        this.controller = controller;
+    }
+
+    /** OUTPUT OF EACH RUN
+     * @param panel whether each run writes the state of every agent at every step to its own file
+     * @param estimates whether each run appends its causal estimates to output/estimates.csv
+     */
+    public void setOutput(boolean panel, boolean estimates){
+        this.panel = panel;
+        this.estimates = estimates;
+    }
+
+    /** RUN RESULT
+     * One line of the manifest
+     */
+    private static class Result {
+        int line;
+        int replicate;
+        long seed;
+        String file;
+        long steps;
+        double wallSeconds;
+        String status = "ok";
+        double estimate = Double.NaN;
+    }
+
+    /** RUN THE SWEEP
+     * Blocks until every run has completed
+     */
+    public void run() throws Exception {
+        int runs = fileParams.getSize() * replicates;
+        int threadsPerRun = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+        new File(DIRECTORY).mkdirs();
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        ExecutorCompletionService<Result> completion = new ExecutorCompletionService<>(pool);
+        if (controller == null){
+            for (int line = 0; line < fileParams.getSize(); line++){
+                for (int replicate = 0; replicate < replicates; replicate++){
+                    final int l = line;
+                    final int r = replicate;
+                    completion.submit(() -> execute(l, r, threadsPerRun));
+                }
+            }
+            pool.shutdown();
+        }
+
+        File manifest = new File(DIRECTORY, MANIFEST);
+        boolean header = !manifest.exists();
+        long start = System.nanoTime();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest, true), "utf-8"))){
+            if (header){
+                writer.write("masterSeed,line,replicate,seed,file,steps,wallSeconds,status");
+                writer.write(System.lineSeparator());
+            }
+
+            // ADAPTIVE: the runs are submitted one per free worker, to the line that needs them the most
+            if (controller != null){
+                int running = submit(completion, 0, threadsPerRun);
+                for (int completed = 1; running > 0; completed++){
+                    Result result = completion.take().get();
+                    running--;
+                    controller.complete(result.line, result.estimate);
+                    write(writer, result);
+                    running = submit(completion, running, threadsPerRun);
+
+                    double elapsed = (System.nanoTime() - start) * 1e-9;
+                    System.out.println(String.format(Locale.ROOT, "Completed %d, elapsed %s, line %d: %.4f, width %.4f after %d replicates",
+                            completed, clock(elapsed), result.line, controller.getMean(result.line),
+                            controller.getWidth(result.line), controller.getReplicates(result.line)));
+                }
+                pool.shutdown();
+                writeReplication();
+                return;
+            }
+
+            for (int completed = 1; completed <= runs; completed++){
+                Result result = completion.take().get();
+                write(writer, result);
+
+                // PROGRESS
+                double elapsed = (System.nanoTime() - start) * 1e-9;
+                double left = elapsed / completed * (runs - completed);
+                System.out.println(String.format(Locale.ROOT, "Completed %d/%d (%.1f%%), elapsed %s, ETA %s",
+                        completed, runs, 100.0 * completed / runs, clock(elapsed), clock(left)));
+            }
+        }
+    }
+
+    /** SUBMIT
+     * Fills the free workers with replicates of the lines chosen by the controller
+     * @param running number of runs submitted and not yet completed
+     * @return the number of runs running afterwards
+     */
+    private int submit(ExecutorCompletionService<Result> completion, int running, int threads){
+        while (running < workers){
+            int line = controller.next();
+            if (line < 0) break;
+            int replicate = controller.launch(line);
+            completion.submit(() -> execute(line, replicate, threads));
+            running++;
+        }
+        return running;
+    }
+
+    private void write(Writer writer, Result result) throws IOException {
+        writer.write(masterSeed + "," + result.line + "," + result.replicate + "," + result.seed + "," +
+                result.file + "," + result.steps + "," +
+                String.format(Locale.ROOT, "%.3f", result.wallSeconds) + "," + result.status);
+        writer.write(System.lineSeparator());
+        writer.flush();
+    }
+
+    /** WRITE REPLICATION
+     * One line per line of the sweep: its replicates, and the mean and confidence interval of the estimand
+     */
+    private void writeReplication() throws IOException {
+        File file = new File(DIRECTORY, "replication_" + masterSeed + ".csv");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"))){
+            writer.write("line,replicates,mean,width,targetWidth,reached");
+            writer.write(System.lineSeparator());
+            for (int line = 0; line < controller.getLines(); line++){
+                writer.write(line + "," + controller.getReplicates(line) + "," + controller.getMean(line) + "," +
+                        controller.getWidth(line) + "," + controller.getTargetWidth() + "," + controller.reached(line));
+                writer.write(System.lineSeparator());
+            }
+        }
+    }
+
+    /** EXECUTE ONE RUN
+     * @param line of the params file
+     * @param replicate of the line
+     * @param threads for the synchronous step mode
+     */
+    private Result execute(int line, int replicate, int threads){
+        Result result = new Result();
+        result.line = line;
+        result.replicate = replicate;
+        // MASON only keeps the low 32 bits of a seed: those are the seed of the run, recorded in every output
+        result.seed = (int) AgentRandom.seed(masterSeed, line, replicate);
+        result.file = "sweep_" + masterSeed + "_line" + line + "_rep" + replicate + ".csv";
+
+        long start = System.nanoTime();
+        try {
+            City city = new City(result.seed);
+            fileParams.apply(line, city);
+            city.setNumThreads(threads);
+            city.setFileName(result.file);
+            city.earlyGUIStop = steps;
+            if (!panel) city.setOutputMode(City.OUTPUT_NONE);
+            city.setEstimateEffects(estimates);
+
+            city.start();
+            do {
+                if (!city.schedule.step(city)) break;
+            }
+            while(city.getCompletedSteps() < steps && !city.checkStop());
+            city.finish();
+            result.steps = city.getCompletedSteps();
+            if (controller != null) result.estimate = controller.getEstimand().measure(city);
+        } catch (Exception e){
+            e.printStackTrace();
+            result.status = "failed: " + e.getClass().getSimpleName();
+        }
+        result.wallSeconds = (System.nanoTime() - start) * 1e-9;
+        return result;
+    }
+
+    private static String clock(double seconds){
+        long total = Math.round(seconds);
+        return String.format(Locale.ROOT, "%02d:%02d:%02d", total / 3600, total / 60 % 60, total % 60);
+    }
+
+    public static void main(String[] args) throws Exception {
+        File params = new File(Arguments.value(args, "-params", "params"));
+        int workers = Integer.parseInt(Arguments.value(args, "-workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int replicates = Integer.parseInt(Arguments.value(args, "-replicates", "1"));
+        long seed = Long.parseLong(Arguments.value(args, "-seed", String.valueOf(System.currentTimeMillis())));
+        int steps = Integer.parseInt(Arguments.value(args, "-steps", String.valueOf(new City(seed).earlyGUIStop)));
+
+        FileParams fileParams = FileParams.read(params);
+        SweepRunner runner = new SweepRunner(fileParams, workers, replicates, seed, steps);
+        runner.setOutput(Boolean.parseBoolean(Arguments.value(args, "-panel", "true")),
+                Boolean.parseBoolean(Arguments.value(args, "-estimates", "false")));
+        String target = Arguments.value(args, "-target", null);
+        if (target != null){
+            runner.setController(new ReplicationController(fileParams.getSize(),
+                    Estimand.forName(Arguments.value(args, "-estimand", "prevalence")), Double.parseDouble(target),
+                    Integer.parseInt(Arguments.value(args, "-min", "3")),
+                    Integer.parseInt(Arguments.value(args, "-max", "100"))));
+        }
+
+        System.out.println("SWEEP MODE: master seed " + seed + ", " + workers + " workers");
+        runner.run();
+        System.exit(0);
+    }
+}
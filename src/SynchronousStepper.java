@@ -0,0 +1,185 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import sim.engine.ParallelSequence;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/** SYNCHRONOUS STEPPER
+ * Steps the whole population at once, so that every agent sees the state of the others at step t:
+ * 0. The network is rewired agent by agent, in id order, with the random number generator of the city
+ * 1. COMPUTE: the new location, vaccine, infection and interference of every agent are calculated from step t
+ *    and written to the back buffers, in parallel
+ * 2. COMMIT: the back buffers become the state of step t + 1, in parallel
+ * The draws of each agent come from its own AgentRandom substreams, so the results are the same for any number
+ * of threads and any order of the agents
+ */
+
+public class SynchronousStepper implements Steppable {
+    private final ParallelSequence compute;
+    private final ParallelSequence commit;
+
+    // Back buffers: state of step t + 1
+    private final double[] nextX;
+    private final double[] nextY;
+    private final double[] nextContagion;
+    private final double[] nextInfectiousness;
+    private final double[] nextIndirect;
+    private final boolean[] nextVaccine;
+    private final boolean[] nextInfected;
+
+    private long step;
+
+    /** SYNCHRONOUS STEPPER CONSTRUCTOR
+     * @param city whose population will be stepped
+     * @param threads number of threads of each phase
+     */
+    public SynchronousStepper(City city, int threads){
+        int size = city.population.size;
+        nextX = new double[size];
+        nextY = new double[size];
+        nextContagion = new double[size];
+        nextInfectiousness = new double[size];
+        nextIndirect = new double[size];
+        nextVaccine = new boolean[size];
+        nextInfected = new boolean[size];
+
+        threads = Math.max(1, threads);
+        Steppable[] computeChunks = new Steppable[threads];
+        Steppable[] commitChunks = new Steppable[threads];
+        for (int i = 0; i < threads; i++){
+            int start = (int) ((long) size * i / threads);
+            int end = (int) ((long) size * (i + 1) / threads);
+            computeChunks[i] = new Compute(start, end);
+            commitChunks[i] = new Commit(start, end);
+        }
+        compute = new ParallelSequence(computeChunks, threads);
+        commit = new ParallelSequence(commitChunks, threads);
+    }
+
+    public void step(SimState state){
+        City city = (City) state;
+        PopulationStore store = city.population;
+        step = city.getStep();
+
+        // 0. NETWORK
+        long start = StepProfiler.ENABLED ? System.nanoTime() : 0;
+        for (Patient patient : city.patients){
+            patient.changeNetwork(city);
+        }
+        if (StepProfiler.ENABLED) StepProfiler.record(StepProfiler.NETWORK, start);
+
+        // 1. COMPUTE
+        compute.step(city);
+
+        // 2. COMMIT: the bitsets are not thread-safe, so the flags are set here
+        commit.step(city);
+        for (int i = 0; i < store.size; i++){
+            if (nextVaccine[i]) store.setVaccine(i, true);
+            if (nextInfected[i]) store.setInfected(i, true);
+        }
+
+        // FINISH THE SIMULATION
+        if (step == city.earlyGUIStop){
+            city.finish();
+        }
+    }
+
+    /** CLEANUP
+     * Stops the threads of both phases
+     */
+    public void cleanup(){
+        compute.cleanup();
+        commit.cleanup();
+    }
+
+    /** COMPUTE CHUNK
+     * Calculates the state of step t + 1 of the agents in [start, end)
+     */
+    private class Compute implements Steppable {
+        private final int start;
+        private final int end;
+        private final double[] interference = new double[3];
+
+        Compute(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        public void step(SimState state){
+            City city = (City) state;
+            PopulationStore store = city.population;
+            InterferenceEngine engine = city.getInterferenceEngine();
+            long seed = city.seed();
+            double randomForce = city.getRandomForce();
+            boolean bernoulli = city.getVaccinationMode() == City.VACCINATION_BERNOULLI;
+            boolean bernoulliInfection = city.getInfectionMode() == City.INFECTION_BERNOULLI;
+
+            for (int i = start; i < end; i++){
+                Patient patient = city.patients[i];
+                long time = StepProfiler.ENABLED ? System.nanoTime() : 0;
+
+                // 1. LOCATION
+                double randomX = randomForce * AgentRandom.nextDouble(seed, i, step, AgentRandom.MOVE_X) - randomForce * 0.5;
+                double randomY = randomForce * AgentRandom.nextDouble(seed, i, step, AgentRandom.MOVE_Y) - randomForce * 0.5;
+                patient.computeLocation(city, randomX, randomY, nextX, nextY);
+                if (StepProfiler.ENABLED) time = StepProfiler.record(StepProfiler.LOCATION, time);
+
+                // 2. VACCINE
+                boolean vaccine = store.vaccine.get(i) || (bernoulli &&
+                        AgentRandom.nextDouble(seed, i, step, AgentRandom.VACCINE) < patient.vaccineProbability(city));
+                nextVaccine[i] = vaccine;
+                if (StepProfiler.ENABLED) time = StepProfiler.record(StepProfiler.VACCINE, time);
+
+                // 3. INFECTION: with the interference of step t
+                nextInfected[i] = store.infected.get(i) || (bernoulliInfection &&
+                        AgentRandom.nextDouble(seed, i, step, AgentRandom.INFECTION) <
+                                patient.infectionProbability(city, vaccine, store.indirectInterference[i]));
+                if (StepProfiler.ENABLED) time = StepProfiler.record(StepProfiler.INFECTION, time);
+
+                // 4. INTERFERENCE: from the locations and outcomes of step t
+                engine.interference(city, i, interference);
+                nextContagion[i] = interference[InterferenceEngine.CONTAGION];
+                nextInfectiousness[i] = interference[InterferenceEngine.INFECTIOUSNESS];
+                nextIndirect[i] = interference[InterferenceEngine.INDIRECT];
+                if (StepProfiler.ENABLED) StepProfiler.record(StepProfiler.INTERFERENCE, time);
+            }
+        }
+    }
+
+    /** COMMIT CHUNK
+     * Copies the back buffers of the agents in [start, end) to the population store
+     */
+    private class Commit implements Steppable {
+        private final int start;
+        private final int end;
+
+        Commit(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        public void step(SimState state){
+            PopulationStore store = ((City) state).population;
+            int length = end - start;
+            System.arraycopy(nextX, start, store.x, start, length);
+            System.arraycopy(nextY, start, store.y, start, length);
+            System.arraycopy(nextContagion, start, store.contagionDistance, start, length);
+            System.arraycopy(nextInfectiousness, start, store.infectiousnessDistance, start, length);
+            System.arraycopy(nextIndirect, start, store.indirectInterference, start, length);
+        }
+    }
+}
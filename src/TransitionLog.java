@@ -0,0 +1,136 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+/** TRANSITION LOG
+ * Output of the transitions mode, instead of every column of every agent at every step:
+ * 1. KEYFRAMES: the rows of every agent, in the format of the panel, at the first step written, every
+ *    keyframeInterval steps and at the last step, written to the file of the run
+ * 2. TRANSITIONS: one row step,agent,field,value each time the vaccine, the infection or the degree of an agent
+ *    changes, written to <file of the run>_transitions.csv
+ * Sex never changes, so it is only in the keyframes; the distances change at every step and are only kept in them
+ * TransitionLogReader rebuilds the panel at any step from both files, with blank distances between the keyframes
+ */
+
+public class TransitionLog {
+    public static final String SUFFIX = "_transitions.csv";
+    public static final String HEADER = "step,agent,field,value";
+    private static final byte[] VACCINE = ",vaccine,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INFECTION = ",infection,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEGREE = ",degree,".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path path;
+    private final int keyframeInterval;
+    private StepWriter writer;
+
+    // State of the last step written, to find the transitions of the next one
+    private final StepSnapshot snapshot = new StepSnapshot();
+    private final BitSet vaccine = new BitSet();
+    private final BitSet infected = new BitSet();
+    private int[] degree = new int[0];
+    private boolean started;
+    private long lastStep;
+    private long lastKeyframe;
+
+    /** TRANSITION LOG CONSTRUCTOR
+     * @param path of the file of the transitions
+     * @param keyframeInterval number of steps between two keyframes
+     */
+    public TransitionLog(Path path, int keyframeInterval) throws IOException {
+        this.path = path;
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+        writer = new StepWriter(path, false);
+        writer.line(HEADER);
+    }
+
+    /** TRANSITIONS PATH
+     * @param panel path of the file of the run
+     * @return the path of its file of transitions
+     */
+    public static Path transitionsPath(Path panel){
+        String name = panel.getFileName().toString();
+        if (name.endsWith(".csv")) name = name.substring(0, name.length() - 4);
+        return panel.resolveSibling(name + SUFFIX);
+    }
+
+    public long getRows(){return writer == null ? 0 : writer.getRows();}
+    public long getBytes(){return writer == null ? 0 : writer.getBytes();}
+
+    /** WRITE
+     * A step written after close() can only be the last one: it is written with a keyframe
+     * @param step of the simulation
+     * @param store with the state of the agents at that step
+     * @param keyframes writer of the file of the run
+     */
+    public void write(long step, PopulationStore store, StepWriter keyframes) throws IOException {
+        boolean reopened = writer == null;
+        if (reopened) writer = new StepWriter(path, true);
+        try {
+            if (started){
+                for (int i = 0; i < store.size; i++){
+                    boolean value = store.vaccine.get(i);
+                    if (value != vaccine.get(i)) writer.value(step).comma().value(i).bytes(VACCINE).value(value).endRow();
+                    value = store.infected.get(i);
+                    if (value != infected.get(i)) writer.value(step).comma().value(i).bytes(INFECTION).value(value).endRow();
+                    if (store.degree[i] != degree[i]) writer.value(step).comma().value(i).bytes(DEGREE).value(store.degree[i]).endRow();
+                }
+            }
+
+            vaccine.clear();
+            vaccine.or(store.vaccine);
+            infected.clear();
+            infected.or(store.infected);
+            if (degree.length != store.size) degree = new int[store.size];
+            System.arraycopy(store.degree, 0, degree, 0, store.size);
+            snapshot.capture(step, store);
+
+            if (!started || step % keyframeInterval == 0 || reopened){
+                snapshot.write(keyframes);
+                lastKeyframe = step;
+            }
+            started = true;
+            lastStep = step;
+        } finally {
+            if (reopened){
+                writer.close();
+                writer = null;
+            }
+        }
+    }
+
+    /** CLOSE
+     * Writes the keyframe of the last step, if it is not one already, and closes the file of the transitions
+     * The rows and bytes of the transitions must be read before
+     * @param keyframes writer of the file of the run
+     */
+    public void close(StepWriter keyframes) throws IOException {
+        if (writer == null) return;
+        try {
+            if (started && lastStep != lastKeyframe){
+                snapshot.write(keyframes);
+                lastKeyframe = lastStep;
+            }
+        } finally {
+            writer.close();
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** TRANSITION LOG READER
+ * Rebuilds the panel of a run written in the transitions mode, from its keyframes and its transitions:
+ * 1. Sex, vaccine, infection and degree are exact at every step: those of the last keyframe, changed by the
+ *    transitions that came after it
+ * 2. Contagion distance, infectiousness distance and indirect interference are only known at the keyframes: at
+ *    the other steps they are NaN in stateAt() and blank in the panel
+ * Usage: java TransitionLogReader output/<file of the run> [-step n]
+ * The panel, or only the rows of the given step, is written to output/<file of the run>_panel.csv, with the same
+ * header lines as the file of the run
+ */
+
+public class TransitionLogReader {
+    private static final String AGENT_PREFIX = "Patient_";
+    private static final byte FIELD_VACCINE = 0;
+    private static final byte FIELD_INFECTION = 1;
+    private static final byte FIELD_DEGREE = 2;
+
+    private final String parameters;
+    private final String columns;
+    private final TreeMap<Long, PopulationStore> keyframes = new TreeMap<>();
+
+    // Transitions in the order they were written, which is the order of the steps
+    private long[] steps = new long[16];
+    private int[] agents = new int[16];
+    private byte[] fields = new byte[16];
+    private int[] values = new int[16];
+    private int count;
+
+    /** TRANSITION LOG READER CONSTRUCTOR
+     * Reads both files of the run
+     * @param panel path of the file of the run, with the keyframes
+     */
+    public TransitionLogReader(Path panel) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(panel, StandardCharsets.US_ASCII)){
+            parameters = reader.readLine();
+            columns = reader.readLine();
+            readKeyframes(reader);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(TransitionLog.transitionsPath(panel), StandardCharsets.US_ASCII)){
+            reader.readLine();
+            readTransitions(reader);
+        }
+        if (keyframes.isEmpty()) throw new IOException("No keyframe in " + panel);
+    }
+
+    private void readKeyframes(BufferedReader reader) throws IOException {
+        // The number of agents is the first field of the header: numPatients=<n>
+        int size = Integer.parseInt(parameters.substring(parameters.indexOf('=') + 1, parameters.indexOf(',')));
+        String line;
+        while ((line = reader.readLine()) != null){
+            if (line.isEmpty()) continue;
+            String[] row = line.split(",");
+            PopulationStore store = keyframes.computeIfAbsent(Long.parseLong(row[0]), step -> new PopulationStore(size));
+            int i = Integer.parseInt(row[1].substring(AGENT_PREFIX.length()));
+            store.sex.set(i, Boolean.parseBoolean(row[2]));
+            store.setVaccine(i, Boolean.parseBoolean(row[3]));
+            store.setInfected(i, Boolean.parseBoolean(row[4]));
+            store.degree[i] = Integer.parseInt(row[5]);
+            store.contagionDistance[i] = Double.parseDouble(row[6]);
+            store.infectiousnessDistance[i] = Double.parseDouble(row[7]);
+            store.indirectInterference[i] = Double.parseDouble(row[8]);
+        }
+    }
+
+    private void readTransitions(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null){
+            if (line.isEmpty()) continue;
+            String[] row = line.split(",");
+            if (count == steps.length){
+                steps = Arrays.copyOf(steps, count * 2);
+                agents = Arrays.copyOf(agents, count * 2);
+                fields = Arrays.copyOf(fields, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            steps[count] = Long.parseLong(row[0]);
+            agents[count] = Integer.parseInt(row[1]);
+            switch (row[2]){
+                case "vaccine":
+                    fields[count] = FIELD_VACCINE;
+                    values[count] = Boolean.parseBoolean(row[3]) ? 1 : 0;
+                    break;
+                case "infection":
+                    fields[count] = FIELD_INFECTION;
+                    values[count] = Boolean.parseBoolean(row[3]) ? 1 : 0;
+                    break;
+                case "degree":
+                    fields[count] = FIELD_DEGREE;
+                    values[count] = Integer.parseInt(row[3]);
+                    break;
+                default:
+                    throw new IOException("Unknown field " + row[2]);
+            }
+            count++;
+        }
+    }
+
+    public long getFirstStep(){return keyframes.firstKey();}
+
+    /** LAST STEP
+     * @return the last step written, with a keyframe or a transition
+     */
+    public long getLastStep(){
+        return Math.max(keyframes.lastKey(), count == 0 ? Long.MIN_VALUE : steps[count - 1]);
+    }
+
+    public boolean isKeyframe(long step){return keyframes.containsKey(step);}
+
+    /** STATE AT A STEP
+     * @param step between the first and the last step of the run
+     * @return a store with the state of the agents at the step, without their locations, and with NaN distances
+     * and interference unless the step is a keyframe
+     */
+    public PopulationStore stateAt(long step){
+        Map.Entry<Long, PopulationStore> keyframe = keyframes.floorEntry(step);
+        if (keyframe == null || step > getLastStep()){
+            throw new IllegalArgumentException("Step " + step + " is not in the run");
+        }
+        PopulationStore state = keyframe.getValue().copy();
+        if (keyframe.getKey() == step) return state;
+        int first = firstTransitionAfter(keyframe.getKey());
+        for (int k = first; k < count && steps[k] <= step; k++){
+            apply(state, k);
+        }
+        Arrays.fill(state.contagionDistance, Double.NaN);
+        Arrays.fill(state.infectiousnessDistance, Double.NaN);
+        Arrays.fill(state.indirectInterference, Double.NaN);
+        return state;
+    }
+
+    /** WRITE PANEL
+     * @param path of the panel
+     * @param step the only step written, or a negative value for every step of the run
+     */
+    public void writePanel(Path path, long step) throws IOException {
+        StepWriter writer = new StepWriter(path, false);
+        StepSnapshot snapshot = new StepSnapshot();
+        try {
+            writer.line(parameters);
+            writer.line(columns);
+            if (step >= 0){
+                snapshot.capture(step, stateAt(step));
+                snapshot.write(writer, isKeyframe(step));
+                return;
+            }
+
+            // Every step: the state is carried forward, and replaced at each keyframe
+            PopulationStore state = null;
+            int k = 0;
+            for (long s = getFirstStep(); s <= getLastStep(); s++){
+                PopulationStore keyframe = keyframes.get(s);
+                if (keyframe != null){
+                    state = keyframe.copy();
+                    k = firstTransitionAfter(s);
+                } else {
+                    for (; k < count && steps[k] <= s; k++){
+                        apply(state, k);
+                    }
+                }
+                snapshot.capture(s, state);
+                snapshot.write(writer, keyframe != null);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private int firstTransitionAfter(long step){
+        int low = 0, high = count;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (steps[middle] <= step) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private void apply(PopulationStore state, int k){
+        int agent = agents[k];
+        switch (fields[k]){
+            case FIELD_VACCINE: state.setVaccine(agent, values[k] == 1); break;
+            case FIELD_INFECTION: state.setInfected(agent, values[k] == 1); break;
+            default: state.degree[agent] = values[k];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path panel = Paths.get(args[0]);
+        long step = Long.parseLong(Arguments.value(args, "-step", "-1"));
+        TransitionLogReader reader = new TransitionLogReader(panel);
+
+        String name = panel.getFileName().toString();
+        if (name.endsWith(".csv")) name = name.substring(0, name.length() - 4);
+        Path output = panel.resolveSibling(name + "_panel.csv");
+        reader.writePanel(output, step);
+        System.out.println("Steps " + reader.getFirstStep() + " to " + reader.getLastStep() + " written to " + output);
+    }
+}
@@ -16,32 +16,82 @@
 
 import sim.engine.SimState;
 import sim.engine.Steppable;
-import sim.util.Bag;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /** UTILS
  * This class will contain the functions to generate the data for the micro-simulation
+ * The file is kept open by a StepWriter from its creation until close(), called when the City finishes
+ * With asynchronous output the rows are written by an OutputPipeline on a thread of its own
+ * With the transitions output the file only gets keyframes, and the changes of state are written by a TransitionLog
+ * With the binary output the steps are written to a file of fixed-size records by a BinaryPanelWriter
+ * The output plan of the City selects the steps and agents written: the other steps are skipped, unless they may be
+ * among the final steps of the plan, which are kept back in a ring and written by close()
  */
 public class Utils implements Steppable {
 
     private String dirName = "output";
+    private Path path;
+    private StepWriter writer;
+    private OutputPipeline pipeline;
+    private final StepSnapshot snapshot = new StepSnapshot();
+    private TransitionLog transitions;
+    private BinaryPanelWriter binary;
+
+    // Output plan: the agents written are drawn at the first step
+    private final OutputPlan plan;
+    private int[] sample;
+    private boolean started;
+
+    // Final steps of the plan: the last steps run, kept back when they were not written
+    private StepSnapshot[] ring;
+    private boolean[] pending;
+    private int ringNext;
+
+    // Throughput of the output: time spent writing, and rows and bytes of the writers already closed
+    private long writeNanos;
+    private long closedRows;
+    private long closedBytes;
+    private boolean closed;
+    private final boolean enabled;
+
+    // Blank fields of the first header line for the reason and step of the stop
+    private static final int STOP_REASON_WIDTH = 16;
+    private static final int STOP_STEP_WIDTH = 20;
+    private long stopOffset = -1;
+
+    static final String COLUMNS = "step,agent,sex,vaccine,infection,degree,contagionDist,infectiousnessDist,indInterference";
 
     /** UTILS CONSTRUCTOR
      * Every time the object is called it will create the file to save the changes in the simulation
+     * With the output mode none, no file is created and the steps are not written, but the object is still
+     * scheduled, so that the order of the schedule does not change
      */
 
     public Utils(City city) throws Exception {
-        createDataFile(city);
+        enabled = city.getOutputMode() != City.OUTPUT_NONE;
+        plan = city.getOutputMode() == City.OUTPUT_TRANSITIONS ? OutputPlan.ALL : city.getPlan();
+        if (enabled && plan.getLast() > 0){
+            ring = new StepSnapshot[plan.getLast()];
+            pending = new boolean[ring.length];
+            for (int i = 0; i < ring.length; i++) ring[i] = new StepSnapshot();
+        }
+        if (enabled) createDataFile(city);
     }
 
     /** Create a datafile for the evolution of the SIM
      */
 
     private void createDataFile(City city) throws Exception {
-        Writer writer = null;
+        long start = System.nanoTime();
 
         File dir = new File(dirName);
         if (! dir.exists()){
@@ -49,11 +99,8 @@ public class Utils implements Steppable {
         }
 
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(dirName + "/" + city.getFileNameHash(), false),
-                    "utf-8"));
-
-            writer.write("numPatients=" + city.getNumPatients() + "," +
+            path = Paths.get(dirName, city.getFileNameHash());
+            String parameters = "numPatients=" + city.getNumPatients() + "," +
                             "probInfected=" + city.getProbInfected() + ","  +
                             "probVaccine=" + city.getProbVaccine() + ","  +
                             "lambda=" + city.getLambda() + "," +
@@ -65,21 +112,38 @@ public class Utils implements Steppable {
                             "promiscuityPopulation=" + city.getPromiscuityPopulation() + ","  +
                             "maxPartnerForce=" + city.getMaxPartnerForce() + "," +
                             "randomForce=" + city.getRandomForce() + "," +
-                            "partnerForce=" + city.getPartnerForce()
-            );
-            writer.write(System.getProperty("line.separator"));
-            writer.write("step,agent,sex,vaccine,infection,degree,contagionDist,infectiousnessDist,indInterference");
-            writer.write(System.getProperty("line.separator"));
+                            "partnerForce=" + city.getPartnerForce();
+            if (plan != OutputPlan.ALL) parameters += ",outputPlan=" + plan;
+
+            // Binary mode: the parameters and the seed go to the header of the binary file, and nothing else is written
+            if (city.getOutputMode() == City.OUTPUT_BINARY){
+                path = BinaryPanelWriter.binaryPath(path);
+                binary = new BinaryPanelWriter(path, parameters, city.seed(), city.getNumPatients());
+                writeNanos += System.nanoTime() - start;
+                return;
+            }
+            writer = new StepWriter(path, false);
+
+            // The reason and step of the stop are only known at the end: blank fields are patched by writeStop()
+            stopOffset = parameters.length() + ",stopReason=".length();
+            writer.line(headerLine(parameters, "", ""));
+            writer.line(COLUMNS);
+
+            // Transitions mode: the file of the run only gets the keyframes
+            if (city.getOutputMode() == City.OUTPUT_TRANSITIONS){
+                transitions = new TransitionLog(TransitionLog.transitionsPath(path), city.getKeyframeInterval());
+            }
+
+            // The writer is handed to the pipeline, that writes and closes it
+            if (city.getOutputMode() == City.OUTPUT_ASYNCHRONOUS){
+                pipeline = new OutputPipeline(writer, city.getOutputBuffers(), city.getOutputBackpressure());
+                writer = null;
+            }
 
         } catch (IOException ex){
             System.out.println("Error creating file");
-        } finally {
-            try {
-                writer.close();
-            } catch (Exception ex){
-                System.out.println("Error closing file");
-            }
         }
+        writeNanos += System.nanoTime() - start;
     }
 
     /** WRITE EACH STEP
@@ -88,43 +152,196 @@ public class Utils implements Steppable {
      */
 
     public void writeStep(City city) throws Exception {
+        if (!enabled) return;
+        long step = city.getStep();
+        if (!started){
+            started = true;
+            sample = plan.sample(city);
+            if (binary != null) binary.setFirstStep(step);
+        }
+
+        // After close() every step is among the final steps
+        boolean output = plan.isOutputStep(step);
+        if (ring != null && !closed) keep(step, city.population, output);
+        if (!output && (ring == null || !closed)) return;
+
+        if (pipeline != null && !closed){
+            pipeline.submit(step, city.population, sample);
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (binary != null){
+            try {
+                snapshot.capture(step, city.population, sample);
+                binary.write(snapshot);
+            } catch (IOException ex){
+                System.out.println("Error writing file");
+            }
+            writeNanos += System.nanoTime() - start;
+            return;
+        }
 
-        long step = city.schedule.getSteps();
-        Writer writer = null;
-        Patient patient;
+        // After close() the rows are appended with a writer of their own
+        StepWriter writer = this.writer;
+        boolean reopened = writer == null;
 
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(dirName + "/" + city.getFileNameHash(), true),
-                    "utf-8")
-            );
-
-            Bag agents = city.yard.getAllObjects();
-
-            for (int i = 0; i < agents.size(); i++){
-                patient = (Patient) agents.get(i);
-                writer.write(step +
-                        "," + patient.getName() +
-                        "," + patient.getSex() +
-                        "," + patient.getVaccine() +
-                        "," + patient.getInfected() +
-                        "," + patient.getDegree() +
-                        "," + patient.getContagionDistance() +
-                        "," + patient.getInfectiousnessDistance() +
-                        "," + patient.getIndirectInterference());
-
-                writer.write(System.getProperty("line.separator"));
+            if (reopened) writer = new StepWriter(path, true);
+            if (transitions != null){
+                transitions.write(step, city.population, writer);
+            } else {
+                snapshot.capture(step, city.population, sample);
+                snapshot.write(writer);
             }
         } catch (IOException ex){
             System.out.println("Error writing file");
         } finally {
+            if (reopened && writer != null){
+                try {
+                    writer.close();
+                    closedRows += writer.getRows();
+                    closedBytes += writer.getBytes();
+                } catch (IOException ex){
+                    System.out.println("Error closing file");
+                }
+            }
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    /** KEEP A STEP
+     * Takes the place of the oldest step of the ring
+     * @param step of the simulation
+     * @param store with the current state of the agents
+     * @param output whether the step is written when it is run
+     */
+    private void keep(long step, PopulationStore store, boolean output){
+        int slot = ringNext;
+        ringNext = (ringNext + 1) % ring.length;
+        pending[slot] = !output;
+        if (!output) ring[slot].capture(step, store, sample);
+    }
+
+    /** WRITE THE FINAL STEPS
+     * The steps of the ring that were not written when they were run, from the oldest
+     */
+    private void writeKept(){
+        long start = System.nanoTime();
+        for (int j = 0; j < ring.length; j++){
+            int slot = (ringNext + j) % ring.length;
+            if (!pending[slot]) continue;
+            pending[slot] = false;
+            try {
+                if (pipeline != null) pipeline.submit(ring[slot]);
+                else if (binary != null) binary.write(ring[slot]);
+                else ring[slot].write(writer);
+            } catch (IOException ex){
+                System.out.println("Error writing file");
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeNanos += System.nanoTime() - start;
+    }
+
+    /** CLOSE
+     * Writes the buffered rows and the final steps kept back, and closes the file
+     */
+    public void close(){
+        if (ring != null && !closed) writeKept();
+        closed = true;
+        if (pipeline != null){
             try {
-                writer.close();
-            } catch (Exception ex){
+                pipeline.close();
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (binary != null){
+            try {
+                binary.close();
+            } catch (IOException ex){
                 System.out.println("Error closing file");
             }
         }
+        if (writer == null) return;
+        long start = System.nanoTime();
+        try {
+            if (transitions != null){
+                closedRows += transitions.getRows();
+                closedBytes += transitions.getBytes();
+                transitions.close(writer);
+            }
+            writer.close();
+        } catch (IOException ex){
+            System.out.println("Error closing file");
+        }
+        closedRows += writer.getRows();
+        closedBytes += writer.getBytes();
+        writer = null;
+        writeNanos += System.nanoTime() - start;
+    }
+
+    /** WRITE STOP
+     * Fills the blank stopReason and stopStep fields of the first header line, once the file is closed
+     * @param reason why the run stopped
+     * @param step last step of the run
+     */
+    public void writeStop(String reason, long step){
+        if (binary != null) binary.writeStop(reason, step);
+        if (stopOffset < 0 || path == null) return;
+        String fields = pad(reason, STOP_REASON_WIDTH) + ",stopStep=" + pad(String.valueOf(step), STOP_STEP_WIDTH);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)){
+            ByteBuffer buffer = ByteBuffer.wrap(fields.getBytes(StandardCharsets.US_ASCII));
+            long position = stopOffset;
+            while (buffer.hasRemaining()){
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException ex){
+            System.out.println("Error writing the stop to the file");
+        }
+    }
+
+    /** HEADER LINE
+     * @param parameters of the run
+     * @param reason why the run stopped, or blank
+     * @param step last step of the run, or blank
+     * @return the first header line of the file of a run
+     */
+    static String headerLine(String parameters, String reason, String step){
+        return parameters + ",stopReason=" + pad(reason, STOP_REASON_WIDTH) + ",stopStep=" + pad(step, STOP_STEP_WIDTH);
+    }
+
+    // Left-aligned in a field of spaces, cut to its width
+    private static String pad(String value, int width){
+        StringBuilder padded = new StringBuilder(value.length() > width ? value.substring(0, width) : value);
+        while (padded.length() < width) padded.append(' ');
+        return padded.toString();
+    }
+
+    /** THROUGHPUT OF THE OUTPUT
+     * Over the time spent formatting and writing rows, not the time of the whole simulation
+     * With asynchronous output, the time is that of the writer thread
+     */
+    public long getRows(){
+        return closedRows + (writer == null ? 0 : writer.getRows()) + (pipeline == null ? 0 : pipeline.getRows()) +
+                (binary == null ? 0 : binary.getRows());
+    }
+    public long getBytes(){
+        return closedBytes + (writer == null ? 0 : writer.getBytes()) + (pipeline == null ? 0 : pipeline.getBytes()) +
+                (binary == null ? 0 : binary.getBytes());
+    }
+    public double getRowsPerSecond(){
+        long nanos = getWriteNanos();
+        return nanos == 0 ? 0.0 : getRows() / (nanos * 1e-9);
+    }
+    public double getMegabytesPerSecond(){
+        long nanos = getWriteNanos();
+        return nanos == 0 ? 0.0 : getBytes() / 1e6 / (nanos * 1e-9);
     }
+    public long getDroppedSteps(){return pipeline == null ? 0 : pipeline.getDroppedSteps();}
+    private long getWriteNanos(){return writeNanos + (pipeline == null ? 0 : pipeline.getWriteNanos());}
 
     // Method to encrypt the filename: blowfish method:
     // src = http://www.adeveloperdiary.com/java/how-to-easily-encrypt-and-decrypt-text-in-java/
@@ -151,10 +368,12 @@ public class Utils implements Steppable {
 
     public void step(SimState state){
         City city = (City) state;
+        long start = StepProfiler.ENABLED ? System.nanoTime() : 0;
         try {
             writeStep(city);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        if (StepProfiler.ENABLED) StepProfiler.record(StepProfiler.OUTPUT, start);
     }
 }
@@ -0,0 +1,53 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.BitSet;
+
+/** VACCINATION INTERVENTION
+ * Sets the vaccine of every agent of a branch to a given assignment: the agents in the assignment are vaccinated
+ * and the others are not, whether they had been vaccinated during the burn-in or not
+ * The probability of vaccination for the rest of the run may be set as well
+ */
+
+public class VaccinationIntervention implements Intervention {
+    private final BitSet assignment;
+    private final double probVaccine;
+
+    /** VACCINATION INTERVENTION CONSTRUCTOR
+     * @param assignment ids of the vaccinated agents
+     */
+    public VaccinationIntervention(BitSet assignment){
+        this(assignment, Double.NaN);
+    }
+
+    /** VACCINATION INTERVENTION CONSTRUCTOR
+     * @param assignment ids of the vaccinated agents
+     * @param probVaccine probability of vaccination for the rest of the run, NaN to keep that of the snapshot
+     */
+    public VaccinationIntervention(BitSet assignment, double probVaccine){
+        this.assignment = (BitSet) assignment.clone();
+        this.probVaccine = probVaccine;
+    }
+
+    public void apply(City city){
+        PopulationStore store = city.population;
+        for (int i = 0; i < store.size; i++){
+            store.setVaccine(i, assignment.get(i));
+        }
+        if (!Double.isNaN(probVaccine)) city.setProbVaccine(probVaccine);
+    }
+}
@@ -0,0 +1,108 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** VACCINATION QUEUE
+ * Event-time vaccination: the hazard of vaccination of an agent, (1 - sex + sexOnVaccine * sex) * probVaccine,
+ * is the same at every step, so the step of its vaccination follows a geometric distribution and is drawn once:
+ * 1. At the start, step = floor(log(1 - u) / log(1 - p)) for each agent, with u uniform in [0, 1)
+ * 2. The agent is put in the bucket of that step, in a calendar of buckets indexed by step modulo its width
+ * 3. At each step only the agents of its bucket are visited, so vaccination costs O(events) and not O(N)
+ * P(vaccinated at step k) = (1 - p)^k p, the same marginal distribution as a Bernoulli draw at every step
+ */
+
+public class VaccinationQueue {
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final int MAX_WIDTH = 1 << 20;
+
+    private final long[] eventStep;
+    private final int[] head;
+    private final int[] next;
+    private int pending;
+
+    /** VACCINATION QUEUE CONSTRUCTOR
+     * Draws the step of vaccination of every agent with the random number generator of the city
+     * @param city whose agents will be vaccinated
+     * @param horizon expected number of steps of the simulation, to size the calendar
+     */
+    public VaccinationQueue(City city, int horizon){
+        int size = city.population.size;
+        eventStep = new long[size];
+        next = new int[size];
+        head = new int[Math.max(1, Math.min(MAX_WIDTH, horizon + 1))];
+        java.util.Arrays.fill(head, -1);
+
+        for (int i = 0; i < size; i++){
+            long step = sample(city.patients[i].vaccineProbability(city), city.random.nextDouble());
+            eventStep[i] = step;
+            if (step != NEVER){
+                int bucket = (int) (step % head.length);
+                next[i] = head[bucket];
+                head[bucket] = i;
+                pending++;
+            }
+        }
+    }
+
+    /** GEOMETRIC SAMPLE
+     * @param p probability of the event at each step
+     * @param u uniform draw in [0, 1)
+     * @return the first step, from 0, at which the event happens, or NEVER
+     */
+    static long sample(double p, double u){
+        if (!(p > 0)) return NEVER;
+        if (p >= 1) return 0;
+        double step = Math.floor(Math.log1p(-u) / Math.log1p(-p));
+        return step >= NEVER ? NEVER : (long) step;
+    }
+
+    /** APPLY
+     * Vaccinates the agents whose event is at this step
+     * Agents of later steps that share the bucket, once the calendar has wrapped, are kept for their turn
+     * @param city whose agents are vaccinated
+     * @param step current step of the simulation
+     */
+    public void apply(City city, long step){
+        int bucket = (int) (step % head.length);
+        int previous = -1;
+        int agent = head[bucket];
+        while (agent >= 0){
+            int following = next[agent];
+            if (eventStep[agent] <= step){
+                city.population.setVaccine(agent, true);
+                if (previous < 0) head[bucket] = following;
+                else next[previous] = following;
+                pending--;
+            } else {
+                previous = agent;
+            }
+            agent = following;
+        }
+    }
+
+    /** PENDING
+     * @return the number of agents that will still be vaccinated
+     */
+    public int getPending(){return pending;}
+
+    /** EVENT STEP
+     * @param agent id of the agent
+     * @return the step at which the agent is vaccinated, or -1 if never
+     */
+    public long getEventStep(int agent){
+        return eventStep[agent] == NEVER ? -1 : eventStep[agent];
+    }
+}
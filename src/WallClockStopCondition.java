@@ -0,0 +1,36 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/** WALL-CLOCK STOP CONDITION
+ * Stops when the run has taken longer than a budget of seconds since the condition was created
+ */
+
+public class WallClockStopCondition implements StopCondition {
+    private final long start = System.nanoTime();
+    private final long budget;
+
+    /** WALL-CLOCK STOP CONDITION CONSTRUCTOR
+     * @param seconds budget of the run
+     */
+    public WallClockStopCondition(double seconds){
+        this.budget = (long) (seconds * 1e9);
+    }
+
+    public String check(City city){
+        return System.nanoTime() - start > budget ? "wallclock" : null;
+    }
+}
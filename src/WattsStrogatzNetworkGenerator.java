@@ -0,0 +1,65 @@
+/* Created by David Narganes on 01/05/2018.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/** WATTS-STROGATZ NETWORK GENERATOR
+ * Small-world network:
+ * 1. A ring lattice over the ids, each agent connected to the meanDegree / 2 following agents
+ * 2. Each edge of the lattice is moved to a uniform agent with probability rewiringProbability
+ * When an agent rewires, each of its edges is moved with the same probability
+ */
+
+public class WattsStrogatzNetworkGenerator extends AbstractNetworkGenerator {
+
+    public void generate(City city){
+        clear(city);
+        int size = city.population.size;
+        int half = Math.min((int) Math.round(city.getMeanDegree() * 0.5), (size - 1) / 2);
+
+        // RING LATTICE
+        for (int i = 0; i < size; i++){
+            for (int k = 1; k <= half; k++){
+                connect(city, i, (i + k) % size);
+            }
+        }
+
+        // REWIRE EACH EDGE OF THE LATTICE
+        for (int i = 0; i < size; i++){
+            for (int k = 1; k <= half; k++){
+                if (city.random.nextDouble() < city.getRewiringProbability()){
+                    moveEdge(city, i, (i + k) % size);
+                }
+            }
+        }
+    }
+
+    public void rewire(City city, Patient patient){
+        int ego = patient.getId();
+        for (int alter : neighbours(city, ego)){
+            if (city.random.nextDouble() < city.getRewiringProbability()){
+                moveEdge(city, ego, alter);
+            }
+        }
+    }
+
+    /** MOVE EDGE
+     * The edge between ego and alter is replaced by an edge between ego and a uniform agent
+     */
+    private void moveEdge(City city, int ego, int alter){
+        if (disconnect(city, ego, alter) && !connectUniform(city, ego)){
+            connect(city, ego, alter);
+        }
+    }
+}